@@ -0,0 +1,208 @@
+package oneandone.fileservice.api;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.context.request.WebRequest;
+
+import oneandone.fileservice.server.service.FileContent;
+import oneandone.fileservice.server.service.FileService;
+
+/**
+ * Writes file downloads, honoring the Range and If-Range request headers. Every range is streamed with a positioned
+ * read of exactly that region, so serving a small window of a large file only costs the window. The content is opened
+ * once for the whole response, so all ranges come from the same version of the file. The validators of the response
+ * and the conditions of the request are taken from that version too, never from metadata read before, so a resumed
+ * download can't get the bytes of a new version under the validator of the old one.
+ */
+@Component
+public class DownloadResponseWriter {
+
+    /**
+     * Requests asking for more ranges than this are answered with the full content.
+     */
+    private static final int MAX_RANGES = 100;
+
+    private static final String BYTES_UNIT = "bytes";
+
+    @Autowired(required = false)
+    private FileService fileService;
+
+    public void write(String name, WebRequest webRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+
+        Optional<FileContent> optionalContent = fileService.openContent(name);
+
+        if (!optionalContent.isPresent()) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+
+        try (FileContent content = optionalContent.get()) {
+            if (webRequest.checkNotModified(content.eTag(), content.lastModified())) {
+                return;
+            }
+            write(name, content, request, response);
+        }
+    }
+
+    private void write(String name, FileContent content, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTES_UNIT);
+        response.setHeader(HttpHeaders.ETAG, content.eTag());
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, content.lastModified());
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + name + "\"");
+
+        List<HttpRange> ranges = getRequestedRanges(content, request);
+
+        if (ranges.isEmpty()) {
+            writeFull(content, response);
+            return;
+        }
+
+        List<Region> regions = new ArrayList<>();
+        for (HttpRange range : ranges) {
+            long start = range.getRangeStart(content.size());
+            long end = range.getRangeEnd(content.size());
+            if (start < content.size() && start <= end) {
+                regions.add(new Region(start, end));
+            }
+        }
+
+        if (regions.isEmpty()) {
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES_UNIT + " */" + content.size());
+            return;
+        }
+
+        if (regions.size() == 1) {
+            writeSingleRange(content, regions.get(0), response);
+        } else {
+            writeMultipleRanges(content, regions, response);
+        }
+    }
+
+    private List<HttpRange> getRequestedRanges(FileContent content, HttpServletRequest request) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+
+        if (rangeHeader == null || !isIfRangeSatisfied(content, request)) {
+            return Collections.emptyList();
+        }
+
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            // A malformed Range header is ignored, as allowed by RFC 7233.
+            return Collections.emptyList();
+        }
+
+        return ranges.size() > MAX_RANGES ? Collections.emptyList() : ranges;
+    }
+
+    private boolean isIfRangeSatisfied(FileContent content, HttpServletRequest request) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+
+        if (ifRange == null) {
+            return true;
+        }
+
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(content.eTag());
+        }
+
+        try {
+            return request.getDateHeader(HttpHeaders.IF_RANGE) == content.lastModified() / 1000 * 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void writeFull(FileContent content, HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setContentLengthLong(content.size());
+
+        content.transferTo(0, content.size(), Channels.newChannel(response.getOutputStream()));
+    }
+
+    private void writeSingleRange(FileContent content, Region region, HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setHeader(HttpHeaders.CONTENT_RANGE, region.toContentRange(content.size()));
+        response.setContentLengthLong(region.length());
+
+        content.transferTo(region.start, region.length(), Channels.newChannel(response.getOutputStream()));
+    }
+
+    private void writeMultipleRanges(FileContent content, List<Region> regions, HttpServletResponse response)
+            throws IOException {
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+
+        List<byte[]> partHeaders = new ArrayList<>(regions.size());
+        long contentLength = 0;
+        for (int i = 0; i < regions.size(); i++) {
+            String partHeader = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + MediaType.APPLICATION_OCTET_STREAM_VALUE + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + regions.get(i).toContentRange(content.size()) + "\r\n\r\n";
+            byte[] partHeaderBytes = partHeader.getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeaderBytes);
+            contentLength += partHeaderBytes.length + regions.get(i).length();
+        }
+        byte[] closingBoundary = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += closingBoundary.length;
+
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+
+        ServletOutputStream outputStream = response.getOutputStream();
+        WritableByteChannel channel = Channels.newChannel(outputStream);
+
+        for (int i = 0; i < regions.size(); i++) {
+            Region region = regions.get(i);
+            outputStream.write(partHeaders.get(i));
+            content.transferTo(region.start, region.length(), channel);
+        }
+        outputStream.write(closingBoundary);
+    }
+
+    /**
+     * Inclusive byte interval of the file content, resolved against the actual file size.
+     */
+    private static class Region {
+
+        private final long start;
+        private final long end;
+
+        Region(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+
+        String toContentRange(long size) {
+            return BYTES_UNIT + " " + start + "-" + end + "/" + size;
+        }
+    }
+}
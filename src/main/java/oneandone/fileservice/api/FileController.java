@@ -1,11 +1,20 @@
 package oneandone.fileservice.api;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -17,13 +26,18 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
+import oneandone.fileservice.server.exception.ClientException;
+import oneandone.fileservice.server.exception.ClientExceptionMessage;
 import oneandone.fileservice.server.model.File;
+import oneandone.fileservice.server.model.FolderStatistics;
 import oneandone.fileservice.server.service.FileService;
 import oneandone.fileservice.server.service.impl.FileReadOption;
 
@@ -31,44 +45,77 @@ import oneandone.fileservice.server.service.impl.FileReadOption;
 @RequestMapping("/file-service/v1/files")
 public class FileController {
 
+    private static final MediaType APPLICATION_NDJSON = MediaType.valueOf("application/x-ndjson");
+
+    private static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final String WARMING_UP_HEADER = "X-Warming-Up";
+    private static final String TOTAL_BYTES_HEADER = "X-Total-Bytes";
+    private static final String EXTENSION_COUNTS_HEADER = "X-Extension-Counts";
+
+    /**
+     * Extensions listed in the X-Extension-Counts header, the most common first.
+     */
+    private static final int MAX_EXTENSION_COUNTS = 50;
+
     @Autowired(required = false)
     private FileService fileService;
 
-    @RequestMapping(path="/{name}/download", method = RequestMethod.GET)
-    public ResponseEntity downloadFile(@PathVariable("name") String name) {
+    @Autowired
+    private DownloadResponseWriter downloadResponseWriter;
 
-        Optional<File> optionalFile = fileService.get(name);
+    @Autowired
+    private ObjectMapper objectMapper;
 
-        if(!optionalFile.isPresent()) {
-            return ResponseEntity.notFound().build();
-        }
-
-        File file = optionalFile.get();
+    /**
+     * Streams the file content straight from disk to the response, so the heap usage doesn't depend on the file size.
+     * Supports single and multiple byte ranges.
+     */
+    @RequestMapping(path="/{name}/download", method = RequestMethod.GET)
+    public void downloadFile(@PathVariable("name") String name, HttpServletRequest request, HttpServletResponse response,
+                             WebRequest webRequest) throws IOException {
 
-        return ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getName() + "\"")
-                .body(file.getContent());
+        // The conditions are evaluated against the opened content, cached metadata may be older
+        downloadResponseWriter.write(name, webRequest, request, response);
     }
 
+    /**
+     * Answers conditional requests with 304 Not Modified from the metadata alone, without reading the content.
+     */
     @RequestMapping(path="/{name}", method = RequestMethod.GET)
-    public ResponseEntity<File> getFile(@PathVariable("name") String name) {
+    public ResponseEntity<File> getFile(@PathVariable("name") String name, WebRequest webRequest, HttpServletResponse response) {
+
+        Optional<File> metadata = fileService.get(name, FileReadOption.METADATA);
+
+        if(!metadata.isPresent()){
+            return ResponseEntity.notFound().build();
+        }
+
+        if(isNotModified(metadata.get(), webRequest)) {
+            return null;
+        }
 
         Optional<File> optionalFile = fileService.get(name);
 
         if(optionalFile.isPresent()){
-            return ResponseEntity.ok(fileService.get(name).get());
+            // The file may have changed since the metadata was read, the validators must describe the returned content.
+            response.setHeader(HttpHeaders.ETAG, optionalFile.get().getETag());
+            response.setDateHeader(HttpHeaders.LAST_MODIFIED, optionalFile.get().getLastModified());
+            return ResponseEntity.ok(optionalFile.get());
         } else {
             return ResponseEntity.notFound().build();
         }
     }
 
     @RequestMapping(method = RequestMethod.HEAD,path = "/{name}")
-    public ResponseEntity<Void> getFileHeaders(@PathVariable("name") String fileName, HttpServletResponse response) {
+    public ResponseEntity<Void> getFileHeaders(@PathVariable("name") String fileName, WebRequest webRequest, HttpServletResponse response) {
         Optional<File> file = fileService.get(fileName, FileReadOption.METADATA);
         ResponseEntity<Void> responseEntity;
 
         if(file.isPresent()) {
+            if(isNotModified(file.get(), webRequest)) {
+                return null;
+            }
             response.addHeader("X-Last-Modified", String.valueOf(file.get().getLastModified()));
             responseEntity = ResponseEntity.ok().build();
         } else {
@@ -78,40 +125,122 @@ public class FileController {
         return responseEntity;
     }
 
+    /**
+     * The If-Match header can be used for the concurrency check instead of the lastModified field of the file.
+     */
     @PostMapping(path = "/{name}")
-    public ResponseEntity<Void> update(@PathVariable("name") String fileName, @RequestBody File file) {
+    public ResponseEntity<Void> update(@PathVariable("name") String fileName,
+                                       @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+                                       @RequestBody File file) {
+        if(ifMatch != null) {
+            file.setETag(ifMatch);
+        }
+
         fileService.update(fileName, file);
 
         return ResponseEntity.status(HttpStatus.ACCEPTED).build();
     }
 
+    /**
+     * Replaces the content with the raw request body, avoiding the base64 encoding of the JSON update. The
+     * concurrency check uses the If-Match or the X-Last-Modified header and an optional X-File-Name header renames
+     * the file.
+     */
+    @PostMapping(path = "/{name}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<Void> updateContent(@PathVariable("name") String fileName,
+                                              @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+                                              @RequestHeader(value = "X-Last-Modified", required = false) Long lastModified,
+                                              @RequestHeader(value = "X-File-Name", required = false) String newFileName,
+                                              InputStream content) {
+        File file = new File();
+        file.setName(newFileName);
+        file.setETag(ifMatch);
+        if(lastModified != null) {
+            file.setLastModified(lastModified);
+        }
+
+        fileService.update(fileName, file, content);
+
+        return ResponseEntity.status(HttpStatus.ACCEPTED).build();
+    }
+
+    /**
+     * Lists the names matching the regex in sorted order. Without a limit or a cursor all of them are returned, with
+     * their count. With a limit, at most that many names are returned and the X-Next-Cursor header holds the cursor
+     * of the next page when there is one, while the X-Total-Count header is only computed when asked for with
+     * count=true.
+     * <p>
+     * Clients accepting application/x-ndjson get one JSON object per name and line, written as the names are matched,
+     * followed by a cursor object when the limit cut the listing.
+     * <p>
+     * While the startup index is warming up the first listings wait for it a bounded time, then listings are served
+     * partial with the X-Warming-Up header.
+     */
     @GetMapping
-    public ResponseEntity<List<String>> getFiles(@RequestParam String regex, HttpServletResponse response) {
-        List<String> files = fileService.getFilename(regex);
-        if(files.isEmpty()){
-            response.addHeader("X-Total-Count","0");
-            return ResponseEntity.notFound().build();
-        } else {
-            response.addHeader("X-Total-Count",String.valueOf(files.size()));
-            return ResponseEntity.ok(files);
+    public ResponseEntity<List<String>> getFiles(@RequestParam String regex,
+                                                 @RequestParam(required = false) Integer limit,
+                                                 @RequestParam(required = false) String cursor,
+                                                 @RequestParam(required = false) Boolean count,
+                                                 @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                                 HttpServletResponse response) throws IOException {
+        addWarmUpHeader(response);
+
+        if(isNdjsonAccepted(accept)) {
+            streamFiles(regex, limit, cursor, Boolean.TRUE.equals(count), response);
+            return null;
         }
 
+        if(limit == null && cursor == null) {
+            List<String> files = fileService.getFilename(regex);
+            if(files.isEmpty()){
+                response.addHeader(TOTAL_COUNT_HEADER,"0");
+                return ResponseEntity.notFound().build();
+            } else {
+                response.addHeader(TOTAL_COUNT_HEADER,String.valueOf(files.size()));
+                return ResponseEntity.ok(files);
+            }
+        }
+
+        List<String> files = new ArrayList<>();
+        String lastFileName = fileService.getFilename(regex, decodeCursor(cursor), toLimit(limit), files::add);
+
+        if(lastFileName != null) {
+            response.addHeader(NEXT_CURSOR_HEADER, ListingCursor.encode(lastFileName));
+        }
+        if(Boolean.TRUE.equals(count)) {
+            response.addHeader(TOTAL_COUNT_HEADER, String.valueOf(fileService.getFilename(regex).size()));
+        }
+
+        return files.isEmpty() ? ResponseEntity.notFound().build() : ResponseEntity.ok(files);
     }
 
+    /**
+     * Returns the number of files in the X-Total-Count header, their total size in the X-Total-Bytes header when the
+     * sizes are tracked, and the number of files of the most common extensions in the X-Extension-Counts header, as
+     * comma separated extension=count pairs. Files without an extension aren't listed there.
+     */
     @RequestMapping(method = RequestMethod.HEAD)
     public ResponseEntity<Void> countFiles(HttpServletResponse response) {
-        response.addHeader("X-Total-Count",String.valueOf(fileService.count()));
+        addWarmUpHeader(response);
+        FolderStatistics statistics = fileService.getStatistics();
+
+        response.addHeader(TOTAL_COUNT_HEADER,String.valueOf(statistics.getFileCount()));
+        if(statistics.getTotalBytes() >= 0) {
+            response.addHeader(TOTAL_BYTES_HEADER,String.valueOf(statistics.getTotalBytes()));
+        }
+        String extensionCounts = formatExtensionCounts(statistics.getExtensionCounts());
+        if(!extensionCounts.isEmpty()) {
+            response.addHeader(EXTENSION_COUNTS_HEADER, extensionCounts);
+        }
         return ResponseEntity.ok().build();
     }
 
     @PutMapping(path="/upload")
     public ResponseEntity<Void> upload(@RequestParam("file") MultipartFile uploadedFile) throws IOException {
 
-        File file = new File();
-        file.setName(uploadedFile.getOriginalFilename());
-        file.setContent(uploadedFile.getBytes());
-
-        fileService.create(file);
+        try (InputStream content = uploadedFile.getInputStream()) {
+            fileService.create(uploadedFile.getOriginalFilename(), content);
+        }
 
         return ResponseEntity.status(HttpStatus.CREATED).build();
     }
@@ -124,9 +253,93 @@ public class FileController {
         return ResponseEntity.status(HttpStatus.CREATED).build();
     }
 
+    /**
+     * Creates or overwrites the file with the raw request body, streamed to disk.
+     */
+    @PutMapping(path = "/{name}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<Void> createContent(@PathVariable("name") String name, InputStream content) {
+
+        fileService.create(name, content);
+
+        return ResponseEntity.status(HttpStatus.CREATED).build();
+    }
+
     @DeleteMapping(path = "/{name}")
     public ResponseEntity<Void> delete(String name) {
         fileService.delete(name);
         return ResponseEntity.accepted().build();
     }
+
+    private boolean isNotModified(File file, WebRequest webRequest) {
+        return webRequest.checkNotModified(file.getETag(), file.getLastModified());
+    }
+
+    private void addWarmUpHeader(HttpServletResponse response) {
+        if(!fileService.awaitIndexed()) {
+            response.addHeader(WARMING_UP_HEADER, "true");
+        }
+    }
+
+    private void streamFiles(String regex, Integer limit, String cursor, boolean count, HttpServletResponse response)
+            throws IOException {
+        // Validated before the response is committed
+        String after = decodeCursor(cursor);
+        int maxFiles = toLimit(limit);
+
+        if(count) {
+            response.addHeader(TOTAL_COUNT_HEADER, String.valueOf(fileService.getFilename(regex).size()));
+        }
+        response.setContentType(APPLICATION_NDJSON.toString());
+
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            generator.setRootValueSeparator(null);
+
+            String lastFileName = fileService.getFilename(regex, after, maxFiles,
+                    fileName -> writeLine(generator, "name", fileName));
+
+            if(lastFileName != null) {
+                writeLine(generator, "cursor", ListingCursor.encode(lastFileName));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void writeLine(JsonGenerator generator, String fieldName, String value) {
+        try {
+            generator.writeStartObject();
+            generator.writeStringField(fieldName, value);
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String formatExtensionCounts(Map<String, Long> extensionCounts) {
+        return extensionCounts.entrySet().stream()
+                .filter(entry -> !entry.getKey().isEmpty())
+                .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()).thenComparing(Map.Entry.comparingByKey()))
+                .limit(MAX_EXTENSION_COUNTS)
+                .map(entry -> entry.getKey() + "=" + entry.getValue())
+                .collect(Collectors.joining(", "));
+    }
+
+    private static boolean isNdjsonAccepted(String accept) {
+        return accept != null && MediaType.parseMediaTypes(accept).stream().anyMatch(APPLICATION_NDJSON::includes);
+    }
+
+    private static String decodeCursor(String cursor) {
+        return cursor == null ? null : ListingCursor.decode(cursor);
+    }
+
+    private static int toLimit(Integer limit) {
+        if(limit == null) {
+            return Integer.MAX_VALUE;
+        }
+        if(limit < 1) {
+            throw new ClientException(ClientExceptionMessage.INVALID_REQUEST, "Invalid limit " + limit);
+        }
+        return limit;
+    }
 }
@@ -0,0 +1,29 @@
+package oneandone.fileservice.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import oneandone.fileservice.server.exception.ClientException;
+import oneandone.fileservice.server.exception.ClientExceptionMessage;
+
+/**
+ * Opaque continuation token of a paginated listing, encoding the last name of the previous page. Since the names are
+ * listed in sorted order, the next page starts after that name even when names were added or removed meanwhile.
+ */
+final class ListingCursor {
+
+    private ListingCursor() {
+    }
+
+    static String encode(String lastFileName) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(lastFileName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String decode(String cursor) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new ClientException(ClientExceptionMessage.INVALID_REQUEST, "Invalid cursor " + cursor, e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package oneandone.fileservice.server.cache;
+
+/**
+ * Comparisons of file names which work on any {@link CharSequence}, so packed names don't have to be copied into
+ * Strings first.
+ */
+public final class CharSequences {
+
+    private CharSequences() {
+    }
+
+    /**
+     * Compares lexicographically by UTF-16 code unit, the same order as {@link String#compareTo}.
+     */
+    public static int compare(CharSequence first, CharSequence second) {
+        int length = Math.min(first.length(), second.length());
+        for (int i = 0; i < length; i++) {
+            char a = first.charAt(i);
+            char b = second.charAt(i);
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return first.length() - second.length();
+    }
+
+    public static boolean startsWith(CharSequence sequence, CharSequence prefix) {
+        if (sequence.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (sequence.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same value as {@link String#hashCode} for the same characters.
+     */
+    public static int hash(CharSequence sequence) {
+        int hash = 0;
+        for (int i = 0; i < sequence.length(); i++) {
+            hash = 31 * hash + sequence.charAt(i);
+        }
+        return hash;
+    }
+}
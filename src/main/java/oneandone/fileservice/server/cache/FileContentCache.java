@@ -0,0 +1,156 @@
+package oneandone.fileservice.server.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache of file contents bounded by their total size in bytes. Entries are evicted in LRU order, but a new entry only
+ * replaces them when it was accessed more often recently (TinyLFU admission), so scans over many cold files can't
+ * flush the hot ones. Files bigger than the size threshold are never cached.
+ * <p>
+ * An entry is only returned for the modification time and size it was read with, so a change the cache wasn't told
+ * about is never served.
+ */
+@Component
+@ManagedResource(description = "Byte bounded cache of hot file contents")
+public class FileContentCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileContentCache.class);
+
+    /**
+     * Used to size the frequency sketch from the byte bound.
+     */
+    private static final int AVERAGE_ENTRY_SIZE = 16 * 1024;
+
+    private final long maxBytes;
+    private final long maxFileSize;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch frequencySketch;
+    private long weight;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    public FileContentCache(@Value("${contentCacheMaxBytes:67108864}") long maxBytes,
+                            @Value("${contentCacheMaxFileSize:1048576}") long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, maxBytes);
+        this.frequencySketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1, maxBytes / AVERAGE_ENTRY_SIZE)));
+        LOG.info("Caching contents up to {} bytes, of files up to {} bytes", maxBytes, this.maxFileSize);
+    }
+
+    /**
+     * Returns the cached content of the file version or null. The returned array is shared and must not be modified.
+     */
+    public synchronized byte[] get(String name, long lastModified, long size) {
+        frequencySketch.increment(name);
+
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            if (entry.lastModified == lastModified && entry.content.length == size) {
+                hits++;
+                return entry.content;
+            }
+            remove(name);
+        }
+
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(String name, long lastModified, byte[] content) {
+        if (content.length > maxFileSize) {
+            return;
+        }
+
+        remove(name);
+
+        List<String> victims = new ArrayList<>();
+        long freed = 0;
+        int candidateFrequency = frequencySketch.frequency(name);
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+
+        while (weight - freed + content.length > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> victim = iterator.next();
+            if (frequencySketch.frequency(victim.getKey()) >= candidateFrequency) {
+                rejections++;
+                return;
+            }
+            victims.add(victim.getKey());
+            freed += victim.getValue().content.length;
+        }
+
+        for (String victim : victims) {
+            remove(victim);
+            evictions++;
+        }
+
+        entries.put(name, new Entry(lastModified, content));
+        weight += content.length;
+    }
+
+    public synchronized void invalidate(String name) {
+        remove(name);
+    }
+
+    private void remove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            weight -= entry.content.length;
+        }
+    }
+
+    @ManagedAttribute(description = "Number of cached files")
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    @ManagedAttribute(description = "Total bytes of the cached contents")
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    @ManagedAttribute(description = "Number of reads served from the cache")
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    @ManagedAttribute(description = "Number of reads not found in the cache")
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    @ManagedAttribute(description = "Number of entries evicted to make room for more frequently read files")
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @ManagedAttribute(description = "Number of contents not admitted because the entries they would evict were read more often")
+    public synchronized long getRejectionCount() {
+        return rejections;
+    }
+
+    private static class Entry {
+
+        private final long lastModified;
+        private final byte[] content;
+
+        Entry(long lastModified, byte[] content) {
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+    }
+}
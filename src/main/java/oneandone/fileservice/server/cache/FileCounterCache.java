@@ -1,54 +1,34 @@
 package oneandone.fileservice.server.cache;
 
-import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.stereotype.Component;
 
-import oneandone.fileservice.server.service.impl.NioFilesWrapper;
+import oneandone.fileservice.server.model.FolderStatistics;
 
+/**
+ * Number of files in the root folder and their statistics, derived from the cached names so they follow exactly the
+ * names the {@link StartupIndexer} and the file watcher added and removed.
+ */
 @Component
-public class FileCounterCache implements InitializingBean {
-
-    private long folderFileCount;
-
-    @Value("${rootFolderPath}")
-    private String rootFolderPath;
+@ManagedResource(description = "Statistics of the files in the root folder")
+public class FileCounterCache {
 
     @Autowired
-    private NioFilesWrapper nioFilesWrapper;
-
-    private static final Logger LOG = LoggerFactory.getLogger(FileCounterCache.class);
-
-    @Override
-    public void afterPropertiesSet() throws IOException {
-        Path rootFolder = Paths.get(rootFolderPath).toAbsolutePath().normalize();
-
-        DirectoryStream<Path> directoryStream = nioFilesWrapper.newDirectoryStream(rootFolder);
-
-        directoryStream.forEach((path)-> folderFileCount++);
-
-        LOG.info("There are currently {} files in {}",folderFileCount,rootFolderPath);
-    }
+    private FileNamesCache fileNamesCache;
 
+    @ManagedAttribute(description = "Number of files")
     public long getFolderFileCount() {
-        return folderFileCount;
+        return fileNamesCache.getFileCount();
     }
 
-    public void incrementFolderFileCount(){
-        this.folderFileCount++;
-        LOG.debug("Incremented file counter to: {}", folderFileCount);
+    @ManagedAttribute(description = "Total size of the files in bytes, -1 when not tracked")
+    public long getTotalBytes() {
+        return getFolderStatistics().getTotalBytes();
     }
 
-    public void decrementFolderFileCount(){
-        this.folderFileCount--;
-        LOG.debug("Decremented file counter to: {}",folderFileCount);
+    public FolderStatistics getFolderStatistics() {
+        return fileNamesCache.getStatistics();
     }
 }
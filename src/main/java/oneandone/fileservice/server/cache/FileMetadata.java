@@ -0,0 +1,39 @@
+package oneandone.fileservice.server.cache;
+
+/**
+ * What a stat of a file returned, including that the file doesn't exist.
+ */
+public class FileMetadata {
+
+    private static final FileMetadata MISSING = new FileMetadata(false, 0, 0);
+
+    private final boolean exists;
+    private final long lastModified;
+    private final long size;
+
+    private FileMetadata(boolean exists, long lastModified, long size) {
+        this.exists = exists;
+        this.lastModified = lastModified;
+        this.size = size;
+    }
+
+    public static FileMetadata of(long lastModified, long size) {
+        return new FileMetadata(true, lastModified, size);
+    }
+
+    public static FileMetadata missing() {
+        return MISSING;
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,123 @@
+package oneandone.fileservice.server.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Existence, modification time and size of the files by name, so metadata reads and precondition checks don't stat
+ * the file every time. It is filled by the {@link StartupIndexer}, writes of the service and the file watcher invalidate the changed
+ * names, and an entry is re-read once it is older than {@code metadataCacheMaxAgeMillis}, which bounds how long a
+ * change the watcher didn't report yet can go unnoticed. A negative age trusts the entries until they are invalidated,
+ * zero disables the cache.
+ * <p>
+ * The metadata checkpointed to the index snapshot is restored with the age it had, unless the entries are trusted
+ * until invalidated: the changes made while the service was down weren't reported to anyone.
+ */
+@Component
+@ManagedResource(description = "Cache of file metadata")
+public class FileMetadataCache {
+
+    @Value("${metadataCacheMaxAgeMillis:300000}")
+    private long maxAgeMillis;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public boolean isEnabled() {
+        return maxAgeMillis != 0;
+    }
+
+    /**
+     * Whether checkpointed metadata can be restored, which it can't when the entries are trusted until invalidated.
+     */
+    boolean isRestorable() {
+        return maxAgeMillis > 0;
+    }
+
+    /**
+     * Returns the metadata of the file if it is cached and not older than the configured age, otherwise null.
+     */
+    public FileMetadata get(String name) {
+        Entry entry = entries.get(name);
+
+        if (entry == null || (maxAgeMillis > 0 && System.nanoTime() - entry.loadedAt > TimeUnit.MILLISECONDS.toNanos(maxAgeMillis))) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return entry.metadata;
+    }
+
+    public void put(String name, FileMetadata metadata) {
+        if (maxAgeMillis != 0) {
+            entries.put(name, new Entry(metadata, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Caches metadata read by the startup scan, unless the file was read or written since.
+     */
+    void putScanned(String name, FileMetadata metadata) {
+        if (maxAgeMillis != 0) {
+            entries.putIfAbsent(name, new Entry(metadata, System.nanoTime()));
+        }
+    }
+
+    public void invalidate(String name) {
+        entries.remove(name);
+    }
+
+    /**
+     * Returns the entry of the name to checkpoint, without metadata when none is cached.
+     */
+    IndexSnapshot.Entry export(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return new IndexSnapshot.Entry(name, null, 0);
+        }
+        long ageMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.loadedAt);
+        return new IndexSnapshot.Entry(name, entry.metadata, System.currentTimeMillis() - ageMillis);
+    }
+
+    void restore(String name, FileMetadata metadata, long loadedAtMillis) {
+        long ageMillis = Math.max(0, System.currentTimeMillis() - loadedAtMillis);
+        if (ageMillis <= maxAgeMillis) {
+            entries.putIfAbsent(name, new Entry(metadata, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(ageMillis)));
+        }
+    }
+
+    @ManagedAttribute(description = "Number of cached entries")
+    public int getSize() {
+        return entries.size();
+    }
+
+    @ManagedAttribute(description = "Number of metadata reads served from the cache")
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @ManagedAttribute(description = "Number of metadata reads which had to stat the file")
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    private static class Entry {
+
+        private final FileMetadata metadata;
+        private final long loadedAt;
+
+        Entry(FileMetadata metadata, long loadedAt) {
+            this.metadata = metadata;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package oneandone.fileservice.server.cache;
+
+import java.util.List;
+
+/**
+ * Storage of the cached file names, selected with {@link FileNamesStorage}. Implementations are safe for concurrent
+ * use.
+ */
+interface FileNameIndex {
+
+    /**
+     * @return false if the name was already present
+     */
+    boolean add(String fileName);
+
+    /**
+     * @return false if the name wasn't present
+     */
+    boolean remove(String fileName);
+
+    boolean contains(String fileName);
+
+    /**
+     * Returns the current names sorted in {@link String#compareTo} order, as an immutable random access list.
+     */
+    List<CharSequence> snapshot();
+}
@@ -1,69 +1,311 @@
 package oneandone.fileservice.server.cache;
 
-import java.nio.file.DirectoryStream;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.InitializingBean;
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import oneandone.fileservice.server.service.impl.NioFilesWrapper;
+import oneandone.fileservice.server.model.FolderStatistics;
 
+/**
+ * Sorted names of the files in the root folder, stored as configured by {@link FileNamesStorage}. Adding and removing
+ * a name is safe while requests list the names: readers get an immutable sorted snapshot, which is only taken again
+ * after the names changed.
+ * <p>
+ * The names are filled by the {@link StartupIndexer} while the file watcher already reports changes. A name the
+ * startup scan read just before the file was deleted mustn't be added after the deletion was applied, so the names
+ * removed during the warm-up are remembered until it ends and skipped by the scan.
+ * <p>
+ * The number of files, the number per extension and the total size of the files are maintained with every name added
+ * or removed, under the same lock, so they can't drift from the names. They are published as an immutable
+ * {@link FolderStatistics} after every change, which readers get without locking. The sizes are reported separately
+ * by whoever read them and only applied to names which are cached. The total size is off by default: tracking it keeps
+ * the size of every file in a map by name, which costs more than the packed names of a folder of millions of files.
+ */
 @Component
-public class FileNamesCache implements InitializingBean {
+public class FileNamesCache {
 
-    @Value("${rootFolderPath}")
-    private String rootFolderPath;
+    private final FileNameIndex fileNameIndex;
 
-    @Autowired
-    private NioFilesWrapper nioFilesWrapper;
+    /**
+     * Incremented after every change of the names.
+     */
+    private final AtomicLong generation = new AtomicLong();
 
-    private List<CharArray> fileNames = new LinkedList<>();
+    private volatile Snapshot snapshot = new Snapshot(-1, Collections.emptyList());
+
+    /**
+     * Names removed since the warm-up began, null once it ended.
+     */
+    private volatile Set<String> removedWhileWarmingUp;
+
+    @Value("${trackTotalBytes:false}")
+    private boolean trackTotalBytes;
+
+    /**
+     * Written while holding the lock, read without it.
+     */
+    private volatile long fileCount;
+
+    private final Map<String, long[]> extensionCounts = new HashMap<>();
+
+    private final Map<String, Long> fileSizes = new HashMap<>();
+
+    private long totalBytes;
+
+    /**
+     * Statistics as of the latest change, null until the first change.
+     */
+    private volatile FolderStatistics statistics;
 
     private static final Logger LOG = LoggerFactory.getLogger(FileNamesCache.class);
 
-    public List<CharArray> getFileNames() {
-        return fileNames;
+    public FileNamesCache(@Value("${fileNamesStorage:OBJECTS}") FileNamesStorage fileNamesStorage) {
+        this.fileNameIndex = fileNamesStorage.createIndex();
+        LOG.info("Caching file names with {} storage", fileNamesStorage);
+    }
+
+    /**
+     * Returns the names as of the latest change in {@link String#compareTo} order. The list is immutable, supports
+     * random access and isn't affected by later changes.
+     */
+    public List<CharSequence> getFileNames() {
+        Snapshot current = snapshot;
+
+        if (current.generation == generation.get()) {
+            return current.fileNames;
+        }
+
+        synchronized (this) {
+            current = snapshot;
+            long currentGeneration = generation.get();
+            if (current.generation != currentGeneration) {
+                // Changes made while copying bump the generation again, so they are picked up by the next read.
+                current = new Snapshot(currentGeneration, fileNameIndex.snapshot());
+                snapshot = current;
+            }
+            return current.fileNames;
+        }
+    }
+
+    /**
+     * Whether the name is cached, as of the latest change.
+     */
+    public boolean contains(String fileName) {
+        return fileNameIndex.contains(fileName);
     }
 
-    public void addFileName(String fileName){
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Returns the number of cached names, without locking.
+     */
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Returns the statistics as of the latest change, without locking.
+     */
+    public FolderStatistics getStatistics() {
+        FolderStatistics current = statistics;
+        return current != null ? current : new FolderStatistics(0, trackTotalBytes ? 0 : -1, Collections.emptyMap());
+    }
+
+    public boolean isTrackingTotalBytes() {
+        return trackTotalBytes;
+    }
+
+    /**
+     * Sets the sizes of the files whose names are cached, the sizes of other names are ignored.
+     */
+    public synchronized void updateSizes(Map<String, Long> sizes) {
+        if (!trackTotalBytes) {
+            return;
+        }
+        long previousTotalBytes = totalBytes;
+        sizes.forEach((fileName, size) -> {
+            Long previousSize = fileSizes.get(fileName);
+            if (previousSize != null) {
+                fileSizes.put(fileName, size);
+                totalBytes += size - previousSize;
+            }
+        });
+        if (totalBytes != previousTotalBytes) {
+            publishStatistics();
+        }
+    }
+
+    /**
+     * @return false when the name was already cached
+     */
+    public synchronized boolean addFileName(String fileName){
         LOG.debug("Caching file name: {}",fileName);
-        fileNames.add(getCharArrayFromString(fileName));
+        forgetRemoved(fileName);
+        if (fileNameIndex.add(fileName)) {
+            countAdded(fileName);
+            generation.incrementAndGet();
+            publishStatistics();
+            return true;
+        }
+        return false;
     }
 
-    public void removeFileName(String fileName){
+    /**
+     * Holds the lock of {@link #addScanned}, so a chunk of the scan can't add the name back between the check of the
+     * removed names and the add.
+     *
+     * @return false when the name wasn't cached
+     */
+    public synchronized boolean removeFileName(String fileName){
         LOG.debug("Removing file name {} from cache",fileName);
-        fileNames.remove(getCharArrayFromString(fileName));
+        rememberRemoved(fileName);
+        if (fileNameIndex.remove(fileName)) {
+            countRemoved(fileName);
+            generation.incrementAndGet();
+            publishStatistics();
+            return true;
+        }
+        return false;
     }
 
-    @Override
-    public void afterPropertiesSet() throws Exception {
+    /**
+     * Adds and removes the names as one change: readers see none or all of them and the generation changes once.
+     *
+     * @return the number of names added minus the number of names removed
+     */
+    public synchronized long update(Collection<String> addedFileNames, Collection<String> removedFileNames) {
+        long difference = 0;
+        boolean changed = false;
 
-        LOG.info("Initializing File Name Cache");
+        for (String fileName : addedFileNames) {
+            forgetRemoved(fileName);
+            if (fileNameIndex.add(fileName)) {
+                countAdded(fileName);
+                difference++;
+                changed = true;
+            }
+        }
+        for (String fileName : removedFileNames) {
+            rememberRemoved(fileName);
+            if (fileNameIndex.remove(fileName)) {
+                countRemoved(fileName);
+                difference--;
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            generation.incrementAndGet();
+            publishStatistics();
+        }
+        LOG.debug("Cached {} and removed {} file names", addedFileNames.size(), removedFileNames.size());
+        return difference;
+    }
+
+    void beginWarmUp() {
+        removedWhileWarmingUp = ConcurrentHashMap.newKeySet();
+    }
+
+    void endWarmUp() {
+        removedWhileWarmingUp = null;
+    }
+
+    /**
+     * Adds the names found by the startup scan as one change, except those removed since the warm-up began.
+     *
+     * @return the number of names added
+     */
+    synchronized long addScanned(Collection<String> scannedFileNames) {
+        Set<String> removed = removedWhileWarmingUp;
+        long added = 0;
+
+        for (String fileName : scannedFileNames) {
+            if ((removed == null || !removed.contains(fileName)) && fileNameIndex.add(fileName)) {
+                countAdded(fileName);
+                added++;
+            }
+        }
+
+        if (added > 0) {
+            generation.incrementAndGet();
+            publishStatistics();
+        }
+        return added;
+    }
 
-        Path rootFolder = Paths.get(rootFolderPath).toAbsolutePath().normalize();
+    private void countAdded(String fileName) {
+        fileCount++;
+        extensionCounts.computeIfAbsent(extensionOf(fileName), extension -> new long[1])[0]++;
+        if (trackTotalBytes) {
+            fileSizes.put(fileName, 0L);
+        }
+    }
 
-        DirectoryStream<Path> directoryStream = nioFilesWrapper.newDirectoryStream(rootFolder);
+    private void countRemoved(String fileName) {
+        fileCount--;
+        String extension = extensionOf(fileName);
+        long[] count = extensionCounts.get(extension);
+        if (--count[0] == 0) {
+            extensionCounts.remove(extension);
+        }
+        Long size = fileSizes.remove(fileName);
+        if (size != null) {
+            totalBytes -= size;
+        }
+    }
 
-        directoryStream.forEach((path)-> this.fileNames.add(getCharArrayFromString(path.getFileName().toString())));
+    private void publishStatistics() {
+        Map<String, Long> counts = new TreeMap<>();
+        extensionCounts.forEach((extension, count) -> counts.put(extension, count[0]));
+        statistics = new FolderStatistics(fileCount, trackTotalBytes ? totalBytes : -1, counts);
+    }
 
-        LOG.info("File Name Cache Initialization Complete");
+    static String extensionOf(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot <= 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
     }
 
-    private CharArray getCharArrayFromString(String s){
+    boolean isRemovedWhileWarmingUp(String fileName) {
+        Set<String> removed = removedWhileWarmingUp;
+        return removed != null && removed.contains(fileName);
+    }
 
-        char[] ch = new char[s.length()];
+    private void rememberRemoved(String fileName) {
+        Set<String> removed = removedWhileWarmingUp;
+        if (removed != null) {
+            removed.add(fileName);
+        }
+    }
 
-        for (int i = 0; i < s.length(); i++) {
-            ch[i] = s.charAt(i);
+    private void forgetRemoved(String fileName) {
+        Set<String> removed = removedWhileWarmingUp;
+        if (removed != null) {
+            removed.remove(fileName);
         }
+    }
 
-        return new CharArray(ch,0,s.length(),false);
+    private static class Snapshot {
+
+        private final long generation;
+        private final List<CharSequence> fileNames;
+
+        Snapshot(long generation, List<CharSequence> fileNames) {
+            this.generation = generation;
+            this.fileNames = fileNames;
+        }
     }
 }
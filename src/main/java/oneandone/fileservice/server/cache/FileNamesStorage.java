@@ -0,0 +1,39 @@
+package oneandone.fileservice.server.cache;
+
+/**
+ * How the file names cache stores the names, set with the {@code fileNamesStorage} property.
+ */
+public enum FileNamesStorage {
+
+    /**
+     * One String per name in a concurrent skip list, the fastest to update.
+     */
+    OBJECTS {
+        @Override
+        FileNameIndex createIndex() {
+            return new SkipListFileNameIndex();
+        }
+    },
+
+    /**
+     * All names packed in a single byte array, for stores with millions of files.
+     */
+    PACKED {
+        @Override
+        FileNameIndex createIndex() {
+            return new PackedFileNameIndex(false);
+        }
+    },
+
+    /**
+     * Like {@link #PACKED}, with the names stored outside of the heap.
+     */
+    PACKED_OFF_HEAP {
+        @Override
+        FileNameIndex createIndex() {
+            return new PackedFileNameIndex(true);
+        }
+    };
+
+    abstract FileNameIndex createIndex();
+}
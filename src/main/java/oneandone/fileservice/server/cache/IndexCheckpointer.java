@@ -0,0 +1,78 @@
+package oneandone.fileservice.server.cache;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically checkpoints the cached names and metadata to the index snapshot file, and once more on shutdown, so a
+ * restart restores them instead of scanning the root folder. An index still warming up isn't checkpointed.
+ */
+@Component
+public class IndexCheckpointer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexCheckpointer.class);
+
+    @Autowired
+    private IndexSnapshotStore indexSnapshotStore;
+
+    @Autowired
+    private FileNamesCache fileNamesCache;
+
+    @Autowired
+    private FileMetadataCache fileMetadataCache;
+
+    @Autowired
+    private StartupIndexer startupIndexer;
+
+    @Value("${indexSnapshotIntervalMillis:600000}")
+    private long intervalMillis;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    void init() {
+        if (!indexSnapshotStore.isEnabled()) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "index-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::checkpoint, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        LOG.info("Checkpointing the index every {} ms", intervalMillis);
+    }
+
+    @PreDestroy
+    void destroy() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        checkpoint();
+    }
+
+    void checkpoint() {
+        if (!startupIndexer.isIndexed()) {
+            LOG.info("Skipping the checkpoint, the index is still warming up");
+            return;
+        }
+        try {
+            indexSnapshotStore.save(fileNamesCache::getFileNames, fileMetadataCache::export);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Couldn't checkpoint the index", e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package oneandone.fileservice.server.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import oneandone.fileservice.server.service.impl.NioFilesWrapper;
+
+/**
+ * Names of the files in the root folder with their cached metadata, as checkpointed to the index snapshot file. The
+ * names are sorted, so each one is stored as the length of the prefix it shares with the previous name followed by the
+ * rest of it.
+ */
+final class IndexSnapshot {
+
+    private static final int MAGIC = 0x46494458;
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Modification time of a folder whose names can't be trusted without listing it.
+     */
+    static final long UNKNOWN_LAST_MODIFIED = -1;
+
+    private final long createdAtMillis;
+    private final long folderLastModified;
+    private final List<Entry> entries;
+
+    IndexSnapshot(long createdAtMillis, long folderLastModified, List<Entry> entries) {
+        this.createdAtMillis = createdAtMillis;
+        this.folderLastModified = folderLastModified;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    long getCreatedAtMillis() {
+        return createdAtMillis;
+    }
+
+    /**
+     * Modification time of the root folder when its names were captured, or {@link #UNKNOWN_LAST_MODIFIED}.
+     */
+    long getFolderLastModified() {
+        return folderLastModified;
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    static IndexSnapshot read(NioFilesWrapper nioFilesWrapper, Path file) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(nioFilesWrapper.newInputStream(file), BUFFER_SIZE))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unsupported index snapshot " + file);
+            }
+
+            long createdAtMillis = input.readLong();
+            long folderLastModified = input.readLong();
+            int size = input.readInt();
+
+            List<Entry> entries = new ArrayList<>(size);
+            String previousName = "";
+            for (int i = 0; i < size; i++) {
+                int sharedLength = input.readUnsignedShort();
+                if (sharedLength > previousName.length()) {
+                    throw new IOException("Corrupt index snapshot " + file);
+                }
+                String name = previousName.substring(0, sharedLength) + input.readUTF();
+
+                if (input.readBoolean()) {
+                    FileMetadata metadata = FileMetadata.of(input.readLong(), input.readLong());
+                    entries.add(new Entry(name, metadata, input.readLong()));
+                } else {
+                    entries.add(new Entry(name, null, 0));
+                }
+                previousName = name;
+            }
+
+            return new IndexSnapshot(createdAtMillis, folderLastModified, entries);
+        }
+    }
+
+    /**
+     * Writes the entries of the sorted names to a temporary file first, which then replaces the snapshot file
+     * atomically, so a crash while writing leaves the previous snapshot intact.
+     */
+    static void write(NioFilesWrapper nioFilesWrapper, Path file, long createdAtMillis, long folderLastModified,
+                      List<? extends CharSequence> sortedFileNames, Function<String, Entry> entryOf) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(nioFilesWrapper.newOutputStream(tempFile), BUFFER_SIZE))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(createdAtMillis);
+            output.writeLong(folderLastModified);
+            output.writeInt(sortedFileNames.size());
+
+            String previousName = "";
+            for (CharSequence fileName : sortedFileNames) {
+                String name = fileName.toString();
+                int sharedLength = sharedPrefixLength(previousName, name);
+                output.writeShort(sharedLength);
+                output.writeUTF(name.substring(sharedLength));
+
+                Entry entry = entryOf.apply(name);
+                output.writeBoolean(entry.metadata != null);
+                if (entry.metadata != null) {
+                    output.writeLong(entry.metadata.getLastModified());
+                    output.writeLong(entry.metadata.getSize());
+                    output.writeLong(entry.loadedAtMillis);
+                }
+                previousName = name;
+            }
+        }
+
+        nioFilesWrapper.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int sharedPrefixLength(String first, String second) {
+        int maxLength = Math.min(0xFFFF, Math.min(first.length(), second.length()));
+        int length = 0;
+        while (length < maxLength && first.charAt(length) == second.charAt(length)) {
+            length++;
+        }
+        // A surrogate pair isn't split, the rest of the name must be valid on its own.
+        if (length > 0 && Character.isHighSurrogate(first.charAt(length - 1))) {
+            length--;
+        }
+        return length;
+    }
+
+    /**
+     * A file name with its metadata and the time the metadata was read, or without metadata when it wasn't cached.
+     */
+    static final class Entry {
+
+        private final String name;
+        private final FileMetadata metadata;
+        private final long loadedAtMillis;
+
+        Entry(String name, FileMetadata metadata, long loadedAtMillis) {
+            this.name = name;
+            this.metadata = metadata;
+            this.loadedAtMillis = loadedAtMillis;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        FileMetadata getMetadata() {
+            return metadata;
+        }
+
+        long getLoadedAtMillis() {
+            return loadedAtMillis;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package oneandone.fileservice.server.cache;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import oneandone.fileservice.server.exception.ServerException;
+import oneandone.fileservice.server.service.impl.FileLayout;
+import oneandone.fileservice.server.service.impl.NioFilesWrapper;
+
+/**
+ * Reads and writes the index snapshot file, which lets the caches start from the checkpointed names and metadata
+ * instead of listing and stat-ing the whole root folder. Creating, deleting or renaming a file changes the modification
+ * time of the folder, so when it is the one recorded in the snapshot the names are still current and the folder isn't
+ * listed at all. Otherwise it is listed once, and only the metadata of the names still there is kept.
+ * <p>
+ * A folder modified shortly before the snapshot was taken may be modified again within the resolution of its
+ * modification time, so its names aren't trusted and it is listed on restore. The files of the sharded layout or of
+ * several root folders live in folders whose changes don't show in the modification time of a single folder, so the
+ * folders are always listed then.
+ */
+@Component
+public class IndexSnapshotStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexSnapshotStore.class);
+
+    /**
+     * A folder modified more recently than this before a checkpoint is listed on restore. It also covers the delay of
+     * the file watcher in applying changes to the cached names.
+     */
+    private static final long RACY_MODIFICATION_MILLIS = 10000;
+
+    /**
+     * Empty when the index isn't checkpointed.
+     */
+    @Value("${indexSnapshotFile:}")
+    private String indexSnapshotFile;
+
+    @Autowired
+    private NioFilesWrapper nioFilesWrapper;
+
+    @Autowired
+    private FileLayout fileLayout;
+
+    public boolean isEnabled() {
+        return !indexSnapshotFile.isEmpty();
+    }
+
+    /**
+     * Returns the current names of the root folder with the metadata checkpointed for them, or null when there is no
+     * usable snapshot.
+     */
+    IndexSnapshot restore() {
+        return load();
+    }
+
+    /**
+     * Checkpoints the names with the entries returned for them. The modification time of the folder is read before
+     * the names are taken.
+     */
+    void save(Supplier<List<? extends CharSequence>> sortedFileNames, Function<String, IndexSnapshot.Entry> entryOf)
+            throws IOException {
+        long createdAtMillis = System.currentTimeMillis();
+        long folderLastModified = readFolderLastModified();
+        if (!fileLayout.isSingleFolder() || createdAtMillis - folderLastModified < RACY_MODIFICATION_MILLIS) {
+            folderLastModified = IndexSnapshot.UNKNOWN_LAST_MODIFIED;
+        }
+
+        List<? extends CharSequence> fileNames = sortedFileNames.get();
+        IndexSnapshot.write(nioFilesWrapper, getSnapshotFile(), createdAtMillis, folderLastModified, fileNames, entryOf);
+
+        LOG.info("Checkpointed {} file names to {} in {} ms", fileNames.size(), indexSnapshotFile,
+                System.currentTimeMillis() - createdAtMillis);
+    }
+
+    private IndexSnapshot load() {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        Path snapshotFile = getSnapshotFile();
+        for (Path rootFolder : fileLayout.getRootFolders()) {
+            if (snapshotFile.startsWith(rootFolder)) {
+                throw new ServerException("The index snapshot file must not be in the folder of the files");
+            }
+        }
+        if (!nioFilesWrapper.exists(snapshotFile)) {
+            LOG.info("No index snapshot in {}, the folder is listed", snapshotFile);
+            return null;
+        }
+
+        try {
+            long startedAt = System.currentTimeMillis();
+            IndexSnapshot snapshot = IndexSnapshot.read(nioFilesWrapper, snapshotFile);
+
+            if (fileLayout.isSingleFolder() && snapshot.getFolderLastModified() != IndexSnapshot.UNKNOWN_LAST_MODIFIED
+                    && snapshot.getFolderLastModified() == readFolderLastModified()) {
+                LOG.info("Restored {} unchanged file names from the index snapshot in {} ms",
+                        snapshot.getEntries().size(), System.currentTimeMillis() - startedAt);
+                return snapshot;
+            }
+
+            IndexSnapshot reconciled = reconcile(snapshot);
+            LOG.info("Restored the index snapshot and listed {} file names in {} ms", reconciled.getEntries().size(),
+                    System.currentTimeMillis() - startedAt);
+            return reconciled;
+        } catch (IOException e) {
+            LOG.warn("Couldn't restore the index snapshot {}, the folder is listed", snapshotFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Lists the folder and keeps the checkpointed metadata of the names which are still there.
+     */
+    private IndexSnapshot reconcile(IndexSnapshot snapshot) throws IOException {
+        Map<String, IndexSnapshot.Entry> checkpointedEntries = new HashMap<>();
+        for (IndexSnapshot.Entry entry : snapshot.getEntries()) {
+            if (entry.getMetadata() != null) {
+                checkpointedEntries.put(entry.getName(), entry);
+            }
+        }
+
+        List<IndexSnapshot.Entry> entries = new ArrayList<>();
+        fileLayout.forEachFile(path -> {
+            String name = path.getFileName().toString();
+            IndexSnapshot.Entry entry = checkpointedEntries.get(name);
+            entries.add(entry != null ? entry : new IndexSnapshot.Entry(name, null, 0));
+        });
+
+        return new IndexSnapshot(snapshot.getCreatedAtMillis(), IndexSnapshot.UNKNOWN_LAST_MODIFIED, entries);
+    }
+
+    private long readFolderLastModified() throws IOException {
+        return nioFilesWrapper.readAttributes(fileLayout.getRootFolders().get(0)).lastModifiedTime().toMillis();
+    }
+
+    private Path getSnapshotFile() {
+        return Paths.get(indexSnapshotFile).toAbsolutePath().normalize();
+    }
+}
@@ -0,0 +1,223 @@
+package oneandone.fileservice.server.cache;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Names kept in {@link PackedNames}, with the changes since it was packed held aside: added names in a sorted set and
+ * removed ones as a bit per packed index. A snapshot copies only these changes and merges them with the packed names
+ * on access, so its cost depends on the number of changes rather than on the number of names.
+ * <p>
+ * When the changes grow too large they are merged into a new packed buffer by a background thread, from a snapshot and
+ * without holding the lock. The changes made meanwhile are remembered by name and carried over to the new buffer.
+ */
+class PackedFileNameIndex implements FileNameIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PackedFileNameIndex.class);
+
+    private static final int MIN_PENDING_CHANGES = 4096;
+
+    private static final ExecutorService PACKER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "file-names-packer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final boolean offHeap;
+
+    private PackedNames packedNames;
+    private NavigableSet<String> added = new TreeSet<>();
+    private BitSet removed = new BitSet();
+    private int pendingChanges;
+
+    /**
+     * Names changed while a repack runs, null while none runs.
+     */
+    private Set<String> changedWhileRepacking;
+
+    PackedFileNameIndex(boolean offHeap) {
+        this.offHeap = offHeap;
+        this.packedNames = PackedNames.pack(added, offHeap);
+    }
+
+    @Override
+    public synchronized boolean add(String fileName) {
+        int index = packedNames.indexOf(fileName);
+        boolean changed;
+        if (index >= 0) {
+            changed = removed.get(index);
+            removed.clear(index);
+        } else {
+            changed = added.add(fileName);
+        }
+        return changed && changed(fileName);
+    }
+
+    @Override
+    public synchronized boolean remove(String fileName) {
+        boolean changed = added.remove(fileName);
+        if (!changed) {
+            int index = packedNames.indexOf(fileName);
+            changed = index >= 0 && !removed.get(index);
+            if (changed) {
+                removed.set(index);
+            }
+        }
+        return changed && changed(fileName);
+    }
+
+    @Override
+    public synchronized boolean contains(String fileName) {
+        if (added.contains(fileName)) {
+            return true;
+        }
+        int index = packedNames.indexOf(fileName);
+        return index >= 0 && !removed.get(index);
+    }
+
+    @Override
+    public synchronized List<CharSequence> snapshot() {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return packedNames;
+        }
+        return new MergedNames(packedNames, added.toArray(new String[0]), removed.stream().toArray());
+    }
+
+    private boolean changed(String fileName) {
+        if (changedWhileRepacking != null) {
+            changedWhileRepacking.add(fileName);
+        } else if (++pendingChanges > Math.max(MIN_PENDING_CHANGES, packedNames.size() / 16)) {
+            List<CharSequence> fileNames = snapshot();
+            changedWhileRepacking = new HashSet<>();
+            PACKER.execute(() -> repack(fileNames));
+        }
+        return true;
+    }
+
+    private void repack(List<CharSequence> fileNames) {
+        PackedNames repacked;
+        try {
+            repacked = PackedNames.pack(fileNames, offHeap);
+        } catch (RuntimeException e) {
+            LOG.error("Couldn't repack {} file names", fileNames.size(), e);
+            synchronized (this) {
+                changedWhileRepacking = null;
+            }
+            return;
+        }
+        synchronized (this) {
+            NavigableSet<String> addedToRepacked = new TreeSet<>();
+            BitSet removedFromRepacked = new BitSet();
+            for (String fileName : changedWhileRepacking) {
+                boolean present = contains(fileName);
+                int index = repacked.indexOf(fileName);
+                if (present && index < 0) {
+                    addedToRepacked.add(fileName);
+                } else if (!present && index >= 0) {
+                    removedFromRepacked.set(index);
+                }
+            }
+            packedNames = repacked;
+            added = addedToRepacked;
+            removed = removedFromRepacked;
+            pendingChanges = added.size() + removed.cardinality();
+            changedWhileRepacking = null;
+        }
+    }
+
+    /**
+     * Immutable view of the packed names which weren't removed merged with the added ones. The position of every added
+     * name is computed up front, so a name is found by two binary searches.
+     */
+    private static final class MergedNames extends AbstractList<CharSequence> implements RandomAccess {
+
+        private final PackedNames packedNames;
+        private final String[] addedNames;
+        private final int[] removedIndexes;
+
+        /**
+         * Position of each added name in this list, ascending.
+         */
+        private final int[] addedPositions;
+
+        MergedNames(PackedNames packedNames, String[] addedNames, int[] removedIndexes) {
+            this.packedNames = packedNames;
+            this.addedNames = addedNames;
+            this.removedIndexes = removedIndexes;
+            this.addedPositions = new int[addedNames.length];
+            for (int i = 0; i < addedNames.length; i++) {
+                int packedIndex = packedInsertionPoint(addedNames[i]);
+                int removedBefore = Arrays.binarySearch(removedIndexes, packedIndex);
+                if (removedBefore < 0) {
+                    removedBefore = -removedBefore - 1;
+                }
+                addedPositions[i] = packedIndex - removedBefore + i;
+            }
+        }
+
+        @Override
+        public CharSequence get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+            }
+            int addedIndex = Arrays.binarySearch(addedPositions, index);
+            if (addedIndex >= 0) {
+                return addedNames[addedIndex];
+            }
+            int packedRank = index + addedIndex + 1;
+            return packedNames.get(packedRank + removedUpTo(packedRank));
+        }
+
+        @Override
+        public int size() {
+            return packedNames.size() - removedIndexes.length + addedNames.length;
+        }
+
+        /**
+         * @return the number of packed names before the name, which isn't packed
+         */
+        private int packedInsertionPoint(String name) {
+            int low = 0;
+            int high = packedNames.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (CharSequences.compare(packedNames.get(middle), name) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return the number of removed packed names before the packed name with the given rank among the kept ones
+         */
+        private int removedUpTo(int packedRank) {
+            // removedIndexes[i] - i is the number of kept names before the i-th removed one, ascending
+            int low = 0;
+            int high = removedIndexes.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (removedIndexes[middle] - middle <= packedRank) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package oneandone.fileservice.server.cache;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * Immutable sorted names packed one after the other in a single buffer, with an offset table and an open addressing
+ * hash table of indexes for lookups. Names are stored as Latin-1 when all of them fit, as UTF-16 otherwise, so
+ * {@link CharSequence#charAt} stays O(1) on the packed bytes. The elements are views on the buffer, regexes match
+ * them without copying.
+ */
+final class PackedNames extends AbstractList<CharSequence> implements RandomAccess {
+
+    private final ByteBuffer arena;
+    private final boolean latin1;
+
+    /**
+     * Start of every name in characters, followed by the end of the last one.
+     */
+    private final int[] offsets;
+
+    /**
+     * Index + 1 of the name hashed to the slot, 0 for an empty slot.
+     */
+    private final int[] slots;
+
+    private PackedNames(ByteBuffer arena, boolean latin1, int[] offsets) {
+        this.arena = arena;
+        this.latin1 = latin1;
+        this.offsets = offsets;
+        this.slots = new int[tableSize(offsets.length - 1)];
+
+        for (int i = 0; i < size(); i++) {
+            int slot = spread(CharSequences.hash(get(i))) & (slots.length - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    /**
+     * Packs the names, which the iterable returns twice in the same sorted order.
+     */
+    static PackedNames pack(Iterable<? extends CharSequence> sortedNames, boolean offHeap) {
+        int count = 0;
+        long characters = 0;
+        boolean latin1 = true;
+        for (CharSequence name : sortedNames) {
+            count++;
+            characters += name.length();
+            for (int i = 0; latin1 && i < name.length(); i++) {
+                latin1 = name.charAt(i) <= 0xFF;
+            }
+        }
+
+        long bytes = latin1 ? characters : characters * 2;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The file names don't fit in a packed buffer: " + bytes + " bytes");
+        }
+
+        ByteBuffer arena = offHeap ? ByteBuffer.allocateDirect((int) bytes) : ByteBuffer.allocate((int) bytes);
+        int[] offsets = new int[count + 1];
+        int index = 0;
+        int offset = 0;
+        for (CharSequence name : sortedNames) {
+            offsets[index++] = offset;
+            for (int i = 0; i < name.length(); i++) {
+                if (latin1) {
+                    arena.put(offset + i, (byte) name.charAt(i));
+                } else {
+                    arena.putChar((offset + i) * 2, name.charAt(i));
+                }
+            }
+            offset += name.length();
+        }
+        offsets[count] = offset;
+
+        return new PackedNames(arena, latin1, offsets);
+    }
+
+    /**
+     * @return the index of the name or -1
+     */
+    int indexOf(CharSequence name) {
+        int slot = spread(CharSequences.hash(name)) & (slots.length - 1);
+        while (slots[slot] != 0) {
+            int index = slots[slot] - 1;
+            if (contentEquals(index, name)) {
+                return index;
+            }
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        return -1;
+    }
+
+    @Override
+    public CharSequence get(int index) {
+        return new PackedName(offsets[index], offsets[index + 1] - offsets[index]);
+    }
+
+    @Override
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    private boolean contentEquals(int index, CharSequence name) {
+        int start = offsets[index];
+        if (offsets[index + 1] - start != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (charAt(start + i) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private char charAt(int position) {
+        return latin1 ? (char) (arena.get(position) & 0xFF) : arena.getChar(position * 2);
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Power of two keeping the load factor between 1/3 and 2/3.
+     */
+    private static int tableSize(int count) {
+        int minimum = Math.max(2, count + count / 2);
+        return Integer.highestOneBit(minimum - 1) << 1;
+    }
+
+    private final class PackedName implements CharSequence {
+
+        private final int start;
+        private final int length;
+
+        PackedName(int start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", length: " + length);
+            }
+            return PackedNames.this.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("Start: " + start + ", end: " + end + ", length: " + length);
+            }
+            return new PackedName(this.start + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            char[] characters = new char[length];
+            for (int i = 0; i < length; i++) {
+                characters[i] = PackedNames.this.charAt(start + i);
+            }
+            return new String(characters);
+        }
+    }
+}
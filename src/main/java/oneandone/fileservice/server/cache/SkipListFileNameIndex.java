@@ -0,0 +1,35 @@
+package oneandone.fileservice.server.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Names as Strings in a concurrent skip list, updated in O(log n) without locking.
+ */
+class SkipListFileNameIndex implements FileNameIndex {
+
+    private final NavigableSet<String> fileNames = new ConcurrentSkipListSet<>();
+
+    @Override
+    public boolean add(String fileName) {
+        return fileNames.add(fileName);
+    }
+
+    @Override
+    public boolean remove(String fileName) {
+        return fileNames.remove(fileName);
+    }
+
+    @Override
+    public boolean contains(String fileName) {
+        return fileNames.contains(fileName);
+    }
+
+    @Override
+    public List<CharSequence> snapshot() {
+        return Collections.unmodifiableList(Arrays.asList(fileNames.toArray(new CharSequence[0])));
+    }
+}
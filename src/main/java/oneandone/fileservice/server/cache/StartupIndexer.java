@@ -0,0 +1,260 @@
+package oneandone.fileservice.server.cache;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import oneandone.fileservice.server.exception.ServerException;
+import oneandone.fileservice.server.service.impl.FileLayout;
+import oneandone.fileservice.server.service.impl.NioFilesWrapper;
+
+/**
+ * Fills the file names with their statistics and the metadata cache from a single listing of the root folders, or from
+ * the index snapshot when there is one. The names are added in chunks as they are listed, while the metadata of the
+ * listed files is read by a pool of threads.
+ * <p>
+ * The index is built once the context is refreshed, when the file watcher already reports changes but the web server
+ * isn't started yet. By default it is built in the background, so the server starts serving while it is warming up;
+ * with {@code indexInBackground=false} the startup waits for it.
+ */
+@Component
+@ManagedResource(description = "Startup scan of the root folders")
+public class StartupIndexer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartupIndexer.class);
+
+    private static final int CHUNK_SIZE = 1024;
+
+    @Value("${indexInBackground:true}")
+    private boolean indexInBackground;
+
+    /**
+     * Threads reading the metadata of the listed files, zero for one per processor.
+     */
+    @Value("${startupScanThreads:0}")
+    private int startupScanThreads;
+
+    @Autowired
+    private FileNamesCache fileNamesCache;
+
+    @Autowired
+    private FileMetadataCache fileMetadataCache;
+
+    @Autowired
+    private IndexSnapshotStore indexSnapshotStore;
+
+    @Autowired
+    private NioFilesWrapper nioFilesWrapper;
+
+    @Autowired
+    private FileLayout fileLayout;
+
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private volatile boolean indexed;
+
+    @EventListener(ContextRefreshedEvent.class)
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+
+        fileNamesCache.beginWarmUp();
+
+        if (indexInBackground) {
+            Thread thread = new Thread(this::indexInBackground, "startup-indexer");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            try {
+                index();
+            } catch (IOException e) {
+                throw new ServerException("Couldn't index " + fileLayout.getRootFolders(), e);
+            } finally {
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * Waits up to the given time for the index to be built.
+     *
+     * @return whether the index is complete
+     */
+    public boolean awaitIndexed(long timeoutMillis) {
+        try {
+            finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return indexed;
+    }
+
+    @ManagedAttribute(description = "Whether the startup scan is complete")
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    private void indexInBackground() {
+        try {
+            index();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Couldn't index {}, the cached names are incomplete", fileLayout.getRootFolders(), e);
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    void index() throws IOException {
+        long startedAt = System.currentTimeMillis();
+
+        ExecutorService metadataReaders = fileMetadataCache.isEnabled() || fileNamesCache.isTrackingTotalBytes()
+                ? createMetadataReaders() : null;
+        List<Future<?>> metadataReads = new ArrayList<>();
+
+        try {
+            IndexSnapshot indexSnapshot = indexSnapshotStore.restore();
+            if (indexSnapshot != null) {
+                restore(indexSnapshot, metadataReaders, metadataReads);
+            } else {
+                scan(metadataReaders, metadataReads);
+            }
+
+            for (Future<?> metadataRead : metadataReads) {
+                metadataRead.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerException("Interrupted while indexing " + fileLayout.getRootFolders(), e);
+        } catch (ExecutionException e) {
+            throw new ServerException("Couldn't read the metadata of the files in " + fileLayout.getRootFolders(), e.getCause());
+        } finally {
+            if (metadataReaders != null) {
+                metadataReaders.shutdownNow();
+            }
+        }
+
+        fileNamesCache.endWarmUp();
+        indexed = true;
+
+        LOG.info("Indexed {} files in {} in {} ms", fileNamesCache.getFileCount(), fileLayout.getRootFolders(),
+                System.currentTimeMillis() - startedAt);
+    }
+
+    /**
+     * Restores the names with the checkpointed metadata, only the files checkpointed without it are read when their
+     * sizes are tracked.
+     */
+    private void restore(IndexSnapshot indexSnapshot, ExecutorService metadataReaders, List<Future<?>> metadataReads) {
+        boolean restoreMetadata = fileMetadataCache.isRestorable();
+        boolean readSizes = metadataReaders != null && fileNamesCache.isTrackingTotalBytes();
+
+        List<String> chunk = new ArrayList<>(CHUNK_SIZE);
+        Map<String, Long> sizes = new HashMap<>();
+        List<Path> unknownSizes = new ArrayList<>();
+        for (IndexSnapshot.Entry entry : indexSnapshot.getEntries()) {
+            String name = entry.getName();
+            if (entry.getMetadata() != null) {
+                sizes.put(name, entry.getMetadata().getSize());
+                if (restoreMetadata && !fileNamesCache.isRemovedWhileWarmingUp(name)) {
+                    fileMetadataCache.restore(name, entry.getMetadata(), entry.getLoadedAtMillis());
+                }
+            } else if (readSizes) {
+                unknownSizes.add(fileLayout.resolve(name));
+            }
+            chunk.add(name);
+
+            if (chunk.size() == CHUNK_SIZE) {
+                fileNamesCache.addScanned(chunk);
+                fileNamesCache.updateSizes(sizes);
+                submit(unknownSizes, metadataReaders, metadataReads);
+                chunk = new ArrayList<>(CHUNK_SIZE);
+                sizes = new HashMap<>();
+                unknownSizes = new ArrayList<>();
+            }
+        }
+        fileNamesCache.addScanned(chunk);
+        fileNamesCache.updateSizes(sizes);
+        submit(unknownSizes, metadataReaders, metadataReads);
+    }
+
+    private void scan(ExecutorService metadataReaders, List<Future<?>> metadataReads) throws IOException {
+        List<Path> chunk = new ArrayList<>(CHUNK_SIZE);
+        fileLayout.forEachFile(path -> {
+            chunk.add(path);
+            if (chunk.size() == CHUNK_SIZE) {
+                addChunk(new ArrayList<>(chunk), metadataReaders, metadataReads);
+                chunk.clear();
+            }
+        });
+        addChunk(chunk, metadataReaders, metadataReads);
+    }
+
+    private void addChunk(List<Path> chunk, ExecutorService metadataReaders, List<Future<?>> metadataReads) {
+        List<String> names = new ArrayList<>(chunk.size());
+        chunk.forEach(path -> names.add(path.getFileName().toString()));
+        fileNamesCache.addScanned(names);
+
+        submit(chunk, metadataReaders, metadataReads);
+    }
+
+    private void submit(List<Path> paths, ExecutorService metadataReaders, List<Future<?>> metadataReads) {
+        if (metadataReaders != null && !paths.isEmpty()) {
+            metadataReads.add(metadataReaders.submit(() -> readMetadata(paths)));
+        }
+    }
+
+    private void readMetadata(List<Path> paths) {
+        Map<String, Long> sizes = new HashMap<>();
+
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            try {
+                BasicFileAttributes attributes = nioFilesWrapper.readAttributes(path);
+                sizes.put(name, attributes.size());
+                if (fileMetadataCache.isEnabled() && !fileNamesCache.isRemovedWhileWarmingUp(name)) {
+                    fileMetadataCache.putScanned(name, FileMetadata.of(attributes.lastModifiedTime().toMillis(), attributes.size()));
+                }
+            } catch (NoSuchFileException e) {
+                LOG.debug("File {} was deleted while indexing", name);
+            } catch (IOException e) {
+                LOG.warn("Couldn't read the metadata of {}, it is read on first access", name, e);
+            }
+        }
+
+        fileNamesCache.updateSizes(sizes);
+    }
+
+    private ExecutorService createMetadataReaders() {
+        int threads = startupScanThreads > 0 ? startupScanThreads : Runtime.getRuntime().availableProcessors();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "startup-indexer-metadata");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -1,28 +1,45 @@
 package oneandone.fileservice.server.config;
 
+import java.io.IOException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.time.Duration;
 
-import javax.annotation.PreDestroy;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.devtools.filewatch.FileChangeListener;
 import org.springframework.boot.devtools.filewatch.FileSystemWatcher;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import oneandone.fileservice.server.cache.FileNamesCache;
+import oneandone.fileservice.server.service.impl.FileLayout;
+import oneandone.fileservice.server.service.impl.FolderWatcher;
+import oneandone.fileservice.server.service.impl.NioFilesWrapper;
+
+/**
+ * Watches the root folders with the watch service of the file system, or with the polling watcher of devtools when
+ * fileWatcher=POLLING, e.g. for network file systems which don't report their changes.
+ */
 @Configuration
 public class FileWatcherConfig {
 
     @Autowired
     private FileChangeListener fileChangeListener;
 
-    @Value("${rootFolderPath}")
-    private String rootFolderPath;
+    @Autowired
+    private FileNamesCache fileNamesCache;
+
+    @Autowired
+    private FileLayout fileLayout;
+
+    @Autowired
+    private NioFilesWrapper nioFilesWrapper;
+
+    @Value("${watcherBatchWindowMillis:100}")
+    private long watcherBatchWindowMillis;
 
     @Value("${folderPoolInterval}")
     private long folderPoolInterval;
@@ -32,21 +49,24 @@ public class FileWatcherConfig {
 
     private static final Logger LOG = LoggerFactory.getLogger(FileWatcherConfig.class);
 
-    @Bean
-    public FileSystemWatcher fileSystemWatcher() {
+    @Bean(initMethod = "start", destroyMethod = "close")
+    @ConditionalOnProperty(name = "fileWatcher", havingValue = "WATCH_SERVICE", matchIfMissing = true)
+    public FolderWatcher folderWatcher() throws IOException {
+        return new FolderWatcher(nioFilesWrapper, fileLayout, fileChangeListener, fileNamesCache,
+                watcherBatchWindowMillis, folderPoolInterval);
+    }
 
-        Path rootFolder = Paths.get(this.rootFolderPath).toAbsolutePath().normalize();
+    @Bean(destroyMethod = "stop")
+    @ConditionalOnProperty(name = "fileWatcher", havingValue = "POLLING")
+    public FileSystemWatcher fileSystemWatcher() {
 
         FileSystemWatcher fileSystemWatcher = new FileSystemWatcher(true, Duration.ofMillis(folderPoolInterval), Duration.ofMillis(folderPoolQuietPeriod));
-        fileSystemWatcher.addSourceFolder(rootFolder.toFile());
+        for (Path rootFolder : fileLayout.getRootFolders()) {
+            fileSystemWatcher.addSourceFolder(rootFolder.toFile());
+        }
         fileSystemWatcher.addListener(fileChangeListener);
         fileSystemWatcher.start();
-        LOG.info("Started watching folder: {}",rootFolder);
+        LOG.info("Started polling folders: {}",fileLayout.getRootFolders());
         return fileSystemWatcher;
     }
-
-    @PreDestroy
-    public void onDestroy() {
-        fileSystemWatcher().stop();
-    }
-}
\ No newline at end of file
+}
@@ -7,5 +7,7 @@ public enum ClientExceptionMessage {
     MISSING_FILE,
     INVALID_REQUEST,
     CONCURRENCY_CONFLICT,
-    FILENAME_CONFLICT
+    FILENAME_CONFLICT,
+    INVALID_REGEX,
+    REGEX_TOO_COMPLEX
 }
@@ -0,0 +1,22 @@
+package oneandone.fileservice.server.lock;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Locks held on one or more file names, released by {@link #close()} so it can be used in try-with-resources.
+ */
+public class FileLock implements AutoCloseable {
+
+    private final Lock[] locks;
+
+    FileLock(Lock[] locks) {
+        this.locks = locks;
+    }
+
+    @Override
+    public void close() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package oneandone.fileservice.server.lock;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Read/write locks per file name, striped over a fixed number of locks selected by the hash of the name. Operations on
+ * the same file are serialized by the writers, while unrelated files only share a lock when their names collide on the
+ * same stripe. The contention counters show whether the number of stripes is too small.
+ */
+@Component
+@ManagedResource(description = "Striped read/write locks on file names")
+public class FileLockManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileLockManager.class);
+
+    private final ReentrantReadWriteLock[] stripes;
+    private final int mask;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contendedAcquisitions = new LongAdder();
+    private final LongAdder contendedWaitNanos = new LongAdder();
+
+    public FileLockManager(@Value("${fileLockStripes:256}") int stripeCount) {
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        this.stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.mask = size - 1;
+        LOG.info("Using {} file lock stripes", size);
+    }
+
+    public FileLock readLock(String name) {
+        Lock lock = stripes[stripeIndex(name)].readLock();
+        acquire(lock);
+        return new FileLock(new Lock[]{lock});
+    }
+
+    /**
+     * Locks all the given names for writing. The stripes are always taken in ascending order, so two writers locking
+     * overlapping names can't deadlock. Null names are ignored.
+     */
+    public FileLock writeLock(String... names) {
+        int[] indexes = Arrays.stream(names)
+                .filter(name -> name != null)
+                .mapToInt(this::stripeIndex)
+                .distinct()
+                .sorted()
+                .toArray();
+
+        Lock[] locks = new Lock[indexes.length];
+        int acquired = 0;
+        try {
+            for (; acquired < indexes.length; acquired++) {
+                locks[acquired] = stripes[indexes[acquired]].writeLock();
+                acquire(locks[acquired]);
+            }
+        } catch (RuntimeException | Error e) {
+            for (int i = acquired - 1; i >= 0; i--) {
+                locks[i].unlock();
+            }
+            throw e;
+        }
+        return new FileLock(locks);
+    }
+
+    private void acquire(Lock lock) {
+        acquisitions.increment();
+        if (lock.tryLock()) {
+            return;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        contendedAcquisitions.increment();
+        contendedWaitNanos.add(System.nanoTime() - start);
+    }
+
+    private int stripeIndex(String name) {
+        int hash = name.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    @ManagedAttribute(description = "Number of lock stripes")
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    @ManagedAttribute(description = "Number of lock acquisitions")
+    public long getAcquisitionCount() {
+        return acquisitions.sum();
+    }
+
+    @ManagedAttribute(description = "Number of lock acquisitions which had to wait for another holder")
+    public long getContendedAcquisitionCount() {
+        return contendedAcquisitions.sum();
+    }
+
+    @ManagedAttribute(description = "Total time spent waiting for contended locks, in milliseconds")
+    public long getContendedWaitMillis() {
+        return contendedWaitNanos.sum() / 1_000_000;
+    }
+}
@@ -16,6 +16,14 @@ public class File {
      * Last modified date used in concurrency control.
      */
     private long lastModified;
+    /**
+     * Size of the file content in bytes.
+     */
+    private long size;
+    /**
+     * Entity tag of the file version. When given in an update it replaces lastModified in concurrency control.
+     */
+    private String eTag;
 
     public String getName() {
         return name;
@@ -41,6 +49,22 @@ public class File {
         this.lastModified = lastModified;
     }
 
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
     @Override
     public String toString() {
         return "File{" +
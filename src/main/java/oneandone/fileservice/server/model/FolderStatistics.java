@@ -0,0 +1,38 @@
+package oneandone.fileservice.server.model;
+
+import java.util.Collections;
+import java.util.Map;
+
+public class FolderStatistics {
+
+    /**
+     * Number of files in the root folder.
+     */
+    private final long fileCount;
+    /**
+     * Sum of the sizes of the files, or -1 when the sizes aren't tracked.
+     */
+    private final long totalBytes;
+    /**
+     * Number of files by lower case extension, files without an extension are counted under the empty extension.
+     */
+    private final Map<String, Long> extensionCounts;
+
+    public FolderStatistics(long fileCount, long totalBytes, Map<String, Long> extensionCounts) {
+        this.fileCount = fileCount;
+        this.totalBytes = totalBytes;
+        this.extensionCounts = Collections.unmodifiableMap(extensionCounts);
+    }
+
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public Map<String, Long> getExtensionCounts() {
+        return extensionCounts;
+    }
+}
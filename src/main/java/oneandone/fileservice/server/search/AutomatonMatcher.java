@@ -0,0 +1,182 @@
+package oneandone.fileservice.server.search;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs an {@link Nfa} over the code points of a name, in time linear in the length of the name whatever the regex.
+ * The sets of automaton states reached are turned into deterministic states on demand and their transitions are
+ * remembered, so names sharing a structure are matched with one lookup per code point. The deterministic states are
+ * dropped when there are too many of them.
+ */
+final class AutomatonMatcher implements NameMatcher {
+
+    private static final int MAX_DETERMINISTIC_STATES = 4096;
+
+    private static final int ASCII = 128;
+
+    private final Nfa nfa;
+
+    private final Map<DeterministicState, DeterministicState> deterministicStates = new HashMap<>();
+    private DeterministicState initial;
+
+    /**
+     * Sparse set of the states reached by the current step, cleared in constant time.
+     */
+    private final int[] dense;
+    private final int[] sparse;
+    private int size;
+    private final int[] stack;
+
+    AutomatonMatcher(Nfa nfa) {
+        this.nfa = nfa;
+        this.dense = new int[nfa.size()];
+        this.sparse = new int[nfa.size()];
+        // A state is pushed at most once per incoming transition, at most two per state.
+        this.stack = new int[2 * nfa.size() + 1];
+    }
+
+    @Override
+    public boolean matches(CharSequence name) {
+        if (initial == null) {
+            size = 0;
+            addClosure(nfa.start);
+            initial = toDeterministicState();
+        }
+
+        DeterministicState state = initial;
+        for (int i = 0; i < name.length() && !state.dead; ) {
+            int codePoint = Character.codePointAt(name, i);
+            i += Character.charCount(codePoint);
+            state = step(state, codePoint);
+        }
+        return state.accepting;
+    }
+
+    private DeterministicState step(DeterministicState state, int codePoint) {
+        DeterministicState next = state.getTransition(codePoint);
+        if (next != null) {
+            return next;
+        }
+
+        size = 0;
+        for (int nfaState : state.nfaStates) {
+            CodePointSet codePoints = nfa.codePoints[nfaState];
+            if (codePoints != null && codePoints.contains(codePoint)) {
+                addClosure(nfa.next[nfaState]);
+            }
+        }
+
+        if (deterministicStates.size() >= MAX_DETERMINISTIC_STATES) {
+            deterministicStates.clear();
+            initial = null;
+        }
+
+        next = toDeterministicState();
+        state.setTransition(codePoint, next);
+        return next;
+    }
+
+    /**
+     * Adds the state and the ones reachable from it without consuming input.
+     */
+    private void addClosure(int nfaState) {
+        int top = 0;
+        stack[top++] = nfaState;
+        while (top > 0) {
+            int state = stack[--top];
+            if (contains(state)) {
+                continue;
+            }
+            sparse[state] = size;
+            dense[size++] = state;
+            if (nfa.codePoints[state] == null && state != nfa.accept) {
+                stack[top++] = nfa.alternative[state];
+                stack[top++] = nfa.next[state];
+            }
+        }
+    }
+
+    private boolean contains(int state) {
+        int index = sparse[state];
+        return index < size && dense[index] == state;
+    }
+
+    /**
+     * Deterministic state of the consuming and accepting states of the current set, the split states don't matter
+     * once their closure was added.
+     */
+    private DeterministicState toDeterministicState() {
+        int[] nfaStates = new int[size];
+        int count = 0;
+        boolean accepting = false;
+        for (int i = 0; i < size; i++) {
+            int state = dense[i];
+            if (nfa.codePoints[state] != null) {
+                nfaStates[count++] = state;
+            } else if (state == nfa.accept) {
+                accepting = true;
+            }
+        }
+        nfaStates = Arrays.copyOf(nfaStates, count);
+        Arrays.sort(nfaStates);
+
+        DeterministicState candidate = new DeterministicState(nfaStates, accepting);
+        DeterministicState existing = deterministicStates.putIfAbsent(candidate, candidate);
+        return existing != null ? existing : candidate;
+    }
+
+    private static final class DeterministicState {
+
+        private final int[] nfaStates;
+        private final boolean accepting;
+        private final boolean dead;
+        private final int hash;
+
+        private DeterministicState[] asciiTransitions;
+        private Map<Integer, DeterministicState> otherTransitions;
+
+        DeterministicState(int[] nfaStates, boolean accepting) {
+            this.nfaStates = nfaStates;
+            this.accepting = accepting;
+            this.dead = nfaStates.length == 0 && !accepting;
+            this.hash = 31 * Arrays.hashCode(nfaStates) + (accepting ? 1 : 0);
+        }
+
+        DeterministicState getTransition(int codePoint) {
+            if (codePoint < ASCII) {
+                return asciiTransitions == null ? null : asciiTransitions[codePoint];
+            }
+            return otherTransitions == null ? null : otherTransitions.get(codePoint);
+        }
+
+        void setTransition(int codePoint, DeterministicState state) {
+            if (codePoint < ASCII) {
+                if (asciiTransitions == null) {
+                    asciiTransitions = new DeterministicState[ASCII];
+                }
+                asciiTransitions[codePoint] = state;
+            } else {
+                if (otherTransitions == null) {
+                    otherTransitions = new HashMap<>();
+                }
+                otherTransitions.put(codePoint, state);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DeterministicState)) {
+                return false;
+            }
+            DeterministicState other = (DeterministicState) o;
+            return accepting == other.accepting && Arrays.equals(nfaStates, other.nfaStates);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package oneandone.fileservice.server.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable set of code points, stored as sorted disjoint inclusive ranges.
+ */
+final class CodePointSet {
+
+    /**
+     * Ranges as consecutive pairs of the first and last code point.
+     */
+    private final int[] ranges;
+
+    private CodePointSet(int[] ranges) {
+        this.ranges = ranges;
+    }
+
+    static CodePointSet of(int... ranges) {
+        List<int[]> pairs = new ArrayList<>();
+        for (int i = 0; i < ranges.length; i += 2) {
+            pairs.add(new int[]{ranges[i], ranges[i + 1]});
+        }
+        return normalize(pairs);
+    }
+
+    static CodePointSet single(int codePoint) {
+        return new CodePointSet(new int[]{codePoint, codePoint});
+    }
+
+    static CodePointSet union(List<CodePointSet> sets) {
+        List<int[]> pairs = new ArrayList<>();
+        for (CodePointSet set : sets) {
+            for (int i = 0; i < set.ranges.length; i += 2) {
+                pairs.add(new int[]{set.ranges[i], set.ranges[i + 1]});
+            }
+        }
+        return normalize(pairs);
+    }
+
+    CodePointSet complement() {
+        int[] complement = new int[ranges.length + 2];
+        int size = 0;
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                complement[size++] = next;
+                complement[size++] = ranges[i] - 1;
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= Character.MAX_CODE_POINT) {
+            complement[size++] = next;
+            complement[size++] = Character.MAX_CODE_POINT;
+        }
+        return new CodePointSet(Arrays.copyOf(complement, size));
+    }
+
+    boolean contains(int codePoint) {
+        int low = 0;
+        int high = ranges.length / 2 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (codePoint < ranges[2 * middle]) {
+                high = middle - 1;
+            } else if (codePoint > ranges[2 * middle + 1]) {
+                low = middle + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the code point if the set holds exactly one, otherwise -1
+     */
+    int singleCodePoint() {
+        return ranges.length == 2 && ranges[0] == ranges[1] ? ranges[0] : -1;
+    }
+
+    private static CodePointSet normalize(List<int[]> pairs) {
+        pairs.sort(Comparator.comparingInt(pair -> pair[0]));
+        int[] ranges = new int[pairs.size() * 2];
+        int size = 0;
+        for (int[] pair : pairs) {
+            if (size > 0 && pair[0] <= ranges[size - 1] + 1) {
+                ranges[size - 1] = Math.max(ranges[size - 1], pair[1]);
+            } else {
+                ranges[size++] = pair[0];
+                ranges[size++] = pair[1];
+            }
+        }
+        return new CodePointSet(Arrays.copyOf(ranges, size));
+    }
+}
@@ -0,0 +1,371 @@
+package oneandone.fileservice.server.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.PatternSyntaxException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import oneandone.fileservice.server.cache.CharSequences;
+import oneandone.fileservice.server.cache.FileNamesCache;
+import oneandone.fileservice.server.exception.ClientException;
+import oneandone.fileservice.server.exception.ClientExceptionMessage;
+
+/**
+ * Lists the cached file names matching a regex. The names are sorted, so a regex starting with a literal prefix is
+ * only matched against the names in the range of that prefix, found by binary search. Ranges from
+ * {@code parallelSearchThreshold} names up are split into chunks matched concurrently on a dedicated fork/join pool.
+ * <p>
+ * The regexes are compiled to {@link NamePattern}s, which match in linear time where they can and otherwise within a
+ * step budget per name and a total growing with the number of names scanned, and the most recently used ones are kept
+ * compiled. The results of the most recent searches are kept as well, tagged with the generation of the names they
+ * were computed from, so repeating a search on unchanged names doesn't scan them again and any change of the names
+ * invalidates all results at once.
+ * <p>
+ * Listings can also be read in pages, resuming after the last name of the previous page, and passed name by name to
+ * the caller without collecting them.
+ */
+@Component
+@ManagedResource(description = "Search of the file names")
+public class FileNameSearch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileNameSearch.class);
+
+    /**
+     * Chunks smaller than this aren't worth a task of their own.
+     */
+    private static final int MIN_CHUNK_SIZE = 1024;
+
+    @Autowired
+    private FileNamesCache fileNamesCache;
+
+    @Value("${parallelSearchThreshold:100000}")
+    private int parallelThreshold = 100000;
+
+    @Value("${parallelSearchThreads:0}")
+    private int parallelism;
+
+    @Value("${regexStepsPerName:100000}")
+    private long stepsPerName = 100000;
+
+    @Value("${regexStepsPerScannedName:1000}")
+    private long stepsPerScannedName = 1000;
+
+    @Value("${patternCacheSize:256}")
+    private int patternCacheSize = 256;
+
+    @Value("${resultCacheSize:64}")
+    private int resultCacheSize = 64;
+
+    /**
+     * Larger results aren't cached, to bound the memory held by the cache.
+     */
+    @Value("${resultCacheMaxNames:10000}")
+    private int resultCacheMaxNames = 10000;
+
+    private ForkJoinPool searchPool;
+
+    private final Map<String, NamePattern> patternCache = new LinkedHashMap<String, NamePattern>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NamePattern> eldest) {
+            return size() > patternCacheSize;
+        }
+    };
+
+    private final Map<String, CachedResult> resultCache = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+            return size() > resultCacheSize;
+        }
+    };
+
+    private final LongAdder resultCacheHits = new LongAdder();
+    private final LongAdder resultCacheMisses = new LongAdder();
+
+    @PostConstruct
+    void init() {
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        searchPool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("file-name-search-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        LOG.info("Searching in parallel from {} names with {} threads", parallelThreshold, parallelism);
+    }
+
+    @PreDestroy
+    void destroy() {
+        searchPool.shutdownNow();
+    }
+
+    /**
+     * Returns the matching names in sorted order, as an immutable list.
+     */
+    public List<String> search(String regex) {
+        // Read before the names, a result is at least as recent as its generation.
+        long generation = fileNamesCache.getGeneration();
+
+        CachedResult cachedResult;
+        synchronized (resultCache) {
+            cachedResult = resultCache.get(regex);
+        }
+        if (cachedResult != null && cachedResult.generation == generation) {
+            resultCacheHits.increment();
+            return cachedResult.fileNames;
+        }
+        resultCacheMisses.increment();
+
+        List<String> matches = Collections.unmodifiableList(match(regex));
+
+        if (matches.size() <= resultCacheMaxNames) {
+            synchronized (resultCache) {
+                resultCache.put(regex, new CachedResult(generation, matches));
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Passes the matching names which sort after {@code after}, all of them when it's null, to the action in sorted
+     * order, stopping after {@code limit} names. Pages are scanned sequentially, only as far as needed.
+     * <p>
+     * An invalid regex fails before the first name is passed. A regex matched within the step budget is matched for
+     * the whole page first, so running out of budget fails before the first name is passed as well, and callers
+     * writing the names as they come never have to fail a response they started.
+     *
+     * @return the last name passed to the action when more names match, null otherwise
+     */
+    public String search(String regex, String after, int limit, Consumer<? super String> action) {
+        NamePattern pattern = compile(regex);
+
+        if (pattern.isLinear()) {
+            return search(pattern, regex, after, limit, action);
+        }
+
+        List<String> page = new ArrayList<>();
+        String lastFileName = search(pattern, regex, after, limit, page::add);
+        page.forEach(action);
+        return lastFileName;
+    }
+
+    private String search(NamePattern pattern, String regex, String after, int limit, Consumer<? super String> action) {
+        String prefix = LiteralPrefix.of(regex);
+
+        List<CharSequence> fileNames = fileNamesCache.getFileNames();
+        int from = lowerBound(fileNames, prefix);
+        int to = upperBound(fileNames, prefix, from);
+        if (after != null) {
+            from = Math.max(from, indexAfter(fileNames, after));
+        }
+
+        NameMatcher matcher = pattern.matcher(StepBudget.forNames(stepsPerName, stepsPerScannedName, to - from));
+        String lastFileName = null;
+        int count = 0;
+
+        try {
+            for (int i = from; i < to; i++) {
+                CharSequence fileName = fileNames.get(i);
+                if (matcher.matches(fileName)) {
+                    if (count == limit) {
+                        return lastFileName;
+                    }
+                    lastFileName = fileName.toString();
+                    action.accept(lastFileName);
+                    count++;
+                }
+            }
+        } catch (RegexBudgetExceededException e) {
+            throw new ClientException(ClientExceptionMessage.REGEX_TOO_COMPLEX, e.getMessage(), e);
+        }
+
+        return null;
+    }
+
+    private List<String> match(String regex) {
+        NamePattern pattern = compile(regex);
+        String prefix = LiteralPrefix.of(regex);
+
+        List<CharSequence> fileNames = fileNamesCache.getFileNames();
+        int from = lowerBound(fileNames, prefix);
+        int to = upperBound(fileNames, prefix, from);
+
+        StepBudget budget = StepBudget.forNames(stepsPerName, stepsPerScannedName, to - from);
+
+        try {
+            if (to - from < parallelThreshold || to - from < 2 * MIN_CHUNK_SIZE) {
+                return scan(pattern.matcher(budget), fileNames, from, to);
+            }
+
+            int chunkSize = Math.max(MIN_CHUNK_SIZE, (to - from) / (4 * parallelism));
+            return searchPool.invoke(new ScanTask(pattern, budget, fileNames, from, to, chunkSize));
+        } catch (RegexBudgetExceededException e) {
+            throw new ClientException(ClientExceptionMessage.REGEX_TOO_COMPLEX, e.getMessage(), e);
+        }
+    }
+
+    private NamePattern compile(String regex) {
+        synchronized (patternCache) {
+            NamePattern pattern = patternCache.get(regex);
+            if (pattern != null) {
+                return pattern;
+            }
+        }
+
+        NamePattern pattern;
+        try {
+            pattern = NamePattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            throw new ClientException(ClientExceptionMessage.INVALID_REGEX, e.getMessage(), e);
+        }
+
+        synchronized (patternCache) {
+            patternCache.put(regex, pattern);
+        }
+        return pattern;
+    }
+
+    private static List<String> scan(NameMatcher matcher, List<CharSequence> fileNames, int from, int to) {
+        List<String> matches = new ArrayList<>();
+
+        for (int i = from; i < to; i++) {
+            CharSequence fileName = fileNames.get(i);
+            if (matcher.matches(fileName)) {
+                matches.add(fileName.toString());
+            }
+        }
+
+        return matches;
+    }
+
+    @ManagedAttribute(description = "Number of compiled patterns cached")
+    public int getPatternCacheSize() {
+        synchronized (patternCache) {
+            return patternCache.size();
+        }
+    }
+
+    @ManagedAttribute(description = "Number of search results cached")
+    public int getResultCacheSize() {
+        synchronized (resultCache) {
+            return resultCache.size();
+        }
+    }
+
+    @ManagedAttribute(description = "Number of searches answered from the result cache")
+    public long getResultCacheHitCount() {
+        return resultCacheHits.sum();
+    }
+
+    @ManagedAttribute(description = "Number of searches which scanned the names")
+    public long getResultCacheMissCount() {
+        return resultCacheMisses.sum();
+    }
+
+    /**
+     * Index of the first name which isn't smaller than the prefix.
+     */
+    static int lowerBound(List<? extends CharSequence> sortedFileNames, String prefix) {
+        if (prefix.isEmpty()) {
+            return 0;
+        }
+        int index = Collections.binarySearch(sortedFileNames, prefix, CharSequences::compare);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Index of the first name which is greater than the given name.
+     */
+    static int indexAfter(List<? extends CharSequence> sortedFileNames, String fileName) {
+        int index = Collections.binarySearch(sortedFileNames, fileName, CharSequences::compare);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Index after the last name starting with the prefix, the names from {@code from} on are at least the prefix.
+     */
+    static int upperBound(List<? extends CharSequence> sortedFileNames, String prefix, int from) {
+        if (prefix.isEmpty()) {
+            return sortedFileNames.size();
+        }
+        int low = from;
+        int high = sortedFileNames.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (CharSequences.startsWith(sortedFileNames.get(middle), prefix)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Splits the range in halves down to the chunk size, the matches of the halves are joined in order.
+     */
+    private static class ScanTask extends RecursiveTask<List<String>> {
+
+        private final NamePattern pattern;
+        private final StepBudget budget;
+        private final List<CharSequence> fileNames;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        ScanTask(NamePattern pattern, StepBudget budget, List<CharSequence> fileNames, int from, int to, int chunkSize) {
+            this.pattern = pattern;
+            this.budget = budget;
+            this.fileNames = fileNames;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected List<String> compute() {
+            if (to - from <= chunkSize) {
+                return scan(pattern.matcher(budget), fileNames, from, to);
+            }
+
+            int middle = (from + to) >>> 1;
+            ScanTask left = new ScanTask(pattern, budget, fileNames, from, middle, chunkSize);
+            ScanTask right = new ScanTask(pattern, budget, fileNames, middle, to, chunkSize);
+            left.fork();
+            List<String> rightMatches = right.compute();
+            List<String> matches = left.join();
+            matches.addAll(rightMatches);
+            return matches;
+        }
+    }
+
+    private static class CachedResult {
+
+        private final long generation;
+        private final List<String> fileNames;
+
+        CachedResult(long generation, List<String> fileNames) {
+            this.generation = generation;
+            this.fileNames = fileNames;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package oneandone.fileservice.server.search;
+
+/**
+ * Extracts the literal text every match of a regex starts with, so a search only has to match the names of that range
+ * of the sorted index. The analysis is conservative: any construct it doesn't fully understand ends the prefix, and an
+ * alternation anywhere in the regex yields no prefix.
+ */
+public final class LiteralPrefix {
+
+    private static final String METACHARACTERS = ".[](){}*+?^$|";
+
+    private LiteralPrefix() {
+    }
+
+    public static String of(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            return "";
+        }
+
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+
+        while (i < regex.length()) {
+            String literal;
+            int next;
+            char c = regex.charAt(i);
+
+            if (c == '\\') {
+                if (i + 1 == regex.length()) {
+                    break;
+                }
+                char escaped = regex.charAt(i + 1);
+                if (escaped == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    literal = end < 0 ? regex.substring(i + 2) : regex.substring(i + 2, end);
+                    next = end < 0 ? regex.length() : end + 2;
+                } else if (Character.isLetterOrDigit(escaped)) {
+                    // Character classes, boundaries and back references
+                    break;
+                } else {
+                    literal = String.valueOf(escaped);
+                    next = i + 2;
+                }
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                break;
+            } else {
+                int length = Character.charCount(regex.codePointAt(i));
+                literal = regex.substring(i, i + length);
+                next = i + length;
+            }
+
+            if (next < regex.length() && isQuantifier(regex.charAt(next))) {
+                // The quantifier applies to the last character only, which may be repeated or left out.
+                int lastLength = literal.isEmpty() ? 0 : Character.charCount(literal.codePointBefore(literal.length()));
+                prefix.append(literal, 0, literal.length() - lastLength);
+                if (regex.charAt(next) == '+') {
+                    prefix.append(literal, literal.length() - lastLength, literal.length());
+                }
+                break;
+            }
+
+            prefix.append(literal);
+            i = next;
+        }
+
+        return prefix.toString();
+    }
+
+    private static boolean isQuantifier(char c) {
+        return c == '*' || c == '?' || c == '+' || c == '{';
+    }
+}
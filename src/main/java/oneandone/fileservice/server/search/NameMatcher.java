@@ -0,0 +1,10 @@
+package oneandone.fileservice.server.search;
+
+/**
+ * Matches whole file names against a {@link NamePattern}. Matchers keep state between calls and must not be shared
+ * between threads.
+ */
+public interface NameMatcher {
+
+    boolean matches(CharSequence name);
+}
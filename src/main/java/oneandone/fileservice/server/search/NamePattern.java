@@ -0,0 +1,120 @@
+package oneandone.fileservice.server.search;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A compiled file name regex, with the {@link Pattern} syntax and semantics. Regexes of the subset understood by
+ * {@link RegexParser} are matched by an automaton in linear time, without compiling a {@link Pattern}. The others are
+ * matched by {@link Pattern}, which may backtrack exponentially, so their matchers give up with a
+ * {@link RegexBudgetExceededException} once the characters they read of a single name, or through all the names of a
+ * search, exceed its {@link StepBudget}.
+ */
+public final class NamePattern {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NamePattern.class);
+
+    /**
+     * Steps read by a backtracking matcher before they are taken from the shared budget.
+     */
+    private static final int STEPS_PER_CHARGE = 4096;
+
+    private final String regex;
+    private final Nfa nfa;
+    private final Pattern pattern;
+
+    private NamePattern(String regex, Nfa nfa, Pattern pattern) {
+        this.regex = regex;
+        this.nfa = nfa;
+        this.pattern = pattern;
+    }
+
+    /**
+     * @throws java.util.regex.PatternSyntaxException if the regex is invalid
+     */
+    public static NamePattern compile(String regex) {
+        try {
+            return new NamePattern(regex, Nfa.compile(RegexParser.parse(regex)), null);
+        } catch (UnsupportedRegexException e) {
+            LOG.debug("Matching by backtracking: {}", e.getMessage());
+            return new NamePattern(regex, null, Pattern.compile(regex));
+        }
+    }
+
+    /**
+     * Whether the names are matched in linear time.
+     */
+    public boolean isLinear() {
+        return nfa != null;
+    }
+
+    /**
+     * Returns a matcher taking the characters it reads from the budget, which the matchers of a search share.
+     */
+    public NameMatcher matcher(StepBudget stepBudget) {
+        return nfa != null ? new AutomatonMatcher(nfa) : new BudgetedMatcher(pattern, stepBudget);
+    }
+
+    @Override
+    public String toString() {
+        return regex;
+    }
+
+    /**
+     * Counts the characters the backtracking matcher reads through the names it is given.
+     */
+    private static final class BudgetedMatcher implements NameMatcher, CharSequence {
+
+        private final Matcher matcher;
+        private final StepBudget stepBudget;
+
+        private CharSequence name;
+        private int steps;
+        private long nameSteps;
+
+        BudgetedMatcher(Pattern pattern, StepBudget stepBudget) {
+            this.matcher = pattern.matcher("");
+            this.stepBudget = stepBudget;
+        }
+
+        @Override
+        public boolean matches(CharSequence name) {
+            this.name = name;
+            this.nameSteps = 0;
+            try {
+                return matcher.reset(this).matches();
+            } finally {
+                stepBudget.charge(steps, matcher.pattern().pattern());
+                steps = 0;
+            }
+        }
+
+        @Override
+        public int length() {
+            return name.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            stepBudget.chargeName(++nameSteps, matcher.pattern().pattern());
+            if (++steps == STEPS_PER_CHARGE) {
+                steps = 0;
+                stepBudget.charge(STEPS_PER_CHARGE, matcher.pattern().pattern());
+            }
+            return name.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return name.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return name.toString();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package oneandone.fileservice.server.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Thompson automaton of a parsed regex. Every state either consumes one code point of a set and moves on to its next
+ * state, or splits into its next and alternative states without consuming anything. The accepting state is neither.
+ */
+final class Nfa {
+
+    /**
+     * Keeps repetitions of large groups from building a huge automaton, they are matched by backtracking instead.
+     */
+    private static final int MAX_STATES = 10000;
+
+    static final int NONE = -1;
+
+    /**
+     * Code points consumed by the state, null for split and accepting states.
+     */
+    final CodePointSet[] codePoints;
+    final int[] next;
+    final int[] alternative;
+    final int start;
+    final int accept;
+
+    private Nfa(CodePointSet[] codePoints, int[] next, int[] alternative, int start, int accept) {
+        this.codePoints = codePoints;
+        this.next = next;
+        this.alternative = alternative;
+        this.start = start;
+        this.accept = accept;
+    }
+
+    int size() {
+        return next.length;
+    }
+
+    static Nfa compile(RegexParser.Node node) throws UnsupportedRegexException {
+        Builder builder = new Builder();
+        int accept = builder.addState(null, NONE, NONE);
+        int start = builder.compile(node, accept);
+        return new Nfa(builder.codePoints.toArray(new CodePointSet[0]), Arrays.copyOf(builder.next, builder.size),
+                Arrays.copyOf(builder.alternative, builder.size), start, accept);
+    }
+
+    /**
+     * Builds the automaton backwards: every node is compiled knowing the state which follows it.
+     */
+    private static class Builder {
+
+        private final List<CodePointSet> codePoints = new ArrayList<>();
+        private int[] next = new int[16];
+        private int[] alternative = new int[16];
+        private int size;
+
+        int compile(RegexParser.Node node, int following) throws UnsupportedRegexException {
+            if (node instanceof RegexParser.CharacterClass) {
+                return addState(((RegexParser.CharacterClass) node).codePoints, following, NONE);
+            }
+
+            if (node instanceof RegexParser.Concatenation) {
+                List<RegexParser.Node> items = ((RegexParser.Concatenation) node).items;
+                int state = following;
+                for (int i = items.size() - 1; i >= 0; i--) {
+                    state = compile(items.get(i), state);
+                }
+                return state;
+            }
+
+            if (node instanceof RegexParser.Alternation) {
+                List<RegexParser.Node> branches = ((RegexParser.Alternation) node).branches;
+                int state = compile(branches.get(branches.size() - 1), following);
+                for (int i = branches.size() - 2; i >= 0; i--) {
+                    state = addState(null, compile(branches.get(i), following), state);
+                }
+                return state;
+            }
+
+            RegexParser.Repetition repetition = (RegexParser.Repetition) node;
+            int state = following;
+            if (repetition.max == RegexParser.UNBOUNDED) {
+                int loop = addState(null, NONE, following);
+                // Compiled before indexing next, which may be replaced by a bigger array meanwhile.
+                int body = compile(repetition.node, loop);
+                next[loop] = body;
+                state = loop;
+            } else {
+                for (int i = repetition.min; i < repetition.max; i++) {
+                    state = addState(null, compile(repetition.node, state), following);
+                }
+            }
+            for (int i = 0; i < repetition.min; i++) {
+                state = compile(repetition.node, state);
+            }
+            return state;
+        }
+
+        int addState(CodePointSet stateCodePoints, int stateNext, int stateAlternative) throws UnsupportedRegexException {
+            if (size == MAX_STATES) {
+                throw new UnsupportedRegexException("more than " + MAX_STATES + " automaton states");
+            }
+            if (size == next.length) {
+                next = Arrays.copyOf(next, size * 2);
+                alternative = Arrays.copyOf(alternative, size * 2);
+            }
+            codePoints.add(stateCodePoints);
+            next[size] = stateNext;
+            alternative[size] = stateAlternative;
+            return size++;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package oneandone.fileservice.server.search;
+
+/**
+ * A regex matched by backtracking read more characters of a name than the step budget allows.
+ */
+public class RegexBudgetExceededException extends RuntimeException {
+
+    public RegexBudgetExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,373 @@
+package oneandone.fileservice.server.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses the subset of the {@link java.util.regex.Pattern} syntax which a finite automaton matches with the same
+ * result: literals, escapes of literals, {@code .}, character classes without nesting or intersection, the predefined
+ * {@code \d \w \s} classes, groups, alternation, greedy and lazy quantifiers, and {@code ^} and {@code $} around the
+ * whole regex. Anything else, such as back references, lookarounds, boundaries or inline flags, is rejected with an
+ * {@link UnsupportedRegexException}, as is anything {@code Pattern} would reject, so the regexes it accepts are valid.
+ */
+final class RegexParser {
+
+    private static final CodePointSet LINE_TERMINATORS = CodePointSet.of('\n', '\n', '\r', '\r', 0x85, 0x85, 0x2028, 0x2029);
+    private static final CodePointSet ANY_BUT_LINE_TERMINATORS = LINE_TERMINATORS.complement();
+    private static final CodePointSet DIGITS = CodePointSet.of('0', '9');
+    private static final CodePointSet WORD_CHARACTERS = CodePointSet.of('0', '9', 'A', 'Z', '_', '_', 'a', 'z');
+    private static final CodePointSet WHITESPACES = CodePointSet.of('\t', '\r', ' ', ' ');
+
+    /**
+     * Repetitions are expanded into copies of the repeated node, larger bounds are matched by backtracking instead.
+     */
+    private static final int MAX_BOUND = 1000;
+
+    static final int UNBOUNDED = -1;
+
+    private final String regex;
+    private int position;
+
+    private RegexParser(String regex) {
+        this.regex = regex;
+    }
+
+    static Node parse(String regex) throws UnsupportedRegexException {
+        RegexParser parser = new RegexParser(regex);
+        Node node = parser.parseAlternation();
+        if (parser.position != regex.length()) {
+            throw parser.unsupported("unexpected character");
+        }
+        return node;
+    }
+
+    private Node parseAlternation() throws UnsupportedRegexException {
+        List<Node> branches = new ArrayList<>();
+        branches.add(parseConcatenation());
+        while (position < regex.length() && regex.charAt(position) == '|') {
+            position++;
+            branches.add(parseConcatenation());
+        }
+        return branches.size() == 1 ? branches.get(0) : new Alternation(branches);
+    }
+
+    private Node parseConcatenation() throws UnsupportedRegexException {
+        List<Node> items = new ArrayList<>();
+        while (position < regex.length() && regex.charAt(position) != '|' && regex.charAt(position) != ')') {
+            items.add(parseRepetition());
+        }
+        return items.size() == 1 ? items.get(0) : new Concatenation(items);
+    }
+
+    private Node parseRepetition() throws UnsupportedRegexException {
+        boolean anchor = regex.charAt(position) == '^' || regex.charAt(position) == '$';
+        boolean quotation = regex.startsWith("\\Q", position);
+        Node node = parseAtom();
+
+        if (position < regex.length() && isQuantifier(regex.charAt(position))) {
+            if (anchor) {
+                throw unsupported("quantified anchor");
+            }
+            // Pattern only repeats the last quoted character
+            if (quotation) {
+                throw unsupported("quantified quotation");
+            }
+            int min;
+            int max;
+            char c = regex.charAt(position);
+            if (c == '*') {
+                min = 0;
+                max = UNBOUNDED;
+                position++;
+            } else if (c == '+') {
+                min = 1;
+                max = UNBOUNDED;
+                position++;
+            } else if (c == '?') {
+                min = 0;
+                max = 1;
+                position++;
+            } else {
+                position++;
+                min = parseNumber();
+                max = min;
+                if (position < regex.length() && regex.charAt(position) == ',') {
+                    position++;
+                    max = position < regex.length() && regex.charAt(position) == '}' ? UNBOUNDED : parseNumber();
+                }
+                expect('}');
+            }
+
+            if (min > MAX_BOUND || max > MAX_BOUND) {
+                throw unsupported("repetition bound above " + MAX_BOUND);
+            }
+            if (max != UNBOUNDED && max < min) {
+                throw unsupported("repetition bounds out of order");
+            }
+
+            // Lazy quantifiers accept the same whole names, possessive ones don't.
+            if (position < regex.length() && regex.charAt(position) == '?') {
+                position++;
+            } else if (position < regex.length() && regex.charAt(position) == '+') {
+                throw unsupported("possessive quantifier");
+            }
+
+            node = new Repetition(node, min, max);
+
+            // Pattern rejects most quantifiers of a quantifier, the few it accepts are left to it.
+            if (position < regex.length() && isQuantifier(regex.charAt(position))) {
+                throw unsupported("quantified quantifier");
+            }
+        }
+
+        return node;
+    }
+
+    private static boolean isQuantifier(char c) {
+        return c == '*' || c == '+' || c == '?' || c == '{';
+    }
+
+    private Node parseAtom() throws UnsupportedRegexException {
+        int codePoint = regex.codePointAt(position);
+
+        switch (codePoint) {
+            case '(':
+                position++;
+                if (position < regex.length() && regex.charAt(position) == '?') {
+                    if (position + 1 < regex.length() && regex.charAt(position + 1) == ':') {
+                        position += 2;
+                    } else {
+                        throw unsupported("special group");
+                    }
+                }
+                Node group = parseAlternation();
+                expect(')');
+                return group;
+            case '[':
+                return new CharacterClass(parseClass());
+            case '.':
+                position++;
+                return new CharacterClass(ANY_BUT_LINE_TERMINATORS);
+            case '^':
+                if (position != 0) {
+                    throw unsupported("inner ^");
+                }
+                position++;
+                return new Concatenation(Collections.emptyList());
+            case '$':
+                if (position != regex.length() - 1) {
+                    throw unsupported("inner $");
+                }
+                position++;
+                return new Concatenation(Collections.emptyList());
+            case '\\':
+                position++;
+                if (position < regex.length() && regex.charAt(position) == 'Q') {
+                    return parseQuotation();
+                }
+                return new CharacterClass(parseEscape());
+            case '*':
+            case '+':
+            case '?':
+            case '{':
+                throw unsupported("dangling quantifier");
+            default:
+                position += Character.charCount(codePoint);
+                return new CharacterClass(CodePointSet.single(codePoint));
+        }
+    }
+
+    private Node parseQuotation() {
+        position++;
+        int end = regex.indexOf("\\E", position);
+        String quoted = end < 0 ? regex.substring(position) : regex.substring(position, end);
+        position = end < 0 ? regex.length() : end + 2;
+
+        List<Node> literals = new ArrayList<>();
+        quoted.codePoints().forEach(codePoint -> literals.add(new CharacterClass(CodePointSet.single(codePoint))));
+        return new Concatenation(literals);
+    }
+
+    private CodePointSet parseClass() throws UnsupportedRegexException {
+        position++;
+        boolean negated = position < regex.length() && regex.charAt(position) == '^';
+        if (negated) {
+            position++;
+        }
+
+        List<CodePointSet> items = new ArrayList<>();
+        while (true) {
+            if (position >= regex.length()) {
+                throw unsupported("unclosed class");
+            }
+            int codePoint = regex.codePointAt(position);
+            if (codePoint == ']') {
+                if (items.isEmpty()) {
+                    throw unsupported("leading ] in class");
+                }
+                position++;
+                break;
+            }
+            if (codePoint == '[' || regex.startsWith("&&", position)) {
+                throw unsupported("nested class or intersection");
+            }
+
+            CodePointSet item = parseClassItem();
+            if (position + 1 < regex.length() && regex.charAt(position) == '-' && regex.charAt(position + 1) != ']') {
+                position++;
+                int first = item.singleCodePoint();
+                int last = parseClassItem().singleCodePoint();
+                if (first < 0 || last < 0 || first > last) {
+                    throw unsupported("invalid range");
+                }
+                item = CodePointSet.of(first, last);
+            }
+            items.add(item);
+        }
+
+        CodePointSet set = CodePointSet.union(items);
+        return negated ? set.complement() : set;
+    }
+
+    private CodePointSet parseClassItem() throws UnsupportedRegexException {
+        int codePoint = regex.codePointAt(position);
+        if (codePoint == '\\') {
+            position++;
+            return parseEscape();
+        }
+        if (codePoint == '[') {
+            throw unsupported("nested class");
+        }
+        position += Character.charCount(codePoint);
+        return CodePointSet.single(codePoint);
+    }
+
+    /**
+     * Parses what follows a backslash.
+     */
+    private CodePointSet parseEscape() throws UnsupportedRegexException {
+        if (position >= regex.length()) {
+            throw unsupported("trailing backslash");
+        }
+        int codePoint = regex.codePointAt(position);
+        position += Character.charCount(codePoint);
+
+        switch (codePoint) {
+            case 'd':
+                return DIGITS;
+            case 'D':
+                return DIGITS.complement();
+            case 'w':
+                return WORD_CHARACTERS;
+            case 'W':
+                return WORD_CHARACTERS.complement();
+            case 's':
+                return WHITESPACES;
+            case 'S':
+                return WHITESPACES.complement();
+            case 't':
+                return CodePointSet.single('\t');
+            case 'n':
+                return CodePointSet.single('\n');
+            case 'r':
+                return CodePointSet.single('\r');
+            case 'f':
+                return CodePointSet.single('\f');
+            case 'a':
+                return CodePointSet.single('\u0007');
+            case 'e':
+                return CodePointSet.single('\u001B');
+            case 'x':
+                return CodePointSet.single(parseHex(2));
+            case 'u':
+                return CodePointSet.single(parseHex(4));
+            default:
+                if (Character.isLetterOrDigit(codePoint)) {
+                    throw unsupported("escape \\" + new String(Character.toChars(codePoint)));
+                }
+                return CodePointSet.single(codePoint);
+        }
+    }
+
+    private int parseHex(int digits) throws UnsupportedRegexException {
+        if (position + digits > regex.length()) {
+            throw unsupported("short hexadecimal escape");
+        }
+        int value = 0;
+        for (int i = 0; i < digits; i++) {
+            int digit = Character.digit(regex.charAt(position + i), 16);
+            if (digit < 0) {
+                throw unsupported("hexadecimal escape");
+            }
+            value = value * 16 + digit;
+        }
+        position += digits;
+        return value;
+    }
+
+    private int parseNumber() throws UnsupportedRegexException {
+        int start = position;
+        while (position < regex.length() && Character.isDigit(regex.charAt(position)) && position - start < 9) {
+            position++;
+        }
+        if (start == position) {
+            throw unsupported("missing repetition bound");
+        }
+        return Integer.parseInt(regex.substring(start, position));
+    }
+
+    private void expect(char c) throws UnsupportedRegexException {
+        if (position >= regex.length() || regex.charAt(position) != c) {
+            throw unsupported("expected " + c);
+        }
+        position++;
+    }
+
+    private UnsupportedRegexException unsupported(String reason) {
+        return new UnsupportedRegexException(reason + " at " + position + " in " + regex);
+    }
+
+    abstract static class Node {
+    }
+
+    static final class CharacterClass extends Node {
+
+        final CodePointSet codePoints;
+
+        CharacterClass(CodePointSet codePoints) {
+            this.codePoints = codePoints;
+        }
+    }
+
+    static final class Concatenation extends Node {
+
+        final List<Node> items;
+
+        Concatenation(List<Node> items) {
+            this.items = items;
+        }
+    }
+
+    static final class Alternation extends Node {
+
+        final List<Node> branches;
+
+        Alternation(List<Node> branches) {
+            this.branches = branches;
+        }
+    }
+
+    static final class Repetition extends Node {
+
+        final Node node;
+        final int min;
+        final int max;
+
+        Repetition(Node node, int min, int max) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+        }
+    }
+}
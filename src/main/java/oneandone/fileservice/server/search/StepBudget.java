@@ -0,0 +1,55 @@
+package oneandone.fileservice.server.search;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of characters the backtracking matchers of one search may read: per name, which catches catastrophic
+ * backtracking on a single name, and across all the names, which bounds the whole search. The total is shared by the
+ * matchers of the search, also when they run in parallel.
+ */
+public final class StepBudget {
+
+    private final long stepsPerName;
+    private final long steps;
+    private final AtomicLong remaining;
+
+    public StepBudget(long stepsPerName, long steps) {
+        this.stepsPerName = stepsPerName;
+        this.steps = steps;
+        this.remaining = new AtomicLong(steps);
+    }
+
+    /**
+     * Returns a budget for scanning the given number of names, whose total grows with the number of names but is never
+     * below the steps of a single name.
+     */
+    public static StepBudget forNames(long stepsPerName, long stepsPerScannedName, int names) {
+        long steps = stepsPerScannedName > Long.MAX_VALUE / Math.max(1, names)
+                ? Long.MAX_VALUE
+                : stepsPerScannedName * names;
+        return new StepBudget(stepsPerName, Math.max(stepsPerName, steps));
+    }
+
+    /**
+     * Takes the steps from the budget.
+     *
+     * @throws RegexBudgetExceededException when the budget is used up
+     */
+    void charge(long count, String regex) {
+        if (remaining.addAndGet(-count) < 0) {
+            throw new RegexBudgetExceededException("Matching " + regex + " took more than " + steps + " steps");
+        }
+    }
+
+    /**
+     * Checks the steps taken so far for the current name.
+     *
+     * @throws RegexBudgetExceededException when the name took more than the steps per name
+     */
+    void chargeName(long nameSteps, String regex) {
+        if (nameSteps > stepsPerName) {
+            throw new RegexBudgetExceededException("Matching " + regex + " took more than " + stepsPerName
+                    + " steps for a single name");
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package oneandone.fileservice.server.search;
+
+/**
+ * The regex uses a construct the linear time automaton can't express, it is matched by {@link java.util.regex} then.
+ */
+class UnsupportedRegexException extends Exception {
+
+    UnsupportedRegexException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,37 @@
+package oneandone.fileservice.server.service;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Content of a file opened for reading. The service replaces a file instead of writing it in place, so all regions
+ * streamed from the content belong to the version which was opened, also when the file is replaced meanwhile.
+ */
+public interface FileContent extends AutoCloseable {
+
+    /**
+     * Size of the opened version of the file, which the cached metadata may not know yet.
+     */
+    long size();
+
+    /**
+     * Modification time of the opened version of the file.
+     */
+    long lastModified();
+
+    /**
+     * Strong entity tag of the opened version of the file, as {@link oneandone.fileservice.server.model.File#getETag}.
+     */
+    String eTag();
+
+    /**
+     * Streams a region of the content to the given channel, without loading it on the heap. Stops early if the file
+     * is shorter than requested.
+     *
+     * @return the number of bytes written
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    @Override
+    void close();
+}
@@ -1,22 +1,66 @@
 package oneandone.fileservice.server.service;
 
+import java.io.InputStream;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import oneandone.fileservice.server.model.File;
+import oneandone.fileservice.server.model.FolderStatistics;
 import oneandone.fileservice.server.service.impl.FileReadOption;
 
 public interface FileService {
 
     Optional<File> get(String name, FileReadOption... fileReadOption);
 
+    /**
+     * Opens the file content for streaming. The read lock of the file is only held while opening, the content keeps
+     * reading the opened version when the file is replaced meanwhile.
+     *
+     * @return empty when the file doesn't exist
+     */
+    Optional<FileContent> openContent(String name);
+
     void delete(String name);
 
     void create(File file);
 
+    /**
+     * Creates or overwrites the file with content streamed from the input, without buffering it in memory.
+     */
+    void create(String name, InputStream content);
+
     void update (String fileName, File file);
 
+    /**
+     * Replaces the content of the file with the one streamed from the input, renaming it when the given file has a
+     * name. The content of the given file is ignored. A renamed file is briefly found under both names, the old one
+     * with the old content.
+     */
+    void update(String fileName, File file, InputStream content);
+
+    /**
+     * Waits for the startup index of the root folder to be complete, up to a bounded time after the first call. Once
+     * that time passed, it returns at once.
+     *
+     * @return false when it is still warming up, counts and listings are partial then
+     */
+    boolean awaitIndexed();
+
     long count();
 
+    /**
+     * Returns the number of files with their number per extension and their total size, as of the same change.
+     */
+    FolderStatistics getStatistics();
+
     List<String> getFilename(String regex);
+
+    /**
+     * Passes the names matching the regex which sort after {@code after}, all of them when it's null, to the action in
+     * sorted order, stopping after {@code limit} names.
+     *
+     * @return the last name passed to the action when more names match, null otherwise
+     */
+    String getFilename(String regex, String after, int limit, Consumer<? super String> action);
 }
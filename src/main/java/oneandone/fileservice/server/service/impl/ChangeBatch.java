@@ -0,0 +1,85 @@
+package oneandone.fileservice.server.service.impl;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.boot.devtools.filewatch.ChangedFile;
+import org.springframework.boot.devtools.filewatch.ChangedFiles;
+
+/**
+ * Net change of each file over a series of changes, in the order the files first changed. Whether a file exists after
+ * the batch only depends on its last change, so a file added then deleted ends up deleted, which leaves the caches
+ * untouched when its name wasn't cached, and a file deleted then added again ends up modified. The changes of several
+ * root folders may be collected into one batch.
+ */
+class ChangeBatch {
+
+    private final Map<File, Change> changes = new LinkedHashMap<>();
+
+    void add(File sourceFolder, File file, ChangedFile.Type type) {
+        Change change = changes.get(file);
+        if (change == null) {
+            changes.put(file, new Change(sourceFolder, type));
+        } else {
+            change.last = type;
+        }
+    }
+
+    void addAll(ChangedFiles changedFiles) {
+        for (ChangedFile changedFile : changedFiles) {
+            add(changedFiles.getSourceFolder(), changedFile.getFile(), changedFile.getType());
+        }
+    }
+
+    int size() {
+        return changes.size();
+    }
+
+    boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    /**
+     * Returns one change per file.
+     */
+    Set<ChangedFile> getChangedFiles() {
+        Set<ChangedFile> changedFiles = new LinkedHashSet<>();
+        changes.forEach((file, change) -> changedFiles.add(new ChangedFile(change.sourceFolder, file, change.getType())));
+        return changedFiles;
+    }
+
+    /**
+     * Returns one change per file, grouped by the root folder the files are in.
+     */
+    Set<ChangedFiles> getChangedFilesByFolder() {
+        Map<File, Set<ChangedFile>> changedFilesByFolder = new LinkedHashMap<>();
+        changes.forEach((file, change) -> changedFilesByFolder.computeIfAbsent(change.sourceFolder, folder -> new LinkedHashSet<>())
+                .add(new ChangedFile(change.sourceFolder, file, change.getType())));
+        Set<ChangedFiles> changedFiles = new LinkedHashSet<>();
+        changedFilesByFolder.forEach((folder, files) -> changedFiles.add(new ChangedFiles(folder, files)));
+        return changedFiles;
+    }
+
+    private static class Change {
+
+        private final File sourceFolder;
+        private final ChangedFile.Type first;
+        private ChangedFile.Type last;
+
+        Change(File sourceFolder, ChangedFile.Type type) {
+            this.sourceFolder = sourceFolder;
+            this.first = type;
+            this.last = type;
+        }
+
+        ChangedFile.Type getType() {
+            if (last == ChangedFile.Type.DELETE) {
+                return ChangedFile.Type.DELETE;
+            }
+            return first == ChangedFile.Type.ADD ? ChangedFile.Type.ADD : ChangedFile.Type.MODIFY;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package oneandone.fileservice.server.service.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import oneandone.fileservice.server.service.FileContent;
+
+/**
+ * Content of a file read through one open channel. The service replaces files instead of writing them in place, so the
+ * channel keeps reading the version it opened without holding the lock of the name. Large files are served from their
+ * pooled memory mapping instead of the channel.
+ */
+class ChannelFileContent implements FileContent {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChannelFileContent.class);
+
+    private final FileChannel fileChannel;
+    private final long size;
+    private final long lastModified;
+    private final String eTag;
+    private final MappedFilePool.MappedFile mappedFile;
+    private boolean mappingFailed;
+
+    ChannelFileContent(FileChannel fileChannel, long size, long lastModified, String eTag,
+                       MappedFilePool.MappedFile mappedFile) {
+        this.fileChannel = fileChannel;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.eTag = eTag;
+        this.mappedFile = mappedFile;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String eTag() {
+        return eTag;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+
+        if (mappedFile != null && !mappingFailed) {
+            ByteBuffer region = mappedFile.region(position, count);
+            int start = region.position();
+            try {
+                while (region.hasRemaining()) {
+                    target.write(region);
+                }
+                return region.position() - start;
+            } catch (InternalError e) {
+                // The mapped pages can't be read anymore, the rest is read from the channel
+                LOG.warn("Couldn't read the mapping of the file, reading it from the channel", e);
+                mappingFailed = true;
+                transferred = region.position() - start;
+            }
+        }
+
+        while (transferred < count) {
+            long bytes = fileChannel.transferTo(position + transferred, count - transferred, target);
+            if (bytes <= 0) {
+                break;
+            }
+            transferred += bytes;
+        }
+        return transferred;
+    }
+
+    @Override
+    public void close() {
+        if (mappedFile != null) {
+            mappedFile.close();
+        }
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            LOG.warn("Couldn't close the file channel", e);
+        }
+    }
+}
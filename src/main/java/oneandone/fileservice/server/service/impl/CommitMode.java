@@ -0,0 +1,17 @@
+package oneandone.fileservice.server.service.impl;
+
+/**
+ * How new content replaces the content of an existing file.
+ */
+public enum CommitMode {
+    /**
+     * The existing file is copied to the backup folder, overwritten in place and restored from the backup on failure.
+     */
+    BACKUP,
+    /**
+     * The new content is written to the temporary folder and moved over the existing file with an atomic rename, so
+     * the overwrite costs a single write and readers never see a partially written file. Opt-in, {@link #BACKUP}
+     * stays the default.
+     */
+    ATOMIC_MOVE
+}
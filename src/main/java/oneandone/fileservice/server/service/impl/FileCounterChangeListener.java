@@ -1,5 +1,9 @@
 package oneandone.fileservice.server.service.impl;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -10,35 +14,103 @@ import org.springframework.boot.devtools.filewatch.ChangedFiles;
 import org.springframework.boot.devtools.filewatch.FileChangeListener;
 import org.springframework.stereotype.Component;
 
-import oneandone.fileservice.server.cache.FileCounterCache;
+import oneandone.fileservice.server.cache.FileContentCache;
+import oneandone.fileservice.server.cache.FileMetadata;
+import oneandone.fileservice.server.cache.FileMetadataCache;
 import oneandone.fileservice.server.cache.FileNamesCache;
 
+/**
+ * Applies the changes of the root folder to the caches. The changes passed at once are collapsed into the net change
+ * of each file and the names are updated as one batch, so a bulk import publishes a single new generation of the names.
+ * The file counter is derived from the names, so changes repeated for a file, like the creation of a file replaced by
+ * a rename, are counted once. The sizes of the created and modified files are read again for the total size.
+ * <p>
+ * The writes of the service are applied by the {@link WriteJournal} already, so the changes which left a file as a
+ * write of the service did, and whose name is cached accordingly, skip the names and the metadata, and only the changes
+ * made by others reach them. A file written by the service is read again whatever its event, as the events of a delete
+ * and a create of the same name may come in separate batches, the delete after the create. The cached
+ * content and mapping of every changed file are dropped either way, since they may have been read in between.
+ * <p>
+ * With the sharded {@link FileLayout} or several root folders the files live in different folders, so the name is the
+ * last element of the path. A file moved into its shard or its root folder is reported as deleted from where it was and
+ * created where it is, so a deleted file is looked up again where the layout resolves its name. The changes of all the
+ * root folders are applied as one batch.
+ */
 @Component
 public class FileCounterChangeListener implements FileChangeListener {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FileCounterChangeListener.class);
 
     @Autowired
-    private FileCounterCache fileCounterCache;
+    private FileNamesCache fileNamesCache;
 
     @Autowired
-    private FileNamesCache fileNamesCache;
+    private FileContentCache fileContentCache;
+
+    @Autowired
+    private MappedFilePool mappedFilePool;
+
+    @Autowired
+    private FileMetadataCache fileMetadataCache;
+
+    @Autowired
+    private WriteJournal writeJournal;
+
+    @Autowired
+    private FileLayout fileLayout;
 
     @Override
     public void onChange(Set<ChangedFiles> changeSet) {
+        ChangeBatch changeBatch = new ChangeBatch();
         for (ChangedFiles cfiles : changeSet) {
-            for (ChangedFile cfile : cfiles.getFiles()) {
-                LOGGER.debug("Changed file: " + cfile.getRelativeName());
-                if ((cfile.getType().equals(ChangedFile.Type.ADD))) {
-                    fileCounterCache.incrementFolderFileCount();
-                    fileNamesCache.addFileName(cfile.getRelativeName());
-                } else if ((cfile.getType().equals(ChangedFile.Type.DELETE))) {
-                    fileCounterCache.decrementFolderFileCount();
-                    fileNamesCache.removeFileName(cfile.getRelativeName());
-                } else if ((cfile.getType().equals(ChangedFile.Type.MODIFY))){
-                    
+            changeBatch.addAll(cfiles);
+        }
+        if (!changeBatch.isEmpty()) {
+            apply(changeBatch);
+        }
+    }
+
+    private void apply(ChangeBatch changeBatch) {
+        List<String> existingFileNames = new ArrayList<>();
+        List<String> deletedFileNames = new ArrayList<>();
+        Map<String, Long> sizes = new HashMap<>();
+        int skipped = 0;
+
+        for (ChangedFile cfile : changeBatch.getChangedFiles()) {
+            String name = cfile.getFile().getName();
+            boolean deleted = cfile.getType().equals(ChangedFile.Type.DELETE);
+
+            fileContentCache.invalidate(name);
+            mappedFilePool.evict(cfile.getFile().toPath());
+
+            FileMetadata metadata = null;
+            if (deleted && (!fileLayout.isSingleFolder() || writeJournal.contains(name))) {
+                metadata = writeJournal.stat(fileLayout.resolve(name));
+                deleted = metadata == null || !metadata.exists();
+            } else if (deleted) {
+                metadata = FileMetadata.missing();
+            } else if (fileNamesCache.isTrackingTotalBytes() || writeJournal.contains(name)) {
+                metadata = writeJournal.stat(cfile.getFile().toPath());
+            }
+            if (metadata != null && fileNamesCache.contains(name) == metadata.exists()
+                    && writeJournal.isApplied(name, metadata)) {
+                skipped++;
+                continue;
+            }
+
+            fileMetadataCache.invalidate(name);
+            if (deleted) {
+                deletedFileNames.add(name);
+            } else {
+                existingFileNames.add(name);
+                if (metadata != null && metadata.exists()) {
+                    sizes.put(name, metadata.getSize());
                 }
             }
         }
+
+        fileNamesCache.update(existingFileNames, deletedFileNames);
+        fileNamesCache.updateSizes(sizes);
+        LOGGER.debug("Applied the changes of {} files, {} were applied by writes already", changeBatch.size(), skipped);
     }
 }
@@ -0,0 +1,520 @@
+package oneandone.fileservice.server.service.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Resolves the flat names of the API to the paths of the files under the root folders, as configured by
+ * {@link StorageLayout}. The sharded layout nests {@code shardLevels} subdirectories named after two hex digits each
+ * of the CRC32 of the name, which are created as files are written.
+ * <p>
+ * A store switched to the sharded layout may still hold files directly in the root folder until the
+ * {@link ShardMigrator} moved them. Until then a file missing from its shard is looked up in the root folder, and a
+ * write moves the file to its shard first, under the write lock of the name. Once the migration completed, or when
+ * the root folder held no files on startup, names are only looked up in their shard.
+ * <p>
+ * The files may be striped across several root folders, e.g. one per disk, each with its own backup and temporary
+ * folder on the same file system. A name is placed in a root folder by consistent hashing: every root folder takes
+ * points on a ring in proportion to its weight, and a name belongs to the first point following its hash. The points
+ * only depend on the path of the root folder, so adding one only takes over the names of its share. Files left in
+ * another root folder are looked up there until the {@link RootFolderRebalancer} moved them, and a write copies the file
+ * to its root folder first. The root folders and weights the files were last balanced for are kept in the backup folder
+ * of the first root folder, so the files are only looked up in the other root folders when they changed since.
+ */
+@Component
+public class FileLayout {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileLayout.class);
+
+    private static final int MAX_SHARD_LEVELS = 4;
+
+    /**
+     * Points on the ring per unit of weight, enough for the names to spread over the root folders within a few percent.
+     */
+    private static final int POINTS_PER_WEIGHT = 160;
+
+    private static final String BALANCED_ROOT_FOLDERS_FILE_NAME = "balanced-root-folders";
+
+    private final NioFilesWrapper nioFilesWrapper;
+    private final List<Root> roots;
+    private final List<Path> rootFolders;
+    private final NavigableMap<Long, Root> ring = new TreeMap<>();
+    private final boolean sharded;
+    private final int shardLevels;
+
+    /**
+     * One line of weight and path per root folder, sorted, as the ring only depends on them and not on their order.
+     */
+    private final String rootFolderSet;
+
+    private volatile boolean misplacedFilesRemain;
+
+    public FileLayout(NioFilesWrapper nioFilesWrapper,
+                      @Value("${rootFolderPath}") String rootFolderPaths,
+                      @Value("${backupFolderName}") String backupFolderNames,
+                      @Value("${tempFolderName}") String tempFolderNames,
+                      @Value("${rootFolderWeights:}") String rootFolderWeights,
+                      @Value("${storageLayout:FLAT}") StorageLayout storageLayout,
+                      @Value("${shardLevels:1}") int shardLevels) {
+        if (shardLevels < 1 || shardLevels > MAX_SHARD_LEVELS) {
+            throw new IllegalArgumentException("shardLevels must be between 1 and " + MAX_SHARD_LEVELS);
+        }
+        this.nioFilesWrapper = nioFilesWrapper;
+        this.sharded = storageLayout == StorageLayout.SHARDED;
+        this.shardLevels = shardLevels;
+
+        List<Path> folders = toPaths(rootFolderPaths);
+        List<Path> backupFolders = toPaths(backupFolderNames);
+        List<Path> tempFolders = toPaths(tempFolderNames);
+        String[] weights = StringUtils.commaDelimitedListToStringArray(rootFolderWeights);
+        if (folders.isEmpty()) {
+            throw new IllegalArgumentException("rootFolderPath must name at least one folder");
+        }
+        if (backupFolders.size() != folders.size() || tempFolders.size() != folders.size()) {
+            throw new IllegalArgumentException("backupFolderName and tempFolderName must name one folder per root folder");
+        }
+        if (weights.length != 0 && weights.length != folders.size()) {
+            throw new IllegalArgumentException("rootFolderWeights must give one weight per root folder");
+        }
+
+        List<Root> configuredRoots = new ArrayList<>();
+        List<String> rootFolderLines = new ArrayList<>();
+        for (int i = 0; i < folders.size(); i++) {
+            int weight = weights.length == 0 ? 1 : Integer.parseInt(weights[i].trim());
+            if (weight < 1) {
+                throw new IllegalArgumentException("The weight of a root folder must be positive");
+            }
+            for (Root root : configuredRoots) {
+                if (root.folder.startsWith(folders.get(i)) || folders.get(i).startsWith(root.folder)) {
+                    throw new IllegalArgumentException("The root folders must not contain each other");
+                }
+            }
+            Root root = new Root(folders.get(i), backupFolders.get(i), tempFolders.get(i));
+            configuredRoots.add(root);
+            rootFolderLines.add(weight + " " + root.folder);
+
+            for (int point = 0; point < POINTS_PER_WEIGHT * weight; point++) {
+                ring.put(hash(root.folder + "#" + point), root);
+            }
+        }
+        this.roots = Collections.unmodifiableList(configuredRoots);
+        this.rootFolders = Collections.unmodifiableList(folders);
+        Collections.sort(rootFolderLines);
+        this.rootFolderSet = String.join("\n", rootFolderLines);
+        this.misplacedFilesRemain = roots.size() > 1 && !rootFolderSet.equals(readBalancedRootFolders());
+        if (sharded) {
+            recheckFlatFiles();
+            LOG.info("Placing files in {} levels of shards of {}{}", shardLevels, rootFolders,
+                    hasFlatFiles() ? ", some files are still to be migrated from the root folders" : "");
+        }
+        if (roots.size() > 1) {
+            LOG.info("Striping files across the root folders {}", rootFolders);
+        }
+    }
+
+    public List<Path> getRootFolders() {
+        return rootFolders;
+    }
+
+    public boolean isSharded() {
+        return sharded;
+    }
+
+    /**
+     * Whether all the files are directly in a single root folder, so the file of a name is only ever at one path and
+     * every change shows in the modification time of that folder.
+     */
+    public boolean isSingleFolder() {
+        return !sharded && roots.size() == 1;
+    }
+
+    /**
+     * Whether files are left directly in the root folders of the sharded layout.
+     */
+    public boolean hasFlatFiles() {
+        for (Root root : roots) {
+            if (root.flatFilesRemain) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether files may be left in another root folder than the one their name is placed in.
+     */
+    public boolean hasMisplacedFiles() {
+        return misplacedFilesRemain;
+    }
+
+    /**
+     * Returns the root folder the name is placed in.
+     */
+    public Path getRootFolder(String name) {
+        return rootOf(name).folder;
+    }
+
+    /**
+     * Returns the root folder containing the path.
+     */
+    public Path getRootFolderOf(Path path) {
+        return rootContaining(path).folder;
+    }
+
+    /**
+     * Returns the backup folder of the root folder containing the path, on the same file system.
+     */
+    public Path getBackupFolder(Path path) {
+        return rootContaining(path).backupFolder;
+    }
+
+    /**
+     * Returns the temporary folder of the root folder containing the path, on the same file system.
+     */
+    public Path getTempFolder(Path path) {
+        return rootContaining(path).tempFolder;
+    }
+
+    /**
+     * Returns the path of the file of the name, where it is or would be created.
+     */
+    public Path resolve(String name) {
+        Root root = rootOf(name);
+        Path path = resolveIn(root, name);
+        if (misplacedFilesRemain && !nioFilesWrapper.exists(path)) {
+            for (Root other : roots) {
+                if (other != root) {
+                    Path misplacedPath = resolveIn(other, name);
+                    if (nioFilesWrapper.exists(misplacedPath)) {
+                        return misplacedPath;
+                    }
+                }
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Returns the path a write of the name must use, creating its shard and moving the file there when it is still in
+     * the root folder or in another root folder. Callers hold the write lock of the name.
+     */
+    public Path resolveForWrite(String name) throws IOException {
+        Root root = rootOf(name);
+        if (!sharded && !misplacedFilesRemain) {
+            return root.folder.resolve(name);
+        }
+
+        Path path = sharded ? shardPath(root, name) : root.folder.resolve(name);
+        if (sharded) {
+            nioFilesWrapper.createDirectories(path.getParent());
+        }
+
+        if (root.flatFilesRemain) {
+            Path flatPath = root.folder.resolve(name);
+            if (nioFilesWrapper.isRegularFile(flatPath) && !nioFilesWrapper.exists(path)) {
+                nioFilesWrapper.move(flatPath, path, StandardCopyOption.ATOMIC_MOVE);
+                LOG.debug("Moved {} to its shard", name);
+            }
+        }
+
+        if (misplacedFilesRemain && !nioFilesWrapper.exists(path)) {
+            for (Root other : roots) {
+                Path misplacedPath = other != root ? resolveIn(other, name) : null;
+                if (misplacedPath != null && nioFilesWrapper.isRegularFile(misplacedPath)) {
+                    copyToRoot(misplacedPath, root, path);
+                    nioFilesWrapper.delete(misplacedPath);
+                    LOG.debug("Moved {} to its root folder {}", name, root.folder);
+                    break;
+                }
+            }
+        }
+        return path;
+    }
+
+    /**
+     * The root folders may be on different file systems, so the file is copied to the temporary folder of its root
+     * folder and published from there, which never leaves a partial file under its name.
+     */
+    private void copyToRoot(Path misplacedPath, Root root, Path path) throws IOException {
+        Path tempPath = root.tempFolder.resolve(UUID.randomUUID().toString());
+        try {
+            nioFilesWrapper.copy(misplacedPath, tempPath, StandardCopyOption.COPY_ATTRIBUTES);
+            nioFilesWrapper.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            nioFilesWrapper.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Passes the path of every file of every root folder to the action, the files left in the root folders of the
+     * sharded layout included.
+     */
+    public void forEachFile(Consumer<Path> action) throws IOException {
+        for (Root root : roots) {
+            forEachFile(root.folder, action);
+        }
+    }
+
+    /**
+     * Passes the path of every file of the root folder to the action.
+     */
+    public void forEachFile(Path rootFolder, Consumer<Path> action) throws IOException {
+        if (!sharded) {
+            try (DirectoryStream<Path> directoryStream = nioFilesWrapper.newDirectoryStream(rootFolder)) {
+                directoryStream.forEach(action);
+            }
+            return;
+        }
+
+        try (DirectoryStream<Path> directoryStream = nioFilesWrapper.newDirectoryStream(rootFolder)) {
+            for (Path path : directoryStream) {
+                if (isShardFolder(path)) {
+                    forEachFile(path, 1, action);
+                } else {
+                    action.accept(path);
+                }
+            }
+        }
+    }
+
+    private void forEachFile(Path shardFolder, int level, Consumer<Path> action) throws IOException {
+        try (DirectoryStream<Path> directoryStream = nioFilesWrapper.newDirectoryStream(shardFolder)) {
+            for (Path path : directoryStream) {
+                if (level == shardLevels) {
+                    action.accept(path);
+                } else if (isShardFolder(path)) {
+                    forEachFile(path, level + 1, action);
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes the shard folders below the given folder to the action, parents before their children.
+     */
+    public void forEachShardFolder(Path folder, Consumer<Path> action) throws IOException {
+        if (!sharded || levelOf(folder) >= shardLevels) {
+            return;
+        }
+        try (DirectoryStream<Path> directoryStream = nioFilesWrapper.newDirectoryStream(folder)) {
+            for (Path path : directoryStream) {
+                if (isShardFolder(path)) {
+                    action.accept(path);
+                    forEachShardFolder(path, action);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the path is one of the subdirectories of the sharded layout rather than a file.
+     */
+    public boolean isShardFolder(Path path) {
+        if (!sharded) {
+            return false;
+        }
+        int level = levelOf(path);
+        return level >= 1 && level <= shardLevels && isShardName(path.getFileName().toString())
+                && nioFilesWrapper.isDirectory(path);
+    }
+
+    /**
+     * Checks again whether files are left in the root folders, once the {@link ShardMigrator} moved them.
+     */
+    void recheckFlatFiles() {
+        for (Root root : roots) {
+            root.flatFilesRemain = containsFlatFiles(root);
+        }
+    }
+
+    /**
+     * Stops looking up files in the root folders of the sharded layout, once the {@link ShardMigrator} moved them all.
+     */
+    void migrated() {
+        for (Root root : roots) {
+            root.flatFilesRemain = false;
+        }
+    }
+
+    /**
+     * Stops looking up files in the other root folders, once the {@link RootFolderRebalancer} moved them all.
+     */
+    void rebalanced() {
+        misplacedFilesRemain = false;
+        writeBalancedRootFolders();
+    }
+
+    private Path balancedRootFoldersPath() {
+        return roots.get(0).backupFolder.resolve(BALANCED_ROOT_FOLDERS_FILE_NAME);
+    }
+
+    private String readBalancedRootFolders() {
+        try {
+            return new String(nioFilesWrapper.readAllBytes(balancedRootFoldersPath()), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return "";
+        } catch (IOException e) {
+            LOG.warn("Couldn't read the root folders the files were balanced for, looking up files in all of them", e);
+            return "";
+        }
+    }
+
+    /**
+     * Published from the temporary folder, so a crash never leaves a partial root folder set behind.
+     */
+    private void writeBalancedRootFolders() {
+        Root root = roots.get(0);
+        Path tempPath = root.tempFolder.resolve(UUID.randomUUID().toString());
+        try {
+            nioFilesWrapper.write(tempPath, rootFolderSet.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+            nioFilesWrapper.move(tempPath, balancedRootFoldersPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Couldn't record the root folders the files were balanced for, they are rebalanced on the next startup", e);
+        } finally {
+            try {
+                nioFilesWrapper.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                LOG.warn("Couldn't delete the temporary file {}", tempPath, e);
+            }
+        }
+    }
+
+    Path shardPath(String name) {
+        return shardPath(rootOf(name), name);
+    }
+
+    private Path resolveIn(Root root, String name) {
+        if (!sharded) {
+            return root.folder.resolve(name);
+        }
+
+        Path shardPath = shardPath(root, name);
+        if (root.flatFilesRemain && !nioFilesWrapper.exists(shardPath)) {
+            Path flatPath = root.folder.resolve(name);
+            if (nioFilesWrapper.exists(flatPath)) {
+                return flatPath;
+            }
+        }
+        return shardPath;
+    }
+
+    private Path shardPath(Root root, String name) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(name.getBytes(StandardCharsets.UTF_8));
+        String hash = String.format("%08x", crc32.getValue());
+
+        Path path = root.folder;
+        for (int level = 0; level < shardLevels; level++) {
+            path = path.resolve(hash.substring(2 * level, 2 * level + 2));
+        }
+        return path.resolve(name);
+    }
+
+    private Root rootOf(String name) {
+        if (roots.size() == 1) {
+            return roots.get(0);
+        }
+        Map.Entry<Long, Root> point = ring.ceilingEntry(hash(name));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    private Root rootContaining(Path path) {
+        for (Root root : roots) {
+            if (path.startsWith(root.folder)) {
+                return root;
+            }
+        }
+        throw new IllegalArgumentException(path + " is in none of the root folders");
+    }
+
+    private int levelOf(Path path) {
+        for (Root root : roots) {
+            if (path.equals(root.folder)) {
+                return 0;
+            }
+            if (path.startsWith(root.folder)) {
+                return root.folder.relativize(path).getNameCount();
+            }
+        }
+        return -1;
+    }
+
+    private boolean containsFlatFiles(Root root) {
+        try (DirectoryStream<Path> directoryStream = nioFilesWrapper.newDirectoryStream(root.folder)) {
+            for (Path path : directoryStream) {
+                if (!isShardFolder(path)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            LOG.warn("Couldn't list {}, files are looked up in the root folder too", root.folder, e);
+            return true;
+        }
+    }
+
+    private static boolean isShardName(String name) {
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 && Character.digit(name.charAt(1), 16) >= 0;
+    }
+
+    private static List<Path> toPaths(String folderNames) {
+        List<Path> paths = new ArrayList<>();
+        for (String folderName : StringUtils.commaDelimitedListToStringArray(folderNames)) {
+            paths.add(Paths.get(folderName.trim()).toAbsolutePath().normalize());
+        }
+        return paths;
+    }
+
+    /**
+     * 64 bit FNV-1a of the UTF-8 bytes with the finalizer of MurmurHash3, which spreads close names over the ring.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static class Root {
+
+        private final Path folder;
+        private final Path backupFolder;
+        private final Path tempFolder;
+
+        private volatile boolean flatFilesRemain;
+
+        Root(Path folder, Path backupFolder, Path tempFolder) {
+            this.folder = folder;
+            this.backupFolder = backupFolder;
+            this.tempFolder = tempFolder;
+        }
+    }
+}
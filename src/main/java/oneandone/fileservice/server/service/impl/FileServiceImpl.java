@@ -2,18 +2,22 @@ package oneandone.fileservice.server.service.impl;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.regex.Pattern;
-
-import javax.annotation.PostConstruct;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,12 +26,21 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
+import oneandone.fileservice.server.cache.FileContentCache;
 import oneandone.fileservice.server.cache.FileCounterCache;
-import oneandone.fileservice.server.cache.FileNamesCache;
+import oneandone.fileservice.server.cache.FileMetadata;
+import oneandone.fileservice.server.cache.FileMetadataCache;
+import oneandone.fileservice.server.cache.StartupIndexer;
 import oneandone.fileservice.server.exception.ClientException;
 import oneandone.fileservice.server.exception.ClientExceptionMessage;
 import oneandone.fileservice.server.exception.ServerException;
+import oneandone.fileservice.server.exception.ServiceException;
+import oneandone.fileservice.server.lock.FileLock;
+import oneandone.fileservice.server.lock.FileLockManager;
 import oneandone.fileservice.server.model.File;
+import oneandone.fileservice.server.model.FolderStatistics;
+import oneandone.fileservice.server.search.FileNameSearch;
+import oneandone.fileservice.server.service.FileContent;
 import oneandone.fileservice.server.service.FileService;
 
 
@@ -37,11 +50,25 @@ public class FileServiceImpl implements FileService {
     private static final Logger LOGGER = LoggerFactory.getLogger(FileServiceImpl.class);
     public static final String VALID_FILENAME_CHARACTERS = "[a-zA-z0-9_-]{1,64}";
 
-    @Value("${rootFolderPath}")
-    private String rootFolderPath;
+    /**
+     * Times a file replaced by another process while it is opened is opened again.
+     */
+    private static final int MAX_OPEN_ATTEMPTS = 3;
+
+    @Value("${commitMode:BACKUP}")
+    private CommitMode commitMode = CommitMode.BACKUP;
+
+    /**
+     * How long counts and listings wait for the startup index before they are served partial.
+     */
+    @Value("${warmUpWaitMillis:5000}")
+    private long warmUpWaitMillis;
 
-    @Value("${backupFolderName}")
-    private String backupFolderName;
+    /**
+     * End of the wait for the startup index, set by the first count or listing. Later ones wait at most until then,
+     * so requests don't each block for the whole wait while the index is warming up.
+     */
+    private final AtomicLong warmUpDeadline = new AtomicLong();
 
     @Autowired
     private NioFilesWrapper nioFilesWrapper;
@@ -50,54 +77,142 @@ public class FileServiceImpl implements FileService {
     private FileCounterCache fileCounterCache;
 
     @Autowired
-    private FileNamesCache fileNamesCache;
+    private FileNameSearch fileNameSearch;
 
-    private Path fileUploadPath;
-    private Path fileBackupPath;
+    @Autowired
+    private FileLockManager fileLockManager;
 
-    @PostConstruct
-    void init( ){
-        this.fileUploadPath =Paths.get(rootFolderPath).toAbsolutePath().normalize();
-        this.fileBackupPath =Paths.get(backupFolderName).toAbsolutePath().normalize();
-    }
+    @Autowired
+    private FileContentCache fileContentCache;
+
+    @Autowired
+    private MappedFilePool mappedFilePool;
+
+    @Autowired
+    private FileMetadataCache fileMetadataCache;
+
+    @Autowired
+    private StartupIndexer startupIndexer;
+
+    @Autowired
+    private WriteJournal writeJournal;
+
+    @Autowired
+    private FileLayout fileLayout;
+
+    /**
+     * Modification time given to the last content written, see {@link #stampVersion(Path)}.
+     */
+    private final AtomicLong lastVersion = new AtomicLong();
 
     @Override
     public Optional<File> get(String name, FileReadOption ... fileReadOption) {
 
-        Path filePath = fileUploadPath.resolve(name);
+        try (FileLock ignored = fileLockManager.readLock(name)) {
 
-        if(nioFilesWrapper.notExists(filePath)){
-            return Optional.empty();
-        }
+            Path filePath = fileLayout.resolve(name);
+            FileMetadata metadata = readMetadata(name, filePath);
 
-        File file = new File();
-        file.setName(name);
-        try {
-            file.setLastModified(nioFilesWrapper.getLastModifiedTime(filePath).toMillis());
-        } catch (IOException e) {
-            throw new ServerException("Couldn't read file lastModifiedTime: " + name,e);
+            if(!metadata.exists()){
+                return Optional.empty();
+            }
+
+            File file = new File();
+            file.setName(name);
+            file.setLastModified(metadata.getLastModified());
+            file.setSize(metadata.getSize());
+            file.setETag(eTag(file.getLastModified(), file.getSize()));
+
+            if(fileReadOption.length == 0 || Arrays.asList(fileReadOption).contains(FileReadOption.ALL)) {
+                file.setContent(fileContentCache.get(name, file.getLastModified(), file.getSize()));
+                if(file.getContent() == null) {
+                    try {
+                        file.setContent(nioFilesWrapper.readAllBytes(filePath));
+                    } catch (IOException e) {
+                        throw new ServerException("Couldn't read file content: " + filePath, e);
+                    }
+                    fileContentCache.put(name, file.getLastModified(), file.getContent());
+                }
+            }
+
+            return Optional.of(file);
         }
+    }
 
-        if(fileReadOption.equals(FileReadOption.ALL)) {
-            try {
-                file.setContent(nioFilesWrapper.readAllBytes(filePath));
-            } catch (IOException e) {
-                throw new ServerException("Couldn't read file content: " + filePath, e);
+    @Override
+    public Optional<FileContent> openContent(String name) {
+
+        FileChannel fileChannel = null;
+        // Only opening takes the read lock, so a slow download doesn't hold back the writes of the names of its stripe
+        try (FileLock ignored = fileLockManager.readLock(name)) {
+            Path filePath = fileLayout.resolve(name);
+            BasicFileAttributes attributes = null;
+            for (int attempt = 1; attributes == null; attempt++) {
+                // The service can't replace the file while the lock is held, but other processes can: the attributes
+                // only describe the opened file when the path named the same version before and after opening it
+                BasicFileAttributes openingAttributes = nioFilesWrapper.readAttributes(filePath);
+                fileChannel = nioFilesWrapper.open(filePath);
+                BasicFileAttributes openedAttributes = nioFilesWrapper.readAttributes(filePath);
+                if (isSameVersion(openingAttributes, openedAttributes) && openedAttributes.size() == fileChannel.size()) {
+                    attributes = openedAttributes;
+                } else if (attempt < MAX_OPEN_ATTEMPTS) {
+                    closeQuietly(fileChannel);
+                    fileChannel = null;
+                } else {
+                    throw new IOException("The file kept changing while it was opened");
+                }
+            }
+            long size = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+
+            FileMetadata metadata = fileMetadataCache.get(name);
+            if(metadata != null && (!metadata.exists() || metadata.getSize() != size || metadata.getLastModified() != lastModified)) {
+                // Changed on disk without the watcher having reported it yet
+                fileMetadataCache.invalidate(name);
             }
+
+            return Optional.of(new ChannelFileContent(fileChannel, size, lastModified, eTag(lastModified, size),
+                    mappedFilePool.acquire(filePath, fileChannel, attributes)));
+        } catch (NoSuchFileException e) {
+            closeQuietly(fileChannel);
+            return Optional.empty();
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(fileChannel);
+            throw new ServerException("Couldn't open file content: " + name, e);
         }
+    }
 
-        return Optional.of(file);
+    private static boolean isSameVersion(BasicFileAttributes attributes, BasicFileAttributes otherAttributes) {
+        return Objects.equals(attributes.fileKey(), otherAttributes.fileKey())
+                && attributes.lastModifiedTime().equals(otherAttributes.lastModifiedTime())
+                && attributes.size() == otherAttributes.size();
+    }
+
+    private void closeQuietly(FileChannel fileChannel) {
+        if (fileChannel == null) {
+            return;
+        }
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't close the file channel", e);
+        }
     }
 
     @Override
     public void delete(String name) {
-        Path filePath = fileUploadPath.resolve(name);
 
-        if(nioFilesWrapper.notExists(filePath)){
-            throw new ClientException(ClientExceptionMessage.MISSING_FILE,"The file: " + name + " doesn't exist");
-        }
+        try (FileLock ignored = lockForWrite(name)) {
+
+            Path filePath = fileLayout.resolve(name);
+
+            if(nioFilesWrapper.notExists(filePath)){
+                throw new ClientException(ClientExceptionMessage.MISSING_FILE,"The file: " + name + " doesn't exist");
+            }
 
-        deleteFile(filePath);
+            deleteFile(filePath);
+            writeJournal.record(name);
+        }
 
     }
 
@@ -106,73 +221,130 @@ public class FileServiceImpl implements FileService {
 
         validateFile(file);
 
-        Path filePath = fileUploadPath.resolve(file.getName());
+        if(commitMode == CommitMode.ATOMIC_MOVE) {
+            create(file.getName(), new ByteArrayInputStream(file.getContent()));
+            return;
+        }
 
         Path backupFilePath=null;
 
         boolean fileBackedUp=false;
 
-        if(nioFilesWrapper.exists(filePath)) {
-            LOGGER.debug("File {} already exists, will overwrite.",file);
-            backupFilePath = backupFile(filePath);
-            fileBackedUp=true;
-        }
+        try (FileLock ignored = lockForWrite(file.getName())) {
+
+            Path filePath = resolveForWrite(file.getName());
+
+            if(nioFilesWrapper.exists(filePath)) {
+                LOGGER.debug("File {} already exists, will overwrite.",file);
+                backupFilePath = backupFile(filePath);
+                fileBackedUp=true;
+            }
+
+            try {
+                nioFilesWrapper.copy(new ByteArrayInputStream(file.getContent()),filePath, StandardCopyOption.REPLACE_EXISTING);
+                stampVersion(filePath);
+            } catch (IOException e) {
+                LOGGER.error("Failed to create file {}",filePath,e);
+                if(fileBackedUp) {
+                    rollbackFile(filePath, backupFilePath);
+                }
+                throw new ServerException("Couldn't create file", e);
+            }
 
-        try {
-            nioFilesWrapper.copy(new ByteArrayInputStream(file.getContent()),filePath, StandardCopyOption.REPLACE_EXISTING);
-        } catch (IOException e) {
-            LOGGER.error("Failed to create file {}",filePath,e);
             if(fileBackedUp) {
-                rollbackFile(filePath, backupFilePath);
+                deleteBackupFile(backupFilePath);
             }
-            throw new ServerException("Couldn't create file", e);
+            writeJournal.record(file.getName());
         }
 
-        if(fileBackedUp) {
-            deleteBackupFile(fileBackupPath.resolve(backupFilePath));
-        }
+    }
+
+    @Override
+    public void create(String name, InputStream content) {
+
+        validateFileName(name);
+
+        // The content is received before locking, only publishing it has to exclude the other writers.
+        Path tempFilePath = writeTempFile(name, content);
 
+        try (FileLock ignored = lockForWrite(name)) {
+            publishTempFile(tempFilePath, resolveForWrite(name));
+            writeJournal.record(name);
+        }
     }
 
     @Override
     public void update(String fileName, File file) {
 
-        Path currentFilePath = fileUploadPath.resolve(fileName);
+        validateUpdateRequest(fileName, file, file != null && file.getContent() != null);
 
-        validateUpdateRequest(fileName, file, currentFilePath);
+        if(commitMode == CommitMode.ATOMIC_MOVE && file.getContent() != null) {
+            updateContent(fileName, file, new ByteArrayInputStream(file.getContent()));
+            return;
+        }
 
-        Path backupFilePath = backupFile(currentFilePath);;
+        try (FileLock ignored = lockForWrite(fileName, file.getName())) {
 
-        Path filePathToModify = currentFilePath;
+            Path currentFilePath = resolveForWrite(fileName);
 
-        if(file.getName()!=null){
-            filePathToModify = fileUploadPath.resolve(file.getName());
+            validateFileVersion(fileName, file, statFile(currentFilePath));
 
-            if(nioFilesWrapper.exists(filePathToModify)){
-                deleteBackupFile(backupFilePath);
-                throw new ClientException(ClientExceptionMessage.FILENAME_CONFLICT,"File " + filePathToModify + " already exists.");
+            if(commitMode == CommitMode.ATOMIC_MOVE) {
+                renameFile(fileName, file, currentFilePath);
+                writeJournal.record(fileName, file.getName());
+                return;
             }
 
-            try {
-                nioFilesWrapper.move(currentFilePath,filePathToModify);
-            } catch (IOException e) {
-                rollbackFile(currentFilePath,backupFilePath);
-                throw new ServerException("Couldn't rename file " + fileName + " to " + file.getName() ,e);
+            Path backupFilePath = backupFile(currentFilePath);
+
+            Path filePathToModify = currentFilePath;
+
+            if(file.getName()!=null){
+                filePathToModify = resolveForWrite(file.getName());
+
+                if(nioFilesWrapper.exists(filePathToModify)){
+                    deleteBackupFile(backupFilePath);
+                    throw new ClientException(ClientExceptionMessage.FILENAME_CONFLICT,"File " + filePathToModify + " already exists.");
+                }
+
+                try {
+                    moveFile(currentFilePath,filePathToModify);
+                } catch (IOException e) {
+                    rollbackFile(currentFilePath,backupFilePath);
+                    throw new ServerException("Couldn't rename file " + fileName + " to " + file.getName() ,e);
+                }
             }
-        }
 
-        if(file.getContent()!=null){
-            try {
-                nioFilesWrapper.copy(new ByteArrayInputStream(file.getContent()),filePathToModify, StandardCopyOption.REPLACE_EXISTING);
-            } catch (IOException e) {
-                rollbackFile(currentFilePath,backupFilePath);
-                if(file.getName()!=null) {
-                    deleteFile(filePathToModify);
+            if(file.getContent()!=null){
+                try {
+                    nioFilesWrapper.copy(new ByteArrayInputStream(file.getContent()),filePathToModify, StandardCopyOption.REPLACE_EXISTING);
+                    stampVersion(filePathToModify);
+                } catch (IOException e) {
+                    rollbackFile(currentFilePath,backupFilePath);
+                    if(file.getName()!=null) {
+                        deleteFile(filePathToModify);
+                    }
+                    throw new ServerException("Couldn't update content of file " + fileName, e);
                 }
-                throw new ServerException("Couldn't update content of file " + fileName, e);
             }
+            deleteBackupFile(backupFilePath);
+            writeJournal.record(fileName, file.getName());
         }
-        deleteBackupFile(backupFilePath);
+    }
+
+    @Override
+    public void update(String fileName, File file, InputStream content) {
+
+        validateUpdateRequest(fileName, file, true);
+
+        updateContent(fileName, file, content);
+    }
+
+    @Override
+    public boolean awaitIndexed() {
+        long now = System.currentTimeMillis();
+        warmUpDeadline.compareAndSet(0, now + warmUpWaitMillis);
+        return startupIndexer.awaitIndexed(Math.max(0, warmUpDeadline.get() - now));
     }
 
     @Override
@@ -180,28 +352,188 @@ public class FileServiceImpl implements FileService {
         return fileCounterCache.getFolderFileCount();
     }
 
+    @Override
+    public FolderStatistics getStatistics() {
+        return fileCounterCache.getFolderStatistics();
+    }
+
     @Override
     public List<String> getFilename(String regex) {
+        return fileNameSearch.search(regex);
+    }
+
+    @Override
+    public String getFilename(String regex, String after, int limit, Consumer<? super String> action) {
+        return fileNameSearch.search(regex, after, limit, action);
+    }
+
+    /**
+     * Receives the new content into the temporary folder without holding the lock, then checks the version of the
+     * file again and publishes the content while holding it.
+     */
+    private void updateContent(String fileName, File file, InputStream content) {
+
+        // Fail fast, before receiving the content
+        try (FileLock ignored = fileLockManager.readLock(fileName)) {
+            validateFileVersion(fileName, file, readMetadata(fileName, fileLayout.resolve(fileName)));
+        }
+
+        Path tempFilePath = writeTempFile(file.getName() != null ? file.getName() : fileName, content);
+
+        try (FileLock ignored = lockForWrite(fileName, file.getName())) {
+            Path currentFilePath = resolveForWrite(fileName);
+            try {
+                validateFileVersion(fileName, file, statFile(currentFilePath));
+            } catch (ServiceException e) {
+                deleteTempFile(tempFilePath);
+                throw e;
+            }
+
+            replaceContent(file, tempFilePath, currentFilePath);
+            writeJournal.record(fileName, file.getName());
+        }
+    }
+
+    /**
+     * Takes the write lock of the files and drops what the caches hold for them. Readers can't fill the caches again
+     * before the lock is released, so they see the result of the write whether it succeeded or was rolled back.
+     */
+    private FileLock lockForWrite(String... names) {
+        FileLock fileLock = fileLockManager.writeLock(names);
+        for (String name : names) {
+            if(name != null) {
+                fileMetadataCache.invalidate(name);
+                fileContentCache.invalidate(name);
+                mappedFilePool.evict(fileLayout.resolve(name));
+            }
+        }
+        return fileLock;
+    }
+
+    /**
+     * Returns the cached metadata of the file or stats it. Callers hold a read lock of the file, so an entry put here
+     * can't predate a write of the service.
+     */
+    private FileMetadata readMetadata(String name, Path filePath) {
+        FileMetadata metadata = fileMetadataCache.get(name);
+
+        if(metadata == null) {
+            metadata = statFile(filePath);
+            fileMetadataCache.put(name, metadata);
+        }
+
+        return metadata;
+    }
+
+    /**
+     * Reads the metadata from the disk, which the checks made under the write lock rely on.
+     */
+    private FileMetadata statFile(Path filePath) {
+        if(nioFilesWrapper.notExists(filePath)) {
+            return FileMetadata.missing();
+        }
+
+        try {
+            return FileMetadata.of(nioFilesWrapper.getLastModifiedTime(filePath).toMillis(), nioFilesWrapper.size(filePath));
+        } catch (IOException e) {
+            throw new ServerException("Couldn't read metadata of the file " + filePath, e);
+        }
+    }
 
-        Pattern pattern = Pattern.compile(regex);
+    /**
+     * Publishes the new content from the temporary file, under the new name of the file when it is renamed. The new
+     * name is published before the old one is deleted, so a failure leaves the file under its old name: until the
+     * delete, listings and lookups may see both names, the old one with the old content.
+     */
+    private void replaceContent(File file, Path tempFilePath, Path currentFilePath) {
 
-        List<String> fileNames = new ArrayList<>();
+        Path filePathToModify = currentFilePath;
+
+        if(file.getName()!=null){
+            filePathToModify = resolveForWrite(file.getName());
 
-        for(CharSequence fileName: fileNamesCache.getFileNames()){
-            if(pattern.matcher(fileName).matches()){
-                fileNames.add(fileName.toString());
+            if(nioFilesWrapper.exists(filePathToModify)){
+                deleteTempFile(tempFilePath);
+                throw new ClientException(ClientExceptionMessage.FILENAME_CONFLICT,"File " + filePathToModify + " already exists.");
             }
         }
 
-        return fileNames;
+        publishTempFile(tempFilePath, filePathToModify);
+
+        if(!filePathToModify.equals(currentFilePath)) {
+            deleteFile(currentFilePath);
+        }
+    }
+
+    /**
+     * A rename leaves the file untouched when it fails, see {@link #moveFile}.
+     */
+    private void renameFile(String fileName, File file, Path currentFilePath) {
+
+        Path newFilePath = resolveForWrite(file.getName());
+
+        if(nioFilesWrapper.exists(newFilePath)){
+            throw new ClientException(ClientExceptionMessage.FILENAME_CONFLICT,"File " + newFilePath + " already exists.");
+        }
+
+        try {
+            moveFile(currentFilePath,newFilePath);
+        } catch (IOException e) {
+            throw new ServerException("Couldn't rename file " + fileName + " to " + file.getName() ,e);
+        }
+    }
+
+    /**
+     * A rename within a root folder is atomic by itself. A name placed in another root folder, which may be on another
+     * file system, is copied to the temporary folder of that root folder and published from there, so the new name
+     * never shows a partial file, and the file is deleted under its old name last. When that delete fails the new name
+     * is removed again.
+     */
+    private void moveFile(Path source, Path target) throws IOException {
+        Path targetRootFolder = fileLayout.getRootFolderOf(target);
+        if (targetRootFolder.equals(fileLayout.getRootFolderOf(source))) {
+            nioFilesWrapper.move(source, target);
+            return;
+        }
+
+        Path tempFilePath = fileLayout.getTempFolder(targetRootFolder).resolve(UUID.randomUUID().toString());
+        try {
+            nioFilesWrapper.copy(source, tempFilePath, StandardCopyOption.COPY_ATTRIBUTES);
+            nioFilesWrapper.move(tempFilePath, target, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            deleteTempFile(tempFilePath);
+        }
+
+        try {
+            nioFilesWrapper.delete(source);
+        } catch (IOException e) {
+            try {
+                nioFilesWrapper.deleteIfExists(target);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Resolves the path a write of the name uses, moving the file into its shard first. Callers hold the write lock.
+     */
+    private Path resolveForWrite(String name) {
+        try {
+            return fileLayout.resolveForWrite(name);
+        } catch (IOException e) {
+            throw new ServerException("Couldn't prepare the folder of the file " + name, e);
+        }
     }
 
     private Path backupFile(Path filePath) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd_hh_mm_ss_z");
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd_HH_mm_ss_SSS_z");
 
         String backupFileName = filePath.getFileName()+"_"+sdf.format(new Date());
 
-        Path backUpFilePath = fileBackupPath.resolve(backupFileName);
+        // The backup folder of each root folder is on its file system, so the copy stays on the disk
+        Path backUpFilePath = fileLayout.getBackupFolder(filePath).resolve(backupFileName);
 
         try {
             nioFilesWrapper.copy(filePath,backUpFilePath, StandardCopyOption.COPY_ATTRIBUTES);
@@ -213,12 +545,57 @@ public class FileServiceImpl implements FileService {
         return backUpFilePath;
     }
 
-    private void validateUpdateRequest(String fileName, File file, Path filePath) {
+    /**
+     * Streams the content into a new file of the temporary folder, which is on the same file system as the root folder
+     * the name is placed in.
+     */
+    private Path writeTempFile(String name, InputStream content) {
+        Path tempFilePath = fileLayout.getTempFolder(fileLayout.getRootFolder(name)).resolve(UUID.randomUUID().toString());
+
+        long size;
+        try {
+            size = nioFilesWrapper.copy(content, tempFilePath);
+        } catch (IOException e) {
+            deleteTempFile(tempFilePath);
+            throw new ServerException("Couldn't write temporary file " + tempFilePath, e);
+        }
+
+        if(size == 0) {
+            deleteTempFile(tempFilePath);
+            throw new ClientException(ClientExceptionMessage.MISSING_CONTENT, "The file content doesn't exist.");
+        }
+
+        return tempFilePath;
+    }
+
+    /**
+     * Atomically replaces the file with the temporary one, readers see either the old or the new content.
+     */
+    private void publishTempFile(Path tempFilePath, Path filePath) {
+        try {
+            stampVersion(tempFilePath);
+            nioFilesWrapper.move(tempFilePath, filePath, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.debug("Published {} as {}", tempFilePath, filePath);
+        } catch (IOException e) {
+            deleteTempFile(tempFilePath);
+            throw new ServerException("Couldn't move temporary file to " + filePath, e);
+        }
+    }
+
+    private void deleteTempFile(Path tempFilePath) {
+        try {
+            nioFilesWrapper.deleteIfExists(tempFilePath);
+        } catch (IOException e) {
+            LOGGER.error("Failed to delete temporary file: {}", tempFilePath);
+        }
+    }
+
+    private void validateUpdateRequest(String fileName, File file, boolean contentGiven) {
         if(fileName == null || fileName.trim().isEmpty()){
             throw new ClientException(ClientExceptionMessage.INVALID_FILENAME,"The filename is null");
         }
 
-        if(file==null || (file.getName()==null && file.getContent()==null)){
+        if(file==null || (file.getName()==null && !contentGiven)){
             throw new ClientException(ClientExceptionMessage.INVALID_REQUEST,"The name or the content is mandatory");
         }
 
@@ -226,24 +603,56 @@ public class FileServiceImpl implements FileService {
             validateFileName(file.getName());
         }
 
-        if(file.getLastModified()==0L){
-            throw new ClientException(ClientExceptionMessage.INVALID_REQUEST,"Last Modified date is mandatory");
+        if(file.getLastModified()==0L && file.getETag()==null){
+            throw new ClientException(ClientExceptionMessage.INVALID_REQUEST,"Last Modified date or entity tag is mandatory");
         }
+    }
 
-        if(nioFilesWrapper.notExists(filePath)){
+    private void validateFileVersion(String fileName, File file, FileMetadata metadata) {
+        if(!metadata.exists()){
             throw new ClientException(ClientExceptionMessage.MISSING_FILE,"The file "+fileName+" doesn't exist");
         }
 
-        FileTime lastModifiedDate;
-        try {
-            lastModifiedDate = nioFilesWrapper.getLastModifiedTime(filePath);
-        } catch (IOException e) {
-            throw new ServerException("Couldn't read last modified date of the file",e);
+        if(file.getETag()!=null){
+            if(!matchesETag(file.getETag(), eTag(metadata.getLastModified(), metadata.getSize()))){
+                throw new ClientException(ClientExceptionMessage.CONCURRENCY_CONFLICT,"The file "+fileName+" doesn't match "+file.getETag());
+            }
+        } else if(file.getLastModified()!=metadata.getLastModified()){
+            throw new ClientException(ClientExceptionMessage.CONCURRENCY_CONFLICT,"The file "+fileName+" was modified since last read.");
         }
+    }
 
-        if(file.getLastModified()!=lastModifiedDate.toMillis()){
-            throw new ClientException(ClientExceptionMessage.CONCURRENCY_CONFLICT,"The file "+fileName+" was modified since last read.");
+    /**
+     * Sets the modification time of content written under the write lock to a value no other write of the service
+     * used, the clock when it moved on since the last write. It serves as the version of the content: the entity tag
+     * changes with every write, even when two writes of the same size happen within one tick of the clock.
+     */
+    private void stampVersion(Path filePath) throws IOException {
+        long now = System.currentTimeMillis();
+        long version = lastVersion.updateAndGet(last -> Math.max(now, last + 1));
+        nioFilesWrapper.setLastModifiedTime(filePath, FileTime.fromMillis(version));
+    }
+
+    /**
+     * Strong entity tag derived from the modification time and the size, which doesn't need the content to be read.
+     * Every write of the service stamps a new modification time, see {@link #stampVersion(Path)}. Files changed on
+     * the disk by other processes keep theirs, so their writes of the same size within one tick aren't told apart.
+     */
+    private static String eTag(long lastModified, long size) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+    }
+
+    /**
+     * Evaluates an If-Match style list of entity tags with the strong comparison, weak tags never match.
+     */
+    private static boolean matchesETag(String expectedETags, String currentETag) {
+        for (String expectedETag : expectedETags.split(",")) {
+            String trimmed = expectedETag.trim();
+            if(trimmed.equals("*") || trimmed.equals(currentETag)){
+                return true;
+            }
         }
+        return false;
     }
 
     private void validateFileName(String name) {
@@ -0,0 +1,404 @@
+package oneandone.fileservice.server.service.impl;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.devtools.filewatch.ChangedFile;
+import org.springframework.boot.devtools.filewatch.FileChangeListener;
+
+import oneandone.fileservice.server.cache.FileNamesCache;
+
+/**
+ * Watches the root folders with a {@link WatchService}, backed by inotify on Linux, and passes the changes to the
+ * listener, like the polling FileSystemWatcher of devtools does. Nothing is polled, so an idle folder costs no CPU
+ * whatever the number of files, and changes are seen as soon as they are made.
+ * <p>
+ * The events following the first one for the batch window are collected into a {@link ChangeBatch}, which passes the
+ * net change of each file to the listener, so a bulk import is applied to the caches in a few large batches.
+ * <p>
+ * When the event queue of the watch service overflowed, events were lost: the folders are then listed and compared with
+ * the cached names, and the files modified since the last complete batch of events are reported as modified.
+ * <p>
+ * A watch service only watches the entries of a folder, so with the sharded {@link FileLayout} every shard folder is
+ * registered, which takes one inotify watch each and must fit fs.inotify.max_user_watches. Shard folders created later
+ * are registered when their creation is reported, and the files already created in them are reported as added. When a
+ * folder can't be registered, e.g. because the watches are used up, only that folder is listed at the rescan interval
+ * and compared with its previous listing, so its changes are still applied, late. The interval doubles up to
+ * {@link #MAX_RESCAN_BACKOFF} times while the unwatched folders don't change.
+ */
+public class FolderWatcher implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FolderWatcher.class);
+
+    /**
+     * File systems may round modification times, so files slightly older than the last events are rescanned too.
+     */
+    private static final long RESCAN_MARGIN_MILLIS = 2000;
+
+    /**
+     * Bounds the memory held by a batch, the changes of a bulk import are passed on in batches of this size.
+     */
+    private static final int MAX_BATCH_SIZE = 100000;
+
+    /**
+     * Bounds the rescan interval of the unwatched folders to this multiple of the configured one.
+     */
+    private static final int MAX_RESCAN_BACKOFF = 64;
+
+    private final NioFilesWrapper nioFilesWrapper;
+    private final FileLayout fileLayout;
+    private final List<Path> rootFolders;
+    private final FileChangeListener fileChangeListener;
+    private final FileNamesCache fileNamesCache;
+    private final long batchWindowMillis;
+    private final long rescanIntervalMillis;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Time up to which all the changes were passed to the listener.
+     */
+    private volatile long upToDateMillis;
+
+    /**
+     * The folders which couldn't be registered, so their changes are only found by rescanning them, with the
+     * modification times of their files by name as of their last listing.
+     */
+    private final Map<Path, Map<String, Long>> unwatchedFolders = new ConcurrentHashMap<>();
+
+    /**
+     * Current rescan interval of the unwatched folders and the time of their next rescan, used by the watcher thread.
+     */
+    private long unwatchedRescanMillis;
+    private long nextUnwatchedRescanNanos;
+
+    public FolderWatcher(NioFilesWrapper nioFilesWrapper, FileLayout fileLayout, FileChangeListener fileChangeListener,
+                         FileNamesCache fileNamesCache, long batchWindowMillis, long rescanIntervalMillis) throws IOException {
+        this.nioFilesWrapper = nioFilesWrapper;
+        this.fileLayout = fileLayout;
+        this.rootFolders = fileLayout.getRootFolders();
+        this.fileChangeListener = fileChangeListener;
+        this.fileNamesCache = fileNamesCache;
+        this.batchWindowMillis = batchWindowMillis;
+        this.rescanIntervalMillis = rescanIntervalMillis;
+        this.watchService = rootFolders.get(0).getFileSystem().newWatchService();
+        this.upToDateMillis = System.currentTimeMillis();
+        this.unwatchedRescanMillis = rescanIntervalMillis;
+        this.nextUnwatchedRescanNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(rescanIntervalMillis);
+        int watchedFolders = 0;
+        for (Path rootFolder : rootFolders) {
+            watchedFolders += register(rootFolder);
+        }
+        if (fileLayout.isSharded()) {
+            LOG.info("Watching {} folders of the sharded folders {}", watchedFolders, rootFolders);
+        }
+
+        this.thread = new Thread(this::watch, "folder-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+        LOG.info("Started watching folders: {}", rootFolders);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void watch() {
+        try {
+            boolean valid = true;
+            while (valid) {
+                if (!unwatchedFolders.isEmpty() && System.nanoTime() - nextUnwatchedRescanNanos >= 0) {
+                    rescanUnwatchedFolders();
+                }
+                WatchKey watchKey = unwatchedFolders.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(nextUnwatchedRescanNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (watchKey == null) {
+                    continue;
+                }
+                long polledMillis = System.currentTimeMillis();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+
+                ChangeBatch changeBatch = new ChangeBatch();
+                boolean complete = true;
+
+                while (watchKey != null) {
+                    complete = collect(watchKey, changeBatch);
+                    // A shard folder removed by hand only ends its own watch
+                    valid = watchKey.reset() || !rootFolders.contains(watchKey.watchable());
+
+                    long remaining = deadline - System.nanoTime();
+                    if (!complete || !valid || remaining <= 0 || changeBatch.size() >= MAX_BATCH_SIZE) {
+                        break;
+                    }
+                    watchKey = watchService.poll(remaining, TimeUnit.NANOSECONDS);
+                }
+
+                if (complete) {
+                    dispatch(changeBatch);
+                    upToDateMillis = polledMillis;
+                } else {
+                    rescan();
+                }
+            }
+            LOG.error("The folders {} can't be watched anymore", rootFolders);
+        } catch (ClosedWatchServiceException e) {
+            LOG.info("Stopped watching folders: {}", rootFolders);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return false when events were lost
+     */
+    private boolean collect(WatchKey watchKey, ChangeBatch changeBatch) {
+        Path folder = (Path) watchKey.watchable();
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                return false;
+            }
+            Path file = folder.resolve((Path) event.context());
+            if (fileLayout.isSharded() && nioFilesWrapper.isDirectory(file)) {
+                if (event.kind() == ENTRY_CREATE && fileLayout.isShardFolder(file)) {
+                    watchShardFolder(file, changeBatch);
+                }
+                continue;
+            }
+            add(changeBatch, file, toType(event.kind()));
+        }
+        return true;
+    }
+
+    /**
+     * Registers the folder and the shard folders below it. The folders which can't be registered are left to the
+     * rescans.
+     *
+     * @return the number of registered folders
+     */
+    private int register(Path folder) throws IOException {
+        List<Path> folders = new ArrayList<>();
+        folders.add(folder);
+        fileLayout.forEachShardFolder(folder, folders::add);
+        int registered = 0;
+        for (Path each : folders) {
+            if (registerFolder(each)) {
+                registered++;
+            }
+        }
+        return registered;
+    }
+
+    /**
+     * Registers a single folder. A folder which can't be registered is listed, so that its next rescan reports the
+     * changes made from now on.
+     *
+     * @return whether the folder is watched
+     */
+    private boolean registerFolder(Path folder) {
+        try {
+            folder.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            if (unwatchedFolders.remove(folder) != null) {
+                LOG.info("Watching {} again", folder);
+            }
+            return true;
+        } catch (IOException e) {
+            if (!unwatchedFolders.containsKey(folder)) {
+                LOG.error("Couldn't watch {}, e.g. as fs.inotify.max_user_watches is reached, rescanning it every {} ms "
+                        + "instead", folder, rescanIntervalMillis, e);
+                unwatchedFolders.put(folder, list(folder));
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Registers a new shard folder and reports the files created in it before it was registered.
+     */
+    private void watchShardFolder(Path shardFolder, ChangeBatch changeBatch) {
+        try {
+            register(shardFolder);
+            try (Stream<Path> paths = nioFilesWrapper.walk(shardFolder)) {
+                paths.filter(nioFilesWrapper::isRegularFile).forEach(file ->
+                        add(changeBatch, file, ChangedFile.Type.ADD));
+            }
+        } catch (IOException e) {
+            LOG.error("Couldn't watch the shard folder {}", shardFolder, e);
+        }
+    }
+
+    /**
+     * Lists the unwatched folders again and reports the differences with their previous listings. The folders which can
+     * be registered by now are listed a last time and then left to their events.
+     */
+    void rescanUnwatchedFolders() {
+        ChangeBatch changeBatch = new ChangeBatch();
+        for (Path folder : new ArrayList<>(unwatchedFolders.keySet())) {
+            Map<String, Long> previous = unwatchedFolders.get(folder);
+            if (previous == null) {
+                continue;
+            }
+            boolean watched = registerFolder(folder);
+            Map<String, Long> current;
+            try {
+                current = listFiles(folder);
+            } catch (NoSuchFileException e) {
+                unwatchedFolders.remove(folder);
+                current = Collections.emptyMap();
+            } catch (IOException e) {
+                LOG.error("Couldn't rescan the unwatched folder {}", folder, e);
+                continue;
+            }
+            for (Map.Entry<String, Long> entry : current.entrySet()) {
+                Long lastModified = previous.remove(entry.getKey());
+                if (lastModified == null) {
+                    add(changeBatch, folder.resolve(entry.getKey()), ChangedFile.Type.ADD);
+                } else if (!lastModified.equals(entry.getValue())) {
+                    add(changeBatch, folder.resolve(entry.getKey()), ChangedFile.Type.MODIFY);
+                }
+            }
+            for (String fileName : previous.keySet()) {
+                add(changeBatch, folder.resolve(fileName), ChangedFile.Type.DELETE);
+            }
+            if (!watched) {
+                unwatchedFolders.replace(folder, current);
+            }
+        }
+
+        if (changeBatch.isEmpty()) {
+            unwatchedRescanMillis = Math.min(unwatchedRescanMillis * 2, rescanIntervalMillis * MAX_RESCAN_BACKOFF);
+        } else {
+            LOG.debug("Rescanned {} unwatched folders and found {} changes", unwatchedFolders.size(), changeBatch.size());
+            unwatchedRescanMillis = rescanIntervalMillis;
+        }
+        nextUnwatchedRescanNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(unwatchedRescanMillis);
+        dispatch(changeBatch);
+    }
+
+    /**
+     * @return the modification times of the files directly in the folder by name, empty if it can't be listed
+     */
+    private Map<String, Long> list(Path folder) {
+        try {
+            return listFiles(folder);
+        } catch (IOException e) {
+            return new HashMap<>();
+        }
+    }
+
+    private Map<String, Long> listFiles(Path folder) throws IOException {
+        Map<String, Long> files = new HashMap<>();
+        try (Stream<Path> paths = nioFilesWrapper.list(folder)) {
+            for (Path file : (Iterable<Path>) paths::iterator) {
+                try {
+                    BasicFileAttributes attributes = nioFilesWrapper.readAttributes(file);
+                    if (attributes.isRegularFile()) {
+                        files.put(file.getFileName().toString(), attributes.lastModifiedTime().toMillis());
+                    }
+                } catch (NoSuchFileException e) {
+                    // Deleted meanwhile
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Reports the differences between the folder and the cached names, and the files modified since the listener was
+     * last up to date.
+     */
+    void rescan() {
+        long startedMillis = System.currentTimeMillis();
+        long modifiedSinceMillis = upToDateMillis - RESCAN_MARGIN_MILLIS;
+
+        Set<String> removedFileNames = new HashSet<>();
+        for (CharSequence fileName : fileNamesCache.getFileNames()) {
+            removedFileNames.add(fileName.toString());
+        }
+
+        ChangeBatch changeBatch = new ChangeBatch();
+        try {
+            // Shard folders created while the events were lost aren't watched yet
+            for (Path rootFolder : rootFolders) {
+                register(rootFolder);
+            }
+            fileLayout.forEachFile(file -> {
+                if (!removedFileNames.remove(file.getFileName().toString())) {
+                    add(changeBatch, file, ChangedFile.Type.ADD);
+                } else if (isModifiedSince(file, modifiedSinceMillis)) {
+                    add(changeBatch, file, ChangedFile.Type.MODIFY);
+                }
+            });
+        } catch (IOException e) {
+            LOG.error("Couldn't rescan the folders {}", rootFolders, e);
+            return;
+        }
+
+        for (String fileName : removedFileNames) {
+            add(changeBatch, fileLayout.resolve(fileName), ChangedFile.Type.DELETE);
+        }
+
+        LOG.warn("Events of the folders {} were lost, rescanned them and found {} changes", rootFolders, changeBatch.size());
+        dispatch(changeBatch);
+        upToDateMillis = startedMillis;
+    }
+
+    private boolean isModifiedSince(Path file, long millis) {
+        try {
+            return nioFilesWrapper.getLastModifiedTime(file).toMillis() >= millis;
+        } catch (IOException e) {
+            // Deleted meanwhile, its own event follows
+            return false;
+        }
+    }
+
+    private void dispatch(ChangeBatch changeBatch) {
+        if (changeBatch.isEmpty()) {
+            return;
+        }
+        try {
+            fileChangeListener.onChange(changeBatch.getChangedFilesByFolder());
+        } catch (RuntimeException e) {
+            LOG.error("Couldn't apply the changes of the folders {}", rootFolders, e);
+        }
+    }
+
+    private void add(ChangeBatch changeBatch, Path file, ChangedFile.Type type) {
+        changeBatch.add(fileLayout.getRootFolderOf(file).toFile(), file.toFile(), type);
+    }
+
+    private static ChangedFile.Type toType(WatchEvent.Kind<?> kind) {
+        if (kind == ENTRY_CREATE) {
+            return ChangedFile.Type.ADD;
+        }
+        return kind == ENTRY_DELETE ? ChangedFile.Type.DELETE : ChangedFile.Type.MODIFY;
+    }
+}
@@ -0,0 +1,265 @@
+package oneandone.fileservice.server.service.impl;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pool of read-only memory mappings of large files, reused across requests so their content is served from the page
+ * cache without being copied to the heap. The pool is bounded by the total mapped bytes and evicts in LRU order.
+ * <p>
+ * A mapping is reference counted: it is only unmapped once it was evicted, or its file changed, and no reader uses it
+ * anymore, since touching an unmapped buffer crashes the JVM. The service replaces files instead of truncating them,
+ * so a mapping in use keeps reading the version it was created for.
+ */
+@Component
+@ManagedResource(description = "Pool of memory mapped files")
+public class MappedFilePool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedFilePool.class);
+
+    private static final Consumer<ByteBuffer> UNMAPPER = createUnmapper();
+
+    private final long maxBytes;
+    private final long minFileSize;
+
+    private final LinkedHashMap<Path, MappedFile> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes;
+
+    private long hits;
+    private long misses;
+    private long unmaps;
+
+    public MappedFilePool(@Value("${mappedFilePoolMaxBytes:1073741824}") long maxBytes,
+                          @Value("${mappedReadMinFileSize:4194304}") long minFileSize) {
+        this.maxBytes = maxBytes;
+        this.minFileSize = minFileSize;
+        LOG.info("Mapping files from {} bytes, up to {} mapped bytes", minFileSize, maxBytes);
+    }
+
+    /**
+     * Returns the mapping of the content of the file opened by the channel, or null when the file is too small or too
+     * big to be mapped, or the attributes don't match the channel. The mapping must be closed once it isn't read
+     * anymore.
+     * <p>
+     * The attributes must be those of the opened file: the mapping is cached as the version they identify, by file key,
+     * modification time and size, and reused by the readers opening the same version.
+     */
+    public MappedFile acquire(Path file, FileChannel fileChannel, BasicFileAttributes attributes) throws IOException {
+        long size = fileChannel.size();
+
+        if (size < minFileSize || size > Math.min(Integer.MAX_VALUE, maxBytes) || attributes.size() != size) {
+            return null;
+        }
+
+        Path path = file.toAbsolutePath().normalize();
+
+        synchronized (this) {
+            MappedFile mappedFile = mappings.get(path);
+
+            if (mappedFile != null && mappedFile.isVersionOf(attributes)) {
+                hits++;
+                mappedFile.references++;
+                return mappedFile;
+            }
+
+            if (mappedFile != null) {
+                retire(path);
+            }
+
+            misses++;
+            MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            mappedFile = new MappedFile(attributes, buffer);
+            mappedFile.references++;
+            mappings.put(path, mappedFile);
+            mappedBytes += mappedFile.size;
+
+            evictOverflow();
+
+            return mappedFile;
+        }
+    }
+
+    /**
+     * Drops the mapping of a file which was modified, deleted or renamed.
+     */
+    public synchronized void evict(Path file) {
+        retire(file.toAbsolutePath().normalize());
+    }
+
+    private synchronized void release(MappedFile mappedFile) {
+        mappedFile.references--;
+        if (mappedFile.retired && mappedFile.references == 0) {
+            unmap(mappedFile);
+        }
+    }
+
+    private void evictOverflow() {
+        List<Path> victims = new ArrayList<>();
+        long remaining = mappedBytes;
+        for (Map.Entry<Path, MappedFile> entry : mappings.entrySet()) {
+            if (remaining <= maxBytes) {
+                break;
+            }
+            victims.add(entry.getKey());
+            remaining -= entry.getValue().size;
+        }
+        victims.forEach(this::retire);
+    }
+
+    private void retire(Path path) {
+        MappedFile mappedFile = mappings.remove(path);
+        if (mappedFile == null) {
+            return;
+        }
+        mappedBytes -= mappedFile.size;
+        mappedFile.retired = true;
+        if (mappedFile.references == 0) {
+            unmap(mappedFile);
+        }
+    }
+
+    private void unmap(MappedFile mappedFile) {
+        unmaps++;
+        UNMAPPER.accept(mappedFile.buffer);
+    }
+
+    @ManagedAttribute(description = "Number of mapped files in the pool")
+    public synchronized int getSize() {
+        return mappings.size();
+    }
+
+    @ManagedAttribute(description = "Total bytes mapped by the pool")
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    @ManagedAttribute(description = "Number of reads served by an existing mapping")
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    @ManagedAttribute(description = "Number of reads which had to map the file")
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    @ManagedAttribute(description = "Number of mappings released")
+    public synchronized long getUnmapCount() {
+        return unmaps;
+    }
+
+    /**
+     * Unmaps buffers explicitly instead of waiting for the garbage collector, through the cleaner of the JDK in use.
+     */
+    private static Consumer<ByteBuffer> createUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Unsafe.invokeCleaner is not available, trying the Java 8 cleaner", e);
+        }
+
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> invoke(clean, invoke(cleaner, buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn("Mapped files can't be unmapped explicitly, they will be released by the garbage collector", e);
+            return buffer -> { };
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments) {
+        try {
+            return method.invoke(target, arguments);
+        } catch (ReflectiveOperationException e) {
+            LOG.warn("Couldn't unmap buffer", e);
+            return null;
+        }
+    }
+
+    /**
+     * A mapping of one version of a file, released with {@link #close()}.
+     */
+    public class MappedFile implements AutoCloseable {
+
+        private final Object fileKey;
+        private final long lastModified;
+        private final long size;
+        private final MappedByteBuffer buffer;
+        private int references;
+        private boolean retired;
+
+        private MappedFile(BasicFileAttributes attributes, MappedByteBuffer buffer) {
+            this.fileKey = attributes.fileKey();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.size = attributes.size();
+            this.buffer = buffer;
+        }
+
+        private boolean isVersionOf(BasicFileAttributes attributes) {
+            return Objects.equals(fileKey, attributes.fileKey())
+                    && lastModified == attributes.lastModifiedTime().toMillis()
+                    && size == attributes.size();
+        }
+
+        /**
+         * Writes {@code count} bytes from {@code position}, or less if the file is shorter.
+         *
+         * @return the number of bytes written
+         */
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            ByteBuffer region = region(position, count);
+
+            long written = 0;
+            while (region.hasRemaining()) {
+                written += target.write(region);
+            }
+            return written;
+        }
+
+        /**
+         * Returns a view of {@code count} bytes from {@code position}, or less if the file is shorter. Reading it
+         * throws an {@link InternalError} when the pages can't be read anymore, e.g. the file was truncated by
+         * another process.
+         */
+        ByteBuffer region(long position, long count) {
+            int start = (int) Math.min(size, position);
+            ByteBuffer region = buffer.duplicate();
+            ((Buffer) region).limit((int) Math.min(size, start + count));
+            ((Buffer) region).position(start);
+            return region;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+}
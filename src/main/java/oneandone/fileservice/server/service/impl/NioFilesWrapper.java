@@ -2,13 +2,19 @@ package oneandone.fileservice.server.service.impl;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
 
 import org.springframework.stereotype.Service;
 
@@ -23,10 +29,30 @@ public class NioFilesWrapper {
         return Files.isDirectory(path);
     }
 
+    public boolean isRegularFile(Path path) {
+        return Files.isRegularFile(path);
+    }
+
+    public void createDirectories(Path path) throws IOException {
+        Files.createDirectories(path);
+    }
+
     public byte[] readAllBytes(Path path) throws IOException {
         return Files.readAllBytes(path);
     }
 
+    public long size(Path path) throws IOException {
+        return Files.size(path);
+    }
+
+    public BasicFileAttributes readAttributes(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+
+    public FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
     public void delete(Path path) throws IOException {
         Files.delete(path);
     }
@@ -35,6 +61,15 @@ public class NioFilesWrapper {
         Files.copy(byteArrayInputStream,filePath, copyOption);
     }
 
+    /**
+     * Streams the input into the file through a fixed size buffer.
+     *
+     * @return the number of bytes written
+     */
+    public long copy(InputStream inputStream, Path filePath, CopyOption... copyOption) throws IOException {
+        return Files.copy(inputStream, filePath, copyOption);
+    }
+
     public boolean exists(Path path) {
         return Files.exists(path);
     }
@@ -43,10 +78,26 @@ public class NioFilesWrapper {
         Files.move(source,target);
     }
 
+    public void move(Path source, Path target, CopyOption... copyOption) throws IOException {
+        Files.move(source, target, copyOption);
+    }
+
+    public boolean deleteIfExists(Path path) throws IOException {
+        return Files.deleteIfExists(path);
+    }
+
+    public FileStore getFileStore(Path path) throws IOException {
+        return Files.getFileStore(path);
+    }
+
     public FileTime getLastModifiedTime(Path path) throws IOException {
         return Files.getLastModifiedTime(path);
     }
 
+    public void setLastModifiedTime(Path path, FileTime time) throws IOException {
+        Files.setLastModifiedTime(path, time);
+    }
+
     public void createFile(Path path) throws IOException {
         Files.createFile(path);
     }
@@ -62,4 +113,20 @@ public class NioFilesWrapper {
     public void copy(Path source, Path target, StandardCopyOption copyOption) throws IOException {
         Files.copy(source,target,copyOption);
     }
+
+    public Stream<Path> list(Path path) throws IOException {
+        return Files.list(path);
+    }
+
+    public Stream<Path> walk(Path path) throws IOException {
+        return Files.walk(path);
+    }
+
+    public InputStream newInputStream(Path path) throws IOException {
+        return Files.newInputStream(path);
+    }
+
+    public OutputStream newOutputStream(Path path) throws IOException {
+        return Files.newOutputStream(path);
+    }
 }
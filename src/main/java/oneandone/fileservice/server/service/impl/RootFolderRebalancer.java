@@ -0,0 +1,208 @@
+package oneandone.fileservice.server.service.impl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import oneandone.fileservice.server.exception.ServerException;
+import oneandone.fileservice.server.lock.FileLock;
+import oneandone.fileservice.server.lock.FileLockManager;
+
+/**
+ * Moves the files found in another root folder than the one their name is placed in, e.g. the share of the files taken
+ * over by a root folder which was added, while the service keeps serving them. Every root folder is listed, and only
+ * the misplaced files are copied to their root folder and deleted, each under the write lock of its name. The moves
+ * are recorded in the {@link WriteJournal}, so the watcher doesn't report the files as deleted and created again.
+ * <p>
+ * The {@link FileLayout} records the root folders and weights of the last run which completed without failures, so the
+ * files are rebalanced in the background on startup when they changed since, unless {@code rebalanceOnStartup=false}.
+ * Until such a run completed, files missing from their root folder are looked up in the others.
+ */
+@Component
+@ManagedResource(description = "Rebalancing of the files across the root folders")
+public class RootFolderRebalancer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RootFolderRebalancer.class);
+
+    private static final int CHUNK_SIZE = 1024;
+
+    @Value("${rebalanceOnStartup:true}")
+    private boolean rebalanceOnStartup;
+
+    /**
+     * Number of files moved in parallel by the rebalancing on startup.
+     */
+    @Value("${rebalanceThreads:2}")
+    private int rebalanceThreads;
+
+    @Autowired
+    private NioFilesWrapper nioFilesWrapper;
+
+    @Autowired
+    private FileLayout fileLayout;
+
+    @Autowired
+    private FileLockManager fileLockManager;
+
+    @Autowired
+    private WriteJournal writeJournal;
+
+    @Autowired
+    private MappedFilePool mappedFilePool;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final LongAdder movedFiles = new LongAdder();
+
+    private final LongAdder failedFiles = new LongAdder();
+
+    @EventListener(ContextRefreshedEvent.class)
+    public void start() {
+        if (rebalanceOnStartup && fileLayout.hasMisplacedFiles() && running.compareAndSet(false, true)) {
+            startInBackground(rebalanceThreads);
+        }
+    }
+
+    @ManagedOperation(description = "Starts moving the files found in another root folder into their own")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "threads", description = "Number of files moved in parallel")
+    })
+    public void rebalance(int threads) {
+        if (fileLayout.getRootFolders().size() < 2) {
+            throw new ServerException("Several root folders are needed to rebalance the files");
+        }
+        if (threads < 1) {
+            throw new ServerException("At least one thread is needed to rebalance the files");
+        }
+        if (!running.compareAndSet(false, true)) {
+            throw new ServerException("The files are already being rebalanced");
+        }
+
+        startInBackground(threads);
+    }
+
+    private void startInBackground(int threads) {
+        Thread thread = new Thread(() -> rebalanceInBackground(threads), "root-folder-rebalancer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void rebalanceInBackground(int threads) {
+        try {
+            rebalanceFiles(threads);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Couldn't rebalance the files of {}", fileLayout.getRootFolders(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    void rebalanceFiles(int threads) throws IOException, InterruptedException {
+        long startedAt = System.currentTimeMillis();
+        long movedBefore = movedFiles.sum();
+        long failedBefore = failedFiles.sum();
+        LOG.info("Rebalancing the files of {} with {} threads", fileLayout.getRootFolders(), threads);
+
+        ExecutorService movers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "root-folder-rebalancer-mover");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            for (Path rootFolder : fileLayout.getRootFolders()) {
+                rebalanceFiles(rootFolder, movers);
+            }
+        } finally {
+            movers.shutdown();
+            movers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        boolean complete = failedFiles.sum() == failedBefore;
+        if (complete) {
+            fileLayout.rebalanced();
+        }
+        LOG.info("Moved {} files to their root folders in {} ms, {}", movedFiles.sum() - movedBefore,
+                System.currentTimeMillis() - startedAt,
+                complete ? "the files are balanced" : "some files couldn't be moved");
+    }
+
+    private void rebalanceFiles(Path rootFolder, ExecutorService movers) throws IOException {
+        List<Path> chunk = new ArrayList<>(CHUNK_SIZE);
+        fileLayout.forEachFile(rootFolder, path -> {
+            if (rootFolder.equals(fileLayout.getRootFolder(path.getFileName().toString()))) {
+                return;
+            }
+            chunk.add(path);
+            if (chunk.size() == CHUNK_SIZE) {
+                List<Path> files = new ArrayList<>(chunk);
+                movers.execute(() -> files.forEach(this::move));
+                chunk.clear();
+            }
+        });
+        movers.execute(() -> chunk.forEach(this::move));
+    }
+
+    private void move(Path misplacedPath) {
+        if (!nioFilesWrapper.isRegularFile(misplacedPath)) {
+            return;
+        }
+
+        String name = misplacedPath.getFileName().toString();
+        try (FileLock ignored = fileLockManager.writeLock(name)) {
+            Path path = fileLayout.resolveForWrite(name);
+            if (!nioFilesWrapper.exists(path)) {
+                throw new IOException("The file wasn't copied to " + path);
+            }
+            // Left behind by a move interrupted after its copy was published, which is the current file
+            nioFilesWrapper.deleteIfExists(misplacedPath);
+            mappedFilePool.evict(misplacedPath);
+            writeJournal.record(name);
+            movedFiles.increment();
+        } catch (IOException | RuntimeException e) {
+            failedFiles.increment();
+            LOG.warn("Couldn't move {} to its root folder", misplacedPath, e);
+        }
+    }
+
+    @ManagedAttribute(description = "Whether files are being rebalanced")
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @ManagedAttribute(description = "Whether files may be left in another root folder")
+    public boolean isMisplacedFilesLeft() {
+        return fileLayout.hasMisplacedFiles();
+    }
+
+    @ManagedAttribute(description = "Number of files moved to their root folders")
+    public long getMovedFileCount() {
+        return movedFiles.sum();
+    }
+
+    @ManagedAttribute(description = "Number of files which couldn't be moved")
+    public long getFailedFileCount() {
+        return failedFiles.sum();
+    }
+}
@@ -0,0 +1,181 @@
+package oneandone.fileservice.server.service.impl;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import oneandone.fileservice.server.exception.ServerException;
+import oneandone.fileservice.server.lock.FileLock;
+import oneandone.fileservice.server.lock.FileLockManager;
+
+/**
+ * Moves the files left directly in the root folders into their shards while the service keeps serving them, once the
+ * store was switched to {@link StorageLayout#SHARDED}. Each file is moved under the write lock of its name and the move
+ * is recorded in the {@link WriteJournal}, so readers find the file at either place and the watcher doesn't report it
+ * as deleted and created again. The files are moved by a pool of threads, in the background.
+ */
+@Component
+@ManagedResource(description = "Migration of the root folders to the sharded layout")
+public class ShardMigrator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardMigrator.class);
+
+    private static final int CHUNK_SIZE = 1024;
+
+    @Autowired
+    private NioFilesWrapper nioFilesWrapper;
+
+    @Autowired
+    private FileLayout fileLayout;
+
+    @Autowired
+    private FileLockManager fileLockManager;
+
+    @Autowired
+    private WriteJournal writeJournal;
+
+    @Autowired
+    private MappedFilePool mappedFilePool;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private final LongAdder migratedFiles = new LongAdder();
+
+    private final LongAdder failedFiles = new LongAdder();
+
+    @ManagedOperation(description = "Starts moving the files of the root folders into their shards")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "threads", description = "Number of files moved in parallel")
+    })
+    public void migrate(int threads) {
+        if (!fileLayout.isSharded()) {
+            throw new ServerException("The storage layout must be SHARDED to migrate the files into shards");
+        }
+        if (threads < 1) {
+            throw new ServerException("At least one thread is needed to migrate the files");
+        }
+        if (!running.compareAndSet(false, true)) {
+            throw new ServerException("The files are already being migrated");
+        }
+
+        Thread thread = new Thread(() -> migrateInBackground(threads), "shard-migrator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void migrateInBackground(int threads) {
+        try {
+            migrateFiles(threads);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Couldn't migrate the files of {} into shards", fileLayout.getRootFolders(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    void migrateFiles(int threads) throws IOException, InterruptedException {
+        long startedAt = System.currentTimeMillis();
+        long migratedBefore = migratedFiles.sum();
+        long failedBefore = failedFiles.sum();
+        LOG.info("Migrating the files of {} into shards with {} threads", fileLayout.getRootFolders(), threads);
+
+        ExecutorService movers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "shard-migrator-mover");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            for (Path rootFolder : fileLayout.getRootFolders()) {
+                migrateFiles(rootFolder, movers);
+            }
+        } finally {
+            movers.shutdown();
+            movers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        if (failedFiles.sum() == failedBefore) {
+            fileLayout.migrated();
+        } else {
+            fileLayout.recheckFlatFiles();
+        }
+        LOG.info("Migrated {} files into shards in {} ms, {} files are left in the root folders",
+                migratedFiles.sum() - migratedBefore, System.currentTimeMillis() - startedAt,
+                fileLayout.hasFlatFiles() ? "some" : "no");
+    }
+
+    private void migrateFiles(Path rootFolder, ExecutorService movers) throws IOException {
+        try (DirectoryStream<Path> directoryStream = nioFilesWrapper.newDirectoryStream(rootFolder)) {
+            List<Path> chunk = new ArrayList<>(CHUNK_SIZE);
+            for (Path path : directoryStream) {
+                if (fileLayout.isShardFolder(path)) {
+                    continue;
+                }
+                chunk.add(path);
+                if (chunk.size() == CHUNK_SIZE) {
+                    List<Path> files = chunk;
+                    movers.execute(() -> files.forEach(this::move));
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                }
+            }
+            List<Path> files = chunk;
+            movers.execute(() -> files.forEach(this::move));
+        }
+    }
+
+    private void move(Path flatPath) {
+        if (!nioFilesWrapper.isRegularFile(flatPath)) {
+            return;
+        }
+
+        String name = flatPath.getFileName().toString();
+        try (FileLock ignored = fileLockManager.writeLock(name)) {
+            fileLayout.resolveForWrite(name);
+            mappedFilePool.evict(flatPath);
+            writeJournal.record(name);
+            migratedFiles.increment();
+        } catch (IOException | RuntimeException e) {
+            failedFiles.increment();
+            LOG.warn("Couldn't move {} into its shard", flatPath, e);
+        }
+    }
+
+    @ManagedAttribute(description = "Whether files are being migrated")
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @ManagedAttribute(description = "Whether files are left in the root folders")
+    public boolean isFlatFilesLeft() {
+        return fileLayout.hasFlatFiles();
+    }
+
+    @ManagedAttribute(description = "Number of files moved into their shards")
+    public long getMigratedFileCount() {
+        return migratedFiles.sum();
+    }
+
+    @ManagedAttribute(description = "Number of files which couldn't be moved")
+    public long getFailedFileCount() {
+        return failedFiles.sum();
+    }
+}
@@ -0,0 +1,16 @@
+package oneandone.fileservice.server.service.impl;
+
+/**
+ * Where the files are placed under the root folder, set with the {@code storageLayout} property.
+ */
+public enum StorageLayout {
+    /**
+     * All files directly in the root folder.
+     */
+    FLAT,
+    /**
+     * Each file in nested subdirectories named after the hash of its name, e.g. {@code 3f/a2/name}, so no directory
+     * holds more than a fraction of the files. The names used by the API stay flat.
+     */
+    SHARDED
+}
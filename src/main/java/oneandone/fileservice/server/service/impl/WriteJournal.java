@@ -0,0 +1,170 @@
+package oneandone.fileservice.server.service.impl;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import oneandone.fileservice.server.cache.FileMetadata;
+import oneandone.fileservice.server.cache.FileMetadataCache;
+import oneandone.fileservice.server.cache.FileNamesCache;
+
+/**
+ * Applies the writes of the service to the names and metadata caches while the write lock is still held, so a client
+ * finds its own write in the listings and the counts right away, and remembers the state each write left the files in.
+ * <p>
+ * The file watcher reports the same changes later. When a file is still in the state the service left it in, its change
+ * was already applied and the watcher skips it, keeping the caches the write filled. The states are remembered for
+ * {@code writeJournalMillis}, which must cover the delay of the watcher.
+ */
+@Component
+@ManagedResource(description = "Writes of the service applied to the caches")
+public class WriteJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteJournal.class);
+
+    @Value("${writeJournalMillis:60000}")
+    private long retentionMillis;
+
+    @Autowired
+    private NioFilesWrapper nioFilesWrapper;
+
+    @Autowired
+    private FileLayout fileLayout;
+
+    @Autowired
+    private FileNamesCache fileNamesCache;
+
+    @Autowired
+    private FileMetadataCache fileMetadataCache;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile long lastSweep = System.nanoTime();
+
+    private final LongAdder skippedChanges = new LongAdder();
+
+    /**
+     * Reads the current state of the written files and applies it to the caches. Callers hold the write lock of the
+     * names.
+     */
+    void record(String... names) {
+        sweep();
+
+        List<String> existingFileNames = new ArrayList<>();
+        List<String> deletedFileNames = new ArrayList<>();
+        Map<String, Long> sizes = new HashMap<>();
+
+        for (String name : names) {
+            if (name == null) {
+                continue;
+            }
+            FileMetadata metadata = stat(fileLayout.resolve(name));
+            if (metadata == null) {
+                continue;
+            }
+
+            entries.put(name, new Entry(metadata, System.nanoTime()));
+            fileMetadataCache.put(name, metadata);
+            if (metadata.exists()) {
+                existingFileNames.add(name);
+                sizes.put(name, metadata.getSize());
+            } else {
+                deletedFileNames.add(name);
+            }
+        }
+
+        fileNamesCache.update(existingFileNames, deletedFileNames);
+        fileNamesCache.updateSizes(sizes);
+    }
+
+    boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Whether the file is in the state a recent write of the service left it in, so its change was already applied.
+     */
+    boolean isApplied(String name, FileMetadata metadata) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return false;
+        }
+        if (isExpired(entry, System.nanoTime())) {
+            entries.remove(name, entry);
+            return false;
+        }
+
+        boolean applied = entry.metadata.exists() == metadata.exists()
+                && entry.metadata.getLastModified() == metadata.getLastModified()
+                && entry.metadata.getSize() == metadata.getSize();
+        if (applied) {
+            skippedChanges.increment();
+        }
+        return applied;
+    }
+
+    /**
+     * Returns the metadata of the file, missing when it doesn't exist, or null when it couldn't be read.
+     */
+    FileMetadata stat(Path filePath) {
+        try {
+            BasicFileAttributes attributes = nioFilesWrapper.readAttributes(filePath);
+            return FileMetadata.of(attributes.lastModifiedTime().toMillis(), attributes.size());
+        } catch (NoSuchFileException e) {
+            return FileMetadata.missing();
+        } catch (IOException e) {
+            LOG.warn("Couldn't read the metadata of {}", filePath, e);
+            return null;
+        }
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        if (now - lastSweep < TimeUnit.MILLISECONDS.toNanos(retentionMillis)) {
+            return;
+        }
+        lastSweep = now;
+        entries.values().removeIf(entry -> isExpired(entry, now));
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.recordedAt > TimeUnit.MILLISECONDS.toNanos(retentionMillis);
+    }
+
+    @ManagedAttribute(description = "Number of remembered writes")
+    public int getSize() {
+        return entries.size();
+    }
+
+    @ManagedAttribute(description = "Number of watcher changes skipped because a write already applied them")
+    public long getSkippedChangeCount() {
+        return skippedChanges.sum();
+    }
+
+    private static class Entry {
+
+        private final FileMetadata metadata;
+        private final long recordedAt;
+
+        Entry(FileMetadata metadata, long recordedAt) {
+            this.metadata = metadata;
+            this.recordedAt = recordedAt;
+        }
+    }
+}
@@ -1,16 +1,16 @@
 package oneandone.fileservice.startup;
 
+import java.io.IOException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import oneandone.fileservice.server.exception.ServerException;
+import oneandone.fileservice.server.service.impl.FileLayout;
 import oneandone.fileservice.server.service.impl.NioFilesWrapper;
 
 @Component
@@ -18,11 +18,8 @@ public class FileConfigurationValidator implements InitializingBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(FileConfigurationValidator.class);
 
-    @Value("${rootFolderPath}")
-    String rootFolderPath;
-
-    @Value("${backupFolderName}")
-    String backupFolderName;
+    @Autowired
+    private FileLayout fileLayout;
 
     @Autowired
     private NioFilesWrapper nioFilesWrapper;
@@ -30,17 +27,41 @@ public class FileConfigurationValidator implements InitializingBean {
     @Override
     public void afterPropertiesSet() {
 
-        LOG.info("The store folder is: {}", rootFolderPath);
-        Path rootFolder = Paths.get(this.rootFolderPath).toAbsolutePath().normalize();
+        for (Path rootFolder : fileLayout.getRootFolders()) {
+            validate(rootFolder);
+        }
+
+    }
+
+    private void validate(Path rootFolder) {
+
+        LOG.info("The store folder is: {}", rootFolder);
         if(nioFilesWrapper.notExists(rootFolder) || !nioFilesWrapper.isDirectory(rootFolder)){
             throw new ServerException("The folder specified for saving the files doesn't exist");
         }
 
-        LOG.info("The backup folder is: {}", backupFolderName);
-        Path backupFolderPath = Paths.get(this.backupFolderName).toAbsolutePath().normalize();
+        Path backupFolderPath = fileLayout.getBackupFolder(rootFolder);
+        LOG.info("The backup folder is: {}", backupFolderPath);
         if(nioFilesWrapper.notExists(backupFolderPath) || !nioFilesWrapper.isDirectory(backupFolderPath)){
             throw new ServerException("The folder specified for backing up the files doesn't exist");
         }
 
+        Path tempFolderPath = fileLayout.getTempFolder(rootFolder);
+        LOG.info("The temporary folder is: {}", tempFolderPath);
+        if(nioFilesWrapper.notExists(tempFolderPath) || !nioFilesWrapper.isDirectory(tempFolderPath)){
+            throw new ServerException("The folder specified for temporary files doesn't exist");
+        }
+
+        try {
+            if(!nioFilesWrapper.getFileStore(tempFolderPath).equals(nioFilesWrapper.getFileStore(rootFolder))){
+                throw new ServerException("The temporary folder must be on the same file system as the store folder");
+            }
+            if(!nioFilesWrapper.getFileStore(backupFolderPath).equals(nioFilesWrapper.getFileStore(rootFolder))){
+                LOG.warn("The backup folder {} isn't on the file system of {}, backups are copied across devices", backupFolderPath, rootFolder);
+            }
+        } catch (IOException e) {
+            throw new ServerException("Couldn't read the file systems of the folders of " + rootFolder, e);
+        }
+
     }
 }
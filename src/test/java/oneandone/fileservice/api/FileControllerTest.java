@@ -1,5 +1,14 @@
 package oneandone.fileservice.api;
 
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.MOCK;
 import static org.springframework.test.web.client.MockRestServiceServer.createServer;
@@ -9,17 +18,27 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
@@ -31,7 +50,10 @@ import oneandone.fileservice.server.exception.ClientException;
 import oneandone.fileservice.server.exception.ClientExceptionMessage;
 import oneandone.fileservice.server.exception.ServerException;
 import oneandone.fileservice.server.model.File;
+import oneandone.fileservice.server.model.FolderStatistics;
+import oneandone.fileservice.server.service.FileContent;
 import oneandone.fileservice.server.service.FileService;
+import oneandone.fileservice.server.service.impl.FileReadOption;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest(
@@ -49,6 +71,9 @@ public class FileControllerTest {
     @MockBean
     private FileService fileService;
 
+    @Mock
+    private FileContent fileContent;
+
     @Before
     public void setup(){
         MockitoAnnotations.initMocks(this);
@@ -57,11 +82,109 @@ public class FileControllerTest {
     @Test
     public void testHeadFiles() throws Exception {
 
-        when(fileService.count()).thenReturn(5l);
+        when(fileService.getStatistics()).thenReturn(new FolderStatistics(5l, -1l, Collections.emptyMap()));
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.head("/file-service/v1/files");
+
+        mvc.perform(builder).andExpect(status().isOk()).andExpect(header().longValue("X-Total-Count",5l))
+                .andExpect(header().doesNotExist("X-Total-Bytes"));
+    }
+
+    @Test
+    public void testHeadFilesStatistics() throws Exception {
+
+        Map<String, Long> extensionCounts = new HashMap<>();
+        extensionCounts.put("", 1l);
+        extensionCounts.put("jpg", 2l);
+        extensionCounts.put("png", 3l);
+        extensionCounts.put("gif", 2l);
+        when(fileService.getStatistics()).thenReturn(new FolderStatistics(8l, 1024l, extensionCounts));
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.head("/file-service/v1/files");
+
+        mvc.perform(builder).andExpect(status().isOk())
+                .andExpect(header().longValue("X-Total-Count",8l))
+                .andExpect(header().longValue("X-Total-Bytes",1024l))
+                .andExpect(header().string("X-Extension-Counts","png=3, gif=2, jpg=2"));
+    }
+
+    @Test
+    public void testHeadFilesWhileWarmingUp() throws Exception {
+
+        when(fileService.awaitIndexed()).thenReturn(false);
+        when(fileService.getStatistics()).thenReturn(new FolderStatistics(2l, -1l, Collections.emptyMap()));
 
         MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.head("/file-service/v1/files");
 
-        mvc.perform(builder).andExpect(status().isOk()).andExpect(header().longValue("X-Total-Count",5l));
+        mvc.perform(builder).andExpect(status().isOk())
+                .andExpect(header().string("X-Warming-Up","true"))
+                .andExpect(header().longValue("X-Total-Count",2l));
+
+        when(fileService.awaitIndexed()).thenReturn(true);
+
+        mvc.perform(builder).andExpect(status().isOk()).andExpect(header().doesNotExist("X-Warming-Up"));
+    }
+
+    @Test
+    public void testGetFilesPage() throws Exception {
+
+        stubListing("file.*", null, 2, "file1", "file2");
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files")
+                .param("regex", "file.*")
+                .param("limit", "2");
+
+        mvc.perform(builder).andExpect(status().isOk())
+                .andExpect(header().string("X-Next-Cursor", "ZmlsZTI"))
+                .andExpect(header().doesNotExist("X-Total-Count"))
+                .andExpect(jsonPath("$[1]").value("file2"));
+
+        verify(fileService, never()).getFilename("file.*");
+    }
+
+    @Test
+    public void testGetFilesNextPage() throws Exception {
+
+        when(fileService.getFilename(eq("file.*"), eq("file2"), eq(2), any())).thenAnswer(invocation -> {
+            Consumer<String> action = invocation.getArgument(3);
+            action.accept("file3");
+            return null;
+        });
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files")
+                .param("regex", "file.*")
+                .param("limit", "2")
+                .param("cursor", "ZmlsZTI");
+
+        mvc.perform(builder).andExpect(status().isOk())
+                .andExpect(header().doesNotExist("X-Next-Cursor"))
+                .andExpect(jsonPath("$[0]").value("file3"));
+    }
+
+    @Test
+    public void testGetFilesInvalidLimit() throws Exception {
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files")
+                .param("regex", "file.*")
+                .param("limit", "0");
+
+        mvc.perform(builder).andExpect(status().isBadRequest())
+                .andExpect(content().string(ClientExceptionMessage.INVALID_REQUEST.toString()));
+    }
+
+    @Test
+    public void testStreamFiles() throws Exception {
+
+        stubListing("file.*", null, 2, "file1", "file2");
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files")
+                .param("regex", "file.*")
+                .param("limit", "2")
+                .accept("application/x-ndjson");
+
+        mvc.perform(builder).andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, startsWith("application/x-ndjson")))
+                .andExpect(content().string("{\"name\":\"file1\"}\n{\"name\":\"file2\"}\n{\"cursor\":\"ZmlsZTI\"}\n"));
     }
 
     @Test
@@ -81,17 +204,55 @@ public class FileControllerTest {
         file.setName("fileName.png");
         file.setContent("content".getBytes());
         file.setLastModified(12345);
+        file.setETag("\"3039-7\"");
 
+        when(fileService.get(file.getName(), FileReadOption.METADATA)).thenReturn(Optional.of(file));
         when(fileService.get(file.getName())).thenReturn(Optional.of(file));
 
         MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files/"+file.getName());
 
         mvc.perform(builder).andExpect(status().isOk())
+                            .andExpect(header().string(HttpHeaders.ETAG, "\"3039-7\""))
                             .andExpect(jsonPath("$.name").value("fileName.png"))
                             .andExpect(jsonPath("$.content").isNotEmpty())
                             .andExpect(jsonPath("$.lastModified").value(12345));
     }
 
+    @Test
+    public void testGetFileNotModified() throws Exception {
+
+        File file = new File();
+        file.setName("fileName.png");
+        file.setLastModified(12345);
+        file.setETag("\"3039-7\"");
+
+        when(fileService.get(file.getName(), FileReadOption.METADATA)).thenReturn(Optional.of(file));
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files/"+file.getName())
+                .header(HttpHeaders.IF_NONE_MATCH, "\"3039-7\"");
+
+        mvc.perform(builder).andExpect(status().isNotModified());
+
+        verify(fileService, never()).get(file.getName());
+    }
+
+    @Test
+    public void testHeadFileNotModified() throws Exception {
+
+        File file = new File();
+        file.setName("fileName.png");
+        file.setLastModified(12345);
+        file.setETag("\"3039-7\"");
+
+        when(fileService.get(file.getName(), FileReadOption.METADATA)).thenReturn(Optional.of(file));
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.head("/file-service/v1/files/"+file.getName())
+                .header(HttpHeaders.IF_NONE_MATCH, "\"3039-7\"");
+
+        mvc.perform(builder).andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"3039-7\""));
+    }
+
     @Test
     public void testGetFileServerError() throws Exception {
 
@@ -107,4 +268,208 @@ public class FileControllerTest {
         mvc.perform(builder).andExpect(status().isBadRequest())
                 .andExpect(content().string(ClientExceptionMessage.GENERAL_ERROR.toString()));
     }
+
+    @Test
+    public void testDownloadFile() throws Exception {
+
+        File file = downloadableFile();
+        stubTransfer(0, "content");
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files/"+file.getName()+"/download");
+
+        mvc.perform(builder).andExpect(status().isOk())
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, 7))
+                .andExpect(header().string(HttpHeaders.ETAG, file.getETag()))
+                .andExpect(content().bytes("content".getBytes()));
+    }
+
+    @Test
+    public void testDownloadFileNotFound() throws Exception {
+
+        when(fileService.openContent("fileName.png")).thenReturn(Optional.empty());
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files/fileName.png/download");
+
+        mvc.perform(builder).andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testDownloadSingleRange() throws Exception {
+
+        File file = downloadableFile();
+        stubTransfer(2, "nte");
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files/"+file.getName()+"/download")
+                .header(HttpHeaders.RANGE, "bytes=2-4");
+
+        mvc.perform(builder).andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 2-4/7"))
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, 3))
+                .andExpect(content().bytes("nte".getBytes()));
+    }
+
+    @Test
+    public void testDownloadMultipleRanges() throws Exception {
+
+        File file = downloadableFile();
+        stubTransfer(0, "c");
+        stubTransfer(5, "nt");
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files/"+file.getName()+"/download")
+                .header(HttpHeaders.RANGE, "bytes=0-0,5-");
+
+        mvc.perform(builder).andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, startsWith("multipart/byteranges; boundary=")))
+                .andExpect(content().string(containsString("Content-Range: bytes 0-0/7")))
+                .andExpect(content().string(containsString("Content-Range: bytes 5-6/7")));
+
+        verify(fileService).openContent(file.getName());
+        verify(fileContent).close();
+    }
+
+    @Test
+    public void testDownloadFileChangedAfterItsMetadataWasCached() throws Exception {
+
+        File file = downloadableFile();
+        file.setSize(5);
+        stubTransfer(5, "nt");
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files/"+file.getName()+"/download")
+                .header(HttpHeaders.RANGE, "bytes=5-");
+
+        mvc.perform(builder).andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 5-6/7"))
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, 2))
+                .andExpect(content().bytes("nt".getBytes()));
+    }
+
+    @Test
+    public void testDownloadRangeWithTheIfRangeOfAReplacedVersion() throws Exception {
+
+        File file = downloadableFile();
+        when(fileContent.lastModified()).thenReturn(23456000L);
+        when(fileContent.eTag()).thenReturn("\"165f700-7\"");
+        stubTransfer(0, "content");
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files/"+file.getName()+"/download")
+                .header(HttpHeaders.RANGE, "bytes=2-4")
+                .header(HttpHeaders.IF_RANGE, file.getETag());
+
+        mvc.perform(builder).andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"165f700-7\""))
+                .andExpect(content().bytes("content".getBytes()));
+    }
+
+    @Test
+    public void testDownloadUnsatisfiableRange() throws Exception {
+
+        File file = downloadableFile();
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files/"+file.getName()+"/download")
+                .header(HttpHeaders.RANGE, "bytes=10-20");
+
+        mvc.perform(builder).andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */7"));
+    }
+
+    @Test
+    public void testDownloadRangeWithOutdatedIfRange() throws Exception {
+
+        File file = downloadableFile();
+        stubTransfer(0, "content");
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files/"+file.getName()+"/download")
+                .header(HttpHeaders.RANGE, "bytes=2-4")
+                .header(HttpHeaders.IF_RANGE, "Thu, 01 Jan 1970 00:00:00 GMT");
+
+        mvc.perform(builder).andExpect(status().isOk())
+                .andExpect(content().bytes("content".getBytes()));
+    }
+
+    @Test
+    public void testCreateFromBinaryContent() throws Exception {
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.put("/file-service/v1/files/fileName.png")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content("content".getBytes());
+
+        mvc.perform(builder).andExpect(status().isCreated());
+
+        verify(fileService).create(eq("fileName.png"), any(InputStream.class));
+    }
+
+    @Test
+    public void testUpdateFromBinaryContent() throws Exception {
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.post("/file-service/v1/files/fileName.png")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header("X-Last-Modified", 12345)
+                .header("X-File-Name", "newName.png")
+                .content("content".getBytes());
+
+        mvc.perform(builder).andExpect(status().isAccepted());
+
+        verify(fileService).update(eq("fileName.png"),
+                argThat(file -> "newName.png".equals(file.getName()) && file.getLastModified() == 12345),
+                any(InputStream.class));
+    }
+
+    @Test
+    public void testDownloadNotModified() throws Exception {
+
+        File file = downloadableFile();
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.get("/file-service/v1/files/"+file.getName()+"/download")
+                .header(HttpHeaders.IF_NONE_MATCH, file.getETag());
+
+        mvc.perform(builder).andExpect(status().isNotModified());
+
+        verify(fileContent, never()).transferTo(anyLong(), anyLong(), any());
+        verify(fileContent).close();
+    }
+
+    @Test
+    public void testUpdateWithIfMatch() throws Exception {
+
+        MockHttpServletRequestBuilder builder = MockMvcRequestBuilders.post("/file-service/v1/files/fileName.png")
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.IF_MATCH, "\"3039-7\"")
+                .content("{\"name\":\"newName.png\"}");
+
+        mvc.perform(builder).andExpect(status().isAccepted());
+
+        verify(fileService).update(eq("fileName.png"), argThat(file -> "\"3039-7\"".equals(file.getETag())));
+    }
+
+    private File downloadableFile() {
+        File file = new File();
+        file.setName("fileName.png");
+        file.setSize(7);
+        file.setLastModified(12345000);
+        file.setETag("\"bc5f08-7\"");
+
+        when(fileService.openContent(file.getName())).thenReturn(Optional.of(fileContent));
+        when(fileContent.size()).thenReturn(7L);
+        when(fileContent.lastModified()).thenReturn(file.getLastModified());
+        when(fileContent.eTag()).thenReturn(file.getETag());
+
+        return file;
+    }
+
+    private void stubListing(String regex, String after, int limit, String... fileNames) {
+        when(fileService.getFilename(eq(regex), after == null ? isNull() : eq(after), eq(limit), any())).thenAnswer(invocation -> {
+            Consumer<String> action = invocation.getArgument(3);
+            for (String fileName : fileNames) {
+                action.accept(fileName);
+            }
+            return fileNames[fileNames.length - 1];
+        });
+    }
+
+    private void stubTransfer(long position, String content) throws IOException {
+        when(fileContent.transferTo(eq(position), eq((long) content.length()), any(WritableByteChannel.class))).thenAnswer(invocation -> {
+            WritableByteChannel channel = invocation.getArgument(2);
+            return (long) channel.write(ByteBuffer.wrap(content.getBytes()));
+        });
+    }
 }
@@ -0,0 +1,76 @@
+package oneandone.fileservice.server.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class FileContentCacheTest {
+
+    @Test
+    public void returnsContentOfTheSameVersion() {
+        FileContentCache fileContentCache = new FileContentCache(100, 10);
+
+        assertNull(fileContentCache.get("fileName", 1, 3));
+        fileContentCache.put("fileName", 1, new byte[]{1, 2, 3});
+
+        assertArrayEquals(new byte[]{1, 2, 3}, fileContentCache.get("fileName", 1, 3));
+        assertNull(fileContentCache.get("fileName", 2, 3));
+        assertEquals(1, fileContentCache.getHitCount());
+        assertEquals(2, fileContentCache.getMissCount());
+        assertEquals(0, fileContentCache.getWeight());
+    }
+
+    @Test
+    public void skipsFilesAboveTheSizeThreshold() {
+        FileContentCache fileContentCache = new FileContentCache(100, 10);
+
+        fileContentCache.put("fileName", 1, new byte[11]);
+
+        assertEquals(0, fileContentCache.getSize());
+    }
+
+    @Test
+    public void invalidateRemovesTheEntry() {
+        FileContentCache fileContentCache = new FileContentCache(100, 10);
+        fileContentCache.put("fileName", 1, new byte[5]);
+
+        fileContentCache.invalidate("fileName");
+
+        assertNull(fileContentCache.get("fileName", 1, 5));
+        assertEquals(0, fileContentCache.getWeight());
+    }
+
+    @Test
+    public void evictsLessFrequentEntriesToStayWithinTheByteBound() {
+        FileContentCache fileContentCache = new FileContentCache(10, 10);
+        fileContentCache.get("cold", 1, 6);
+        fileContentCache.put("cold", 1, new byte[6]);
+
+        fileContentCache.get("hot", 1, 6);
+        fileContentCache.get("hot", 1, 6);
+        fileContentCache.put("hot", 1, new byte[6]);
+
+        assertNull(fileContentCache.get("cold", 1, 6));
+        assertNotNull(fileContentCache.get("hot", 1, 6));
+        assertEquals(6, fileContentCache.getWeight());
+        assertEquals(1, fileContentCache.getEvictionCount());
+    }
+
+    @Test
+    public void rejectsEntriesLessFrequentThanTheirVictims() {
+        FileContentCache fileContentCache = new FileContentCache(10, 10);
+        fileContentCache.get("hot", 1, 6);
+        fileContentCache.get("hot", 1, 6);
+        fileContentCache.put("hot", 1, new byte[6]);
+
+        fileContentCache.get("scan", 1, 6);
+        fileContentCache.put("scan", 1, new byte[6]);
+
+        assertNotNull(fileContentCache.get("hot", 1, 6));
+        assertNull(fileContentCache.get("scan", 1, 6));
+        assertEquals(1, fileContentCache.getRejectionCount());
+    }
+}
@@ -0,0 +1,70 @@
+package oneandone.fileservice.server.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class FileMetadataCacheTest {
+
+    @Test
+    public void returnsCachedMetadata() {
+        FileMetadataCache fileMetadataCache = createCache(-1);
+        FileMetadata metadata = FileMetadata.of(12345, 7);
+
+        assertNull(fileMetadataCache.get("fileName"));
+        fileMetadataCache.put("fileName", metadata);
+
+        assertSame(metadata, fileMetadataCache.get("fileName"));
+        assertEquals(1, fileMetadataCache.getHitCount());
+        assertEquals(1, fileMetadataCache.getMissCount());
+    }
+
+    @Test
+    public void cachesMissingFiles() {
+        FileMetadataCache fileMetadataCache = createCache(-1);
+
+        fileMetadataCache.put("fileName", FileMetadata.missing());
+
+        assertFalse(fileMetadataCache.get("fileName").exists());
+    }
+
+    @Test
+    public void invalidateRemovesTheEntry() {
+        FileMetadataCache fileMetadataCache = createCache(-1);
+        fileMetadataCache.put("fileName", FileMetadata.of(12345, 7));
+
+        fileMetadataCache.invalidate("fileName");
+
+        assertNull(fileMetadataCache.get("fileName"));
+    }
+
+    @Test
+    public void expiresEntriesOlderThanTheMaxAge() throws InterruptedException {
+        FileMetadataCache fileMetadataCache = createCache(1);
+        fileMetadataCache.put("fileName", FileMetadata.of(12345, 7));
+
+        Thread.sleep(5);
+
+        assertNull(fileMetadataCache.get("fileName"));
+    }
+
+    @Test
+    public void zeroMaxAgeDisablesTheCache() {
+        FileMetadataCache fileMetadataCache = createCache(0);
+
+        fileMetadataCache.put("fileName", FileMetadata.of(12345, 7));
+
+        assertNull(fileMetadataCache.get("fileName"));
+        assertEquals(0, fileMetadataCache.getSize());
+    }
+
+    private FileMetadataCache createCache(long maxAgeMillis) {
+        FileMetadataCache fileMetadataCache = new FileMetadataCache();
+        ReflectionTestUtils.setField(fileMetadataCache, "maxAgeMillis", maxAgeMillis);
+        return fileMetadataCache;
+    }
+}
@@ -0,0 +1,128 @@
+package oneandone.fileservice.server.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import oneandone.fileservice.server.model.FolderStatistics;
+
+public class FileNamesCacheTest {
+
+    @Test
+    public void addsAndRemovesNames() {
+        FileNamesCache fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+
+        fileNamesCache.addFileName("first");
+        fileNamesCache.addFileName("second");
+        fileNamesCache.addFileName("first");
+        fileNamesCache.removeFileName("second");
+
+        assertEquals(Collections.singletonList("first"), fileNamesCache.getFileNames());
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByLaterChanges() {
+        FileNamesCache fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+        fileNamesCache.addFileName("first");
+
+        List<CharSequence> snapshot = fileNamesCache.getFileNames();
+        fileNamesCache.addFileName("second");
+
+        assertEquals(Collections.singletonList("first"), snapshot);
+        assertEquals(new HashSet<>(Arrays.asList("first", "second")), new HashSet<>(fileNamesCache.getFileNames()));
+    }
+
+    @Test
+    public void snapshotIsReusedUntilTheNamesChange() {
+        FileNamesCache fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+        fileNamesCache.addFileName("first");
+
+        assertSame(fileNamesCache.getFileNames(), fileNamesCache.getFileNames());
+    }
+
+    @Test
+    public void updatesNamesAsOneChange() {
+        FileNamesCache fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+        fileNamesCache.addFileName("first");
+        fileNamesCache.addFileName("second");
+        long generation = fileNamesCache.getGeneration();
+
+        assertEquals(1, fileNamesCache.update(Arrays.asList("first", "third", "fourth"), Arrays.asList("second", "missing")));
+
+        assertEquals(generation + 1, fileNamesCache.getGeneration());
+        assertEquals(Arrays.asList("first", "fourth", "third"), fileNamesCache.getFileNames());
+    }
+
+    @Test
+    public void generationOnlyChangesWithTheNames() {
+        FileNamesCache fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+
+        fileNamesCache.addFileName("first");
+        long generation = fileNamesCache.getGeneration();
+        fileNamesCache.addFileName("first");
+        fileNamesCache.removeFileName("missing");
+
+        assertEquals(generation, fileNamesCache.getGeneration());
+    }
+
+    @Test
+    public void scanSkipsNamesRemovedWhileWarmingUp() {
+        FileNamesCache fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+        fileNamesCache.beginWarmUp();
+
+        fileNamesCache.update(Collections.emptyList(), Collections.singletonList("deleted"));
+        fileNamesCache.update(Collections.singletonList("created"), Collections.emptyList());
+
+        assertEquals(1, fileNamesCache.addScanned(Arrays.asList("created", "deleted", "listed")));
+        fileNamesCache.endWarmUp();
+
+        assertEquals(Arrays.asList("created", "listed"), fileNamesCache.getFileNames());
+        assertEquals(1, fileNamesCache.addScanned(Collections.singletonList("deleted")));
+    }
+
+    @Test
+    public void maintainsTheStatisticsOfTheNames() {
+        FileNamesCache fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+        ReflectionTestUtils.setField(fileNamesCache, "trackTotalBytes", true);
+        assertEquals(0, fileNamesCache.getStatistics().getTotalBytes());
+        fileNamesCache.update(Arrays.asList("a.png", "b.PNG", "c.jpg", "README"), Collections.emptyList());
+        Map<String, Long> sizes = new HashMap<>();
+        sizes.put("a.png", 10L);
+        sizes.put("c.jpg", 5L);
+        sizes.put("unknown.png", 100L);
+        fileNamesCache.updateSizes(sizes);
+
+        fileNamesCache.removeFileName("c.jpg");
+        fileNamesCache.updateSizes(Collections.singletonMap("a.png", 12L));
+
+        FolderStatistics statistics = fileNamesCache.getStatistics();
+        assertEquals(3, fileNamesCache.getFileCount());
+        assertEquals(3, statistics.getFileCount());
+        assertEquals(12, statistics.getTotalBytes());
+        Map<String, Long> extensionCounts = new HashMap<>();
+        extensionCounts.put("", 1L);
+        extensionCounts.put("png", 2L);
+        assertEquals(extensionCounts, statistics.getExtensionCounts());
+    }
+
+    @Test
+    public void leavesOutTheTotalSizeByDefault() {
+        FileNamesCache fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+        fileNamesCache.addFileName("a.png");
+        fileNamesCache.updateSizes(Collections.singletonMap("a.png", 10L));
+
+        FolderStatistics statistics = fileNamesCache.getStatistics();
+        assertEquals(1, statistics.getFileCount());
+        assertEquals(-1, statistics.getTotalBytes());
+        assertSame(statistics, fileNamesCache.getStatistics());
+    }
+}
@@ -0,0 +1,123 @@
+package oneandone.fileservice.server.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import oneandone.fileservice.server.service.impl.FileLayout;
+import oneandone.fileservice.server.service.impl.NioFilesWrapper;
+import oneandone.fileservice.server.service.impl.StorageLayout;
+
+public class IndexSnapshotStoreTest {
+
+    private static final FileTime FOLDER_LAST_MODIFIED = FileTime.fromMillis(1500000000000L);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path rootFolder;
+
+    private Path snapshotFile;
+
+    @Before
+    public void setup() throws IOException {
+        rootFolder = temporaryFolder.newFolder("root").toPath();
+        snapshotFile = temporaryFolder.getRoot().toPath().resolve("index.snapshot");
+    }
+
+    @Test
+    public void restoresUnchangedNamesWithoutListingTheFolder() throws IOException {
+        List<String> fileNames = Arrays.asList("plain", "résumé", "résumé2", "😀a", "😁b");
+        createFile("plain");
+        Map<String, FileMetadata> metadata = new HashMap<>();
+        metadata.put("résumé", FileMetadata.of(1000, 7));
+        save(fileNames, metadata);
+
+        createFile("unseen");
+
+        IndexSnapshot indexSnapshot = createStore().restore();
+        assertEquals(fileNames, names(indexSnapshot));
+        IndexSnapshot.Entry entry = indexSnapshot.getEntries().get(1);
+        assertEquals(1000, entry.getMetadata().getLastModified());
+        assertEquals(7, entry.getMetadata().getSize());
+        assertNull(indexSnapshot.getEntries().get(0).getMetadata());
+    }
+
+    @Test
+    public void listsChangedFolderAndKeepsTheMetadataOfTheRemainingNames() throws IOException {
+        createFile("kept");
+        createFile("deleted");
+        Map<String, FileMetadata> metadata = new HashMap<>();
+        metadata.put("kept", FileMetadata.of(1000, 7));
+        metadata.put("deleted", FileMetadata.of(2000, 8));
+        save(Arrays.asList("deleted", "kept"), metadata);
+
+        Files.delete(rootFolder.resolve("deleted"));
+        Files.write(rootFolder.resolve("added"), new byte[1]);
+
+        IndexSnapshot indexSnapshot = createStore().restore();
+        assertEquals(new HashSet<>(Arrays.asList("added", "kept")), new HashSet<>(names(indexSnapshot)));
+        for (IndexSnapshot.Entry entry : indexSnapshot.getEntries()) {
+            assertEquals(entry.getName().equals("kept"), entry.getMetadata() != null);
+        }
+    }
+
+    @Test
+    public void doesNotTrustRecentlyModifiedFolder() throws IOException {
+        createFile("first");
+        IndexSnapshotStore indexSnapshotStore = createStore();
+        Files.write(rootFolder.resolve("second"), new byte[1]);
+        indexSnapshotStore.save(() -> Arrays.asList("first"), name -> new IndexSnapshot.Entry(name, null, 0));
+
+        IndexSnapshot indexSnapshot = createStore().restore();
+        assertEquals(new HashSet<>(Arrays.asList("first", "second")), new HashSet<>(names(indexSnapshot)));
+    }
+
+    @Test
+    public void withoutSnapshotFileNothingIsRestored() {
+        assertNull(createStore().restore());
+    }
+
+    private void save(List<String> sortedFileNames, Map<String, FileMetadata> metadata) throws IOException {
+        Files.setLastModifiedTime(rootFolder, FOLDER_LAST_MODIFIED);
+        createStore().save(() -> sortedFileNames,
+                name -> new IndexSnapshot.Entry(name, metadata.get(name), System.currentTimeMillis()));
+    }
+
+    private void createFile(String name) throws IOException {
+        Files.write(rootFolder.resolve(name), new byte[1]);
+        Files.setLastModifiedTime(rootFolder, FOLDER_LAST_MODIFIED);
+    }
+
+    private IndexSnapshotStore createStore() {
+        IndexSnapshotStore indexSnapshotStore = new IndexSnapshotStore();
+        ReflectionTestUtils.setField(indexSnapshotStore, "fileLayout", new FileLayout(new NioFilesWrapper(), rootFolder.toString(), "backup", "temp", "", StorageLayout.FLAT, 2));
+        ReflectionTestUtils.setField(indexSnapshotStore, "indexSnapshotFile", snapshotFile.toString());
+        ReflectionTestUtils.setField(indexSnapshotStore, "nioFilesWrapper", new NioFilesWrapper());
+        return indexSnapshotStore;
+    }
+
+    private static List<String> names(IndexSnapshot indexSnapshot) {
+        List<String> names = new ArrayList<>();
+        for (IndexSnapshot.Entry entry : indexSnapshot.getEntries()) {
+            names.add(entry.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,123 @@
+package oneandone.fileservice.server.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class PackedFileNameIndexTest {
+
+    @Test
+    public void snapshotIsSorted() {
+        PackedFileNameIndex packedFileNameIndex = new PackedFileNameIndex(false);
+
+        packedFileNameIndex.add("b");
+        packedFileNameIndex.add("a");
+        packedFileNameIndex.snapshot();
+        packedFileNameIndex.add("c");
+        packedFileNameIndex.add("ab");
+
+        assertEquals(Arrays.asList("a", "ab", "b", "c"), toStrings(packedFileNameIndex.snapshot()));
+    }
+
+    @Test
+    public void removesPackedAndAddedNames() {
+        PackedFileNameIndex packedFileNameIndex = new PackedFileNameIndex(false);
+        packedFileNameIndex.add("a");
+        packedFileNameIndex.add("b");
+        packedFileNameIndex.snapshot();
+        packedFileNameIndex.add("c");
+
+        assertTrue(packedFileNameIndex.remove("a"));
+        assertTrue(packedFileNameIndex.remove("c"));
+        assertFalse(packedFileNameIndex.remove("a"));
+        assertFalse(packedFileNameIndex.remove("missing"));
+
+        assertEquals(Arrays.asList("b"), toStrings(packedFileNameIndex.snapshot()));
+    }
+
+    @Test
+    public void addsRemovedPackedName() {
+        PackedFileNameIndex packedFileNameIndex = new PackedFileNameIndex(false);
+        packedFileNameIndex.add("a");
+        packedFileNameIndex.snapshot();
+
+        assertFalse(packedFileNameIndex.add("a"));
+        packedFileNameIndex.remove("a");
+        assertTrue(packedFileNameIndex.add("a"));
+
+        assertEquals(Arrays.asList("a"), toStrings(packedFileNameIndex.snapshot()));
+    }
+
+    @Test
+    public void storesNamesOutsideLatin1() {
+        PackedFileNameIndex packedFileNameIndex = new PackedFileNameIndex(true);
+
+        packedFileNameIndex.add("résumé");
+        packedFileNameIndex.add("文件");
+        packedFileNameIndex.add("plain");
+
+        List<CharSequence> snapshot = packedFileNameIndex.snapshot();
+
+        assertEquals(Arrays.asList("plain", "résumé", "文件"), toStrings(snapshot));
+        assertEquals("sum", snapshot.get(1).subSequence(2, 5).toString());
+        assertFalse(packedFileNameIndex.add("文件"));
+    }
+
+    @Test
+    public void repacksManyChanges() {
+        PackedFileNameIndex packedFileNameIndex = new PackedFileNameIndex(false);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            String name = String.format("file%05d", i);
+            packedFileNameIndex.add(name);
+            expected.add(name);
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            packedFileNameIndex.remove(expected.get(i));
+        }
+        expected.removeIf(name -> Integer.parseInt(name.substring(4)) % 2 == 0);
+
+        assertEquals(expected, toStrings(packedFileNameIndex.snapshot()));
+    }
+
+    @Test
+    public void snapshotsAgreeWithTheChangesWhileRepacking() throws InterruptedException {
+        PackedFileNameIndex packedFileNameIndex = new PackedFileNameIndex(false);
+        TreeSet<String> expected = new TreeSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 30000; i++) {
+            String name = String.format("file%05d", random.nextInt(12000));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(name), packedFileNameIndex.remove(name));
+            } else {
+                assertEquals(expected.add(name), packedFileNameIndex.add(name));
+            }
+            if (i % 1000 == 0) {
+                assertEquals(new ArrayList<>(expected), toStrings(packedFileNameIndex.snapshot()));
+            }
+        }
+        while (ReflectionTestUtils.getField(packedFileNameIndex, "changedWhileRepacking") != null) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(new ArrayList<>(expected), toStrings(packedFileNameIndex.snapshot()));
+        for (String name : expected) {
+            assertTrue(packedFileNameIndex.contains(name));
+        }
+    }
+
+    private static List<String> toStrings(List<CharSequence> fileNames) {
+        List<String> strings = new ArrayList<>();
+        fileNames.forEach(fileName -> strings.add(fileName.toString()));
+        return strings;
+    }
+}
@@ -0,0 +1,105 @@
+package oneandone.fileservice.server.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import oneandone.fileservice.server.service.impl.FileLayout;
+import oneandone.fileservice.server.service.impl.NioFilesWrapper;
+import oneandone.fileservice.server.service.impl.StorageLayout;
+
+public class StartupIndexerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path rootFolder;
+
+    private FileNamesCache fileNamesCache;
+
+    private FileMetadataCache fileMetadataCache;
+
+    private IndexSnapshotStore indexSnapshotStore;
+
+    @Before
+    public void setup() throws IOException {
+        rootFolder = temporaryFolder.newFolder("root").toPath();
+        fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+        ReflectionTestUtils.setField(fileNamesCache, "trackTotalBytes", true);
+        fileMetadataCache = new FileMetadataCache();
+        ReflectionTestUtils.setField(fileMetadataCache, "maxAgeMillis", 300000L);
+        indexSnapshotStore = new IndexSnapshotStore();
+        ReflectionTestUtils.setField(indexSnapshotStore, "fileLayout", new FileLayout(new NioFilesWrapper(), rootFolder.toString(), "backup", "temp", "", StorageLayout.FLAT, 2));
+        ReflectionTestUtils.setField(indexSnapshotStore, "indexSnapshotFile", "");
+        ReflectionTestUtils.setField(indexSnapshotStore, "nioFilesWrapper", new NioFilesWrapper());
+    }
+
+    @Test
+    public void fillsAllCachesFromOneListing() throws IOException {
+        Files.write(rootFolder.resolve("first"), new byte[3]);
+        Files.write(rootFolder.resolve("second"), new byte[5]);
+
+        StartupIndexer startupIndexer = createIndexer(false);
+        assertFalse(startupIndexer.isIndexed());
+        startupIndexer.start();
+
+        assertTrue(startupIndexer.awaitIndexed(0));
+        assertEquals(Arrays.asList("first", "second"), fileNamesCache.getFileNames());
+        assertEquals(2, fileNamesCache.getFileCount());
+        assertEquals(8, fileNamesCache.getStatistics().getTotalBytes());
+        assertEquals(5, fileMetadataCache.get("second").getSize());
+    }
+
+    @Test
+    public void indexesInTheBackground() throws IOException {
+        Files.write(rootFolder.resolve("first"), new byte[3]);
+
+        StartupIndexer startupIndexer = createIndexer(true);
+        startupIndexer.start();
+
+        assertTrue(startupIndexer.awaitIndexed(10000));
+        assertEquals(1, fileNamesCache.getFileCount());
+    }
+
+    @Test
+    public void restoresTheIndexSnapshotReadingOnlyTheMissingSizes() throws IOException {
+        Path snapshotFile = temporaryFolder.getRoot().toPath().resolve("index.snapshot");
+        ReflectionTestUtils.setField(indexSnapshotStore, "indexSnapshotFile", snapshotFile.toString());
+        Files.write(rootFolder.resolve("first"), new byte[3]);
+        Files.write(rootFolder.resolve("second"), new byte[5]);
+        indexSnapshotStore.save(() -> Arrays.asList("first", "second"), name -> "first".equals(name)
+                ? new IndexSnapshot.Entry(name, FileMetadata.of(1000, 3), System.currentTimeMillis())
+                : new IndexSnapshot.Entry(name, null, 0));
+
+        createIndexer(false).start();
+
+        assertEquals(Arrays.asList("first", "second"), fileNamesCache.getFileNames());
+        assertEquals(2, fileNamesCache.getFileCount());
+        assertEquals(8, fileNamesCache.getStatistics().getTotalBytes());
+        assertEquals(1000, fileMetadataCache.get("first").getLastModified());
+        assertEquals(5, fileMetadataCache.get("second").getSize());
+    }
+
+    private StartupIndexer createIndexer(boolean indexInBackground) {
+        StartupIndexer startupIndexer = new StartupIndexer();
+        ReflectionTestUtils.setField(startupIndexer, "fileLayout", new FileLayout(new NioFilesWrapper(), rootFolder.toString(), "backup", "temp", "", StorageLayout.FLAT, 2));
+        ReflectionTestUtils.setField(startupIndexer, "indexInBackground", indexInBackground);
+        ReflectionTestUtils.setField(startupIndexer, "startupScanThreads", 2);
+        ReflectionTestUtils.setField(startupIndexer, "fileNamesCache", fileNamesCache);
+        ReflectionTestUtils.setField(startupIndexer, "fileMetadataCache", fileMetadataCache);
+        ReflectionTestUtils.setField(startupIndexer, "indexSnapshotStore", indexSnapshotStore);
+        ReflectionTestUtils.setField(startupIndexer, "nioFilesWrapper", new NioFilesWrapper());
+        return startupIndexer;
+    }
+}
@@ -0,0 +1,58 @@
+package oneandone.fileservice.server.lock;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class FileLockManagerTest {
+
+    @Test
+    public void stripeCountIsRoundedToPowerOfTwo() {
+        assertEquals(16, new FileLockManager(10).getStripeCount());
+        assertEquals(1, new FileLockManager(1).getStripeCount());
+    }
+
+    @Test
+    public void writeLockExcludesOtherWriters() throws Exception {
+        FileLockManager fileLockManager = new FileLockManager(16);
+        CountDownLatch acquired = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        Future<?> future;
+        try (FileLock fileLock = fileLockManager.writeLock("fileName")) {
+            future = executor.submit(() -> {
+                try (FileLock otherLock = fileLockManager.writeLock("fileName")) {
+                    acquired.countDown();
+                }
+            });
+            assertFalse(acquired.await(100, MILLISECONDS));
+        }
+
+        future.get(5, SECONDS);
+        executor.shutdown();
+
+        assertEquals(0, acquired.getCount());
+        assertEquals(1, fileLockManager.getContendedAcquisitionCount());
+    }
+
+    @Test
+    public void writeLockOnNamesSharingAStripeLocksItOnce() {
+        FileLockManager fileLockManager = new FileLockManager(1);
+
+        try (FileLock fileLock = fileLockManager.writeLock("fileName", "newFileName", null)) {
+            assertEquals(1, fileLockManager.getAcquisitionCount());
+        }
+
+        try (FileLock fileLock = fileLockManager.readLock("fileName")) {
+            assertEquals(0, fileLockManager.getContendedAcquisitionCount());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package oneandone.fileservice.server.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import oneandone.fileservice.server.cache.FileNamesCache;
+import oneandone.fileservice.server.cache.FileNamesStorage;
+import oneandone.fileservice.server.exception.ClientException;
+import oneandone.fileservice.server.exception.ClientExceptionMessage;
+
+public class FileNameSearchTest {
+
+    private FileNameSearch fileNameSearch = new FileNameSearch();
+
+    @Before
+    public void setup() {
+        useStorage(FileNamesStorage.OBJECTS);
+    }
+
+    private void useStorage(FileNamesStorage fileNamesStorage) {
+        FileNamesCache fileNamesCache = new FileNamesCache(fileNamesStorage);
+        for (String fileName : Arrays.asList("invoice_2023_01.pdf", "invoice_2024_01.pdf", "invoice_2024_02.csv",
+                "invoice_2025_01.pdf", "report.csv", "zeta")) {
+            fileNamesCache.addFileName(fileName);
+        }
+        ReflectionTestUtils.setField(fileNameSearch, "fileNamesCache", fileNamesCache);
+        fileNameSearch.init();
+    }
+
+    @After
+    public void tearDown() {
+        fileNameSearch.destroy();
+    }
+
+    @Test
+    public void searchWithinPrefixRange() {
+        assertEquals(Arrays.asList("invoice_2024_01.pdf", "invoice_2024_02.csv"), fileNameSearch.search("invoice_2024.*"));
+        assertEquals(Collections.singletonList("invoice_2024_01.pdf"), fileNameSearch.search("invoice_2024.*\\.pdf"));
+    }
+
+    @Test
+    public void searchWithoutPrefix() {
+        assertEquals(Arrays.asList("invoice_2024_02.csv", "report.csv"), fileNameSearch.search(".*\\.csv"));
+    }
+
+    @Test
+    public void searchMissingPrefix() {
+        assertEquals(Collections.emptyList(), fileNameSearch.search("missing.*"));
+        assertEquals(Collections.emptyList(), fileNameSearch.search("zz.*"));
+    }
+
+    @Test
+    public void searchPackedNames() {
+        useStorage(FileNamesStorage.PACKED);
+
+        assertEquals(Arrays.asList("invoice_2024_01.pdf", "invoice_2024_02.csv"), fileNameSearch.search("invoice_2024.*"));
+        assertEquals(Arrays.asList("invoice_2024_02.csv", "report.csv"), fileNameSearch.search(".*\\.csv"));
+    }
+
+    @Test
+    public void parallelSearchKeepsTheOrder() {
+        FileNamesCache fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            String fileName = String.format("file%05d.%s", i, i % 3 == 0 ? "csv" : "pdf");
+            fileNamesCache.addFileName(fileName);
+            if (i % 3 == 0) {
+                expected.add(fileName);
+            }
+        }
+        ReflectionTestUtils.setField(fileNameSearch, "fileNamesCache", fileNamesCache);
+        ReflectionTestUtils.setField(fileNameSearch, "parallelThreshold", 2048);
+
+        assertEquals(expected, fileNameSearch.search(".*\\.csv"));
+        assertEquals(expected.subList(0, 334), fileNameSearch.search("file00.*\\.csv"));
+    }
+
+    @Test
+    public void searchPages() {
+        List<String> fileNames = new ArrayList<>();
+
+        assertEquals("invoice_2024_01.pdf", fileNameSearch.search(".*\\.pdf", null, 2, fileNames::add));
+        assertEquals(Arrays.asList("invoice_2023_01.pdf", "invoice_2024_01.pdf"), fileNames);
+
+        fileNames.clear();
+        assertEquals(null, fileNameSearch.search(".*\\.pdf", "invoice_2024_01.pdf", 2, fileNames::add));
+        assertEquals(Collections.singletonList("invoice_2025_01.pdf"), fileNames);
+    }
+
+    @Test
+    public void searchPageAfterRemovedName() {
+        List<String> fileNames = new ArrayList<>();
+
+        assertEquals(null, fileNameSearch.search("invoice_.*", "invoice_2024_015", 5, fileNames::add));
+        assertEquals(Arrays.asList("invoice_2024_02.csv", "invoice_2025_01.pdf"), fileNames);
+    }
+
+    @Test
+    public void repeatedSearchIsCached() {
+        List<String> fileNames = fileNameSearch.search("invoice_2024.*");
+
+        assertSame(fileNames, fileNameSearch.search("invoice_2024.*"));
+        assertEquals(1, fileNameSearch.getResultCacheHitCount());
+    }
+
+    @Test
+    public void changedNamesInvalidateTheCachedResult() {
+        fileNameSearch.search("invoice_2024.*");
+        FileNamesCache fileNamesCache = (FileNamesCache) ReflectionTestUtils.getField(fileNameSearch, "fileNamesCache");
+        fileNamesCache.addFileName("invoice_2024_03.pdf");
+
+        assertEquals(Arrays.asList("invoice_2024_01.pdf", "invoice_2024_02.csv", "invoice_2024_03.pdf"),
+                fileNameSearch.search("invoice_2024.*"));
+        assertEquals(0, fileNameSearch.getResultCacheHitCount());
+    }
+
+    @Test
+    public void invalidRegex() {
+        try {
+            fileNameSearch.search("(");
+            fail();
+        } catch (ClientException e) {
+            assertEquals(ClientExceptionMessage.INVALID_REGEX, e.getClientExceptionMessage());
+        }
+    }
+
+    @Test
+    public void exceededBudgetFailsThePageBeforeAnyNameIsPassed() {
+        ReflectionTestUtils.setField(fileNameSearch, "stepsPerName", 30L);
+        ReflectionTestUtils.setField(fileNameSearch, "stepsPerScannedName", 5L);
+        List<String> fileNames = new ArrayList<>();
+
+        try {
+            fileNameSearch.search("(?i)invoice.*", null, 10, fileNames::add);
+            fail();
+        } catch (ClientException e) {
+            assertEquals(ClientExceptionMessage.REGEX_TOO_COMPLEX, e.getClientExceptionMessage());
+        }
+        assertEquals(Collections.emptyList(), fileNames);
+    }
+
+    @Test
+    public void upperBound() {
+        assertEquals(3, FileNameSearch.upperBound(Arrays.asList("a", "ba", "bb", "c"), "b", 1));
+        assertEquals(1, FileNameSearch.upperBound(Arrays.asList("a", "c"), "b", 1));
+        assertEquals(4, FileNameSearch.upperBound(Arrays.asList("a", "ba", "bb", "c"), "", 0));
+    }
+
+    @Test
+    public void lowerBound() {
+        assertEquals(1, FileNameSearch.lowerBound(Arrays.asList("a", "b", "c"), "b"));
+        assertEquals(2, FileNameSearch.lowerBound(Arrays.asList("a", "b", "c"), "ba"));
+        assertEquals(3, FileNameSearch.lowerBound(Arrays.asList("a", "b", "c"), "d"));
+    }
+}
@@ -0,0 +1,42 @@
+package oneandone.fileservice.server.search;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LiteralPrefixTest {
+
+    @Test
+    public void literalBeforeWildcard() {
+        assertEquals("invoice_2024", LiteralPrefix.of("invoice_2024.*"));
+        assertEquals("invoice_2024", LiteralPrefix.of("^invoice_2024.*"));
+    }
+
+    @Test
+    public void wholeLiteral() {
+        assertEquals("report.csv", LiteralPrefix.of("report\\.csv"));
+        assertEquals("report.csv", LiteralPrefix.of("\\Qreport.csv\\E"));
+    }
+
+    @Test
+    public void optionalCharacterEndsThePrefix() {
+        assertEquals("invoic", LiteralPrefix.of("invoice?_.*"));
+        assertEquals("invoic", LiteralPrefix.of("invoice*"));
+        assertEquals("invoic", LiteralPrefix.of("invoice{0,2}"));
+        assertEquals("report.cs", LiteralPrefix.of("\\Qreport.csv\\E?"));
+    }
+
+    @Test
+    public void repeatedCharacterIsKept() {
+        assertEquals("invoice", LiteralPrefix.of("invoice+_.*"));
+    }
+
+    @Test
+    public void noPrefix() {
+        assertEquals("", LiteralPrefix.of(".*_backup\\.csv"));
+        assertEquals("", LiteralPrefix.of("invoice|report"));
+        assertEquals("", LiteralPrefix.of("(?i)invoice.*"));
+        assertEquals("", LiteralPrefix.of("[ab]c"));
+        assertEquals("", LiteralPrefix.of("\\d+"));
+    }
+}
@@ -0,0 +1,155 @@
+package oneandone.fileservice.server.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.junit.Test;
+
+public class NamePatternTest {
+
+    private static final List<String> NAMES = Arrays.asList("", "a", "aa", "ab", "abc", "invoice_2024.pdf",
+            "report 1.csv", "a.b", "résumé", "😀", "a\n", "x_y-z", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaab");
+
+    @Test
+    public void matchesLikePattern() {
+        for (String regex : Arrays.asList("a", "a*", "a+b?", "(a|b)*c", "(?:ab)+", "a{2}", "a{1,2}b?", "a{2,}",
+                ".*\\.pdf", "invoice_\\d{4}\\..*", "[a-c]+", "[^a]*", "[\\w-]+", "\\s*\\S+ \\d\\.csv", "r.sum.",
+                ".", "..", "a.", "^a+$", "a*?b", "\\Qa.b\\E", "[-a.]+", "\\x61\\u0062", "(a+)+$", "(a|aa)+b")) {
+            NamePattern namePattern = NamePattern.compile(regex);
+            assertTrue(regex, namePattern.isLinear());
+
+            NameMatcher matcher = namePattern.matcher(new StepBudget(1000000, 1000000));
+            for (String name : NAMES) {
+                assertEquals(regex + " on " + name, Pattern.compile(regex).matcher(name).matches(), matcher.matches(name));
+            }
+        }
+    }
+
+    @Test
+    public void unsupportedConstructsUseThePattern() {
+        for (String regex : Arrays.asList("(a)\\1", "a(?=b)", "(?i)a", "a\\b", "a++", "[a&&b]", "\\p{L}", "a{2000}")) {
+            NamePattern namePattern = NamePattern.compile(regex);
+            assertFalse(regex, namePattern.isLinear());
+            assertEquals(Pattern.compile(regex).matcher("aa").matches(), namePattern.matcher(new StepBudget(1000000, 1000000)).matches("aa"));
+        }
+    }
+
+    @Test
+    public void invalidRegexesAreRejected() {
+        for (String regex : Arrays.asList("a**", "a{2,1}", "a?*", "\\x+1", "\\u+123", "(a", "a)", "[a", "[b-a]", "*")) {
+            try {
+                NamePattern.compile(regex);
+                fail(regex);
+            } catch (PatternSyntaxException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Compares random regexes, valid or not, built from the constructs of the linear time subset and around it, with
+     * {@link Pattern} on random names. The seed makes failures reproducible.
+     */
+    @Test
+    public void matchesLikePatternOnRandomRegexes() {
+        String[] tokens = {"a", "b", ".", "-", "\\d", "\\w", "\\s", "\\.", "\\-", "\\x61", "\\x+1", "\\u0062", "\\Qa.\\E",
+                "[ab]", "[^a]", "[a-c]", "[b-a]", "[a-]", "[-.]", "[\\d.]", "(", ")", "(?:", "|", "*", "+", "?", "*?", "+?",
+                "??", "{2}", "{1,2}", "{2,}", "{2,1}", "{", "}", "[", "]", "^", "$", "\\1", "\\b", "(?=a)"};
+        String alphabet = "ab.1 -_\n";
+        Random random = new Random(42);
+
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder regex = new StringBuilder();
+            for (int j = random.nextInt(8); j >= 0; j--) {
+                regex.append(tokens[random.nextInt(tokens.length)]);
+            }
+
+            Pattern pattern;
+            try {
+                pattern = Pattern.compile(regex.toString());
+            } catch (PatternSyntaxException e) {
+                try {
+                    NamePattern.compile(regex.toString());
+                    fail("Accepted " + regex);
+                } catch (PatternSyntaxException expected) {
+                    continue;
+                }
+                continue;
+            }
+
+            NameMatcher matcher = NamePattern.compile(regex.toString()).matcher(new StepBudget(Long.MAX_VALUE, Long.MAX_VALUE));
+            for (int j = 0; j < 40; j++) {
+                StringBuilder name = new StringBuilder();
+                for (int k = random.nextInt(8); k > 0; k--) {
+                    name.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+                assertEquals(regex + " on " + name, pattern.matcher(name).matches(), matcher.matches(name));
+            }
+        }
+    }
+
+    @Test
+    public void catastrophicRegexIsLinear() {
+        NameMatcher matcher = NamePattern.compile("(a+)+$").matcher(new StepBudget(1000000, 1000000));
+
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            name.append('a');
+        }
+
+        assertFalse(matcher.matches(name.append('b')));
+    }
+
+    @Test
+    public void backtrackingIsBounded() {
+        NameMatcher matcher = NamePattern.compile("(a+)+\\1b").matcher(new StepBudget(100000, Long.MAX_VALUE));
+
+        try {
+            matcher.matches("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaac");
+            fail();
+        } catch (RegexBudgetExceededException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void budgetScalesWithTheNamesWhileEachNameIsBounded() {
+        NamePattern namePattern = NamePattern.compile("(?i)(a)\\1*");
+        StepBudget stepBudget = StepBudget.forNames(100, 50, 1000);
+
+        for (int i = 0; i < 1000; i++) {
+            namePattern.matcher(stepBudget).matches("aaaaaaaaaaaa");
+        }
+        try {
+            namePattern.matcher(stepBudget).matches(String.join("", Collections.nCopies(200, "a")));
+            fail();
+        } catch (RegexBudgetExceededException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void budgetIsSharedByTheNamesAndMatchersOfASearch() {
+        NamePattern namePattern = NamePattern.compile("(a)\\1*");
+        StepBudget stepBudget = new StepBudget(1000, 100);
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                namePattern.matcher(stepBudget).matches("aaaaaaaaaaaa");
+                namePattern.matcher(stepBudget).matches("aaaaaaaaaaaa");
+            }
+            fail();
+        } catch (RegexBudgetExceededException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package oneandone.fileservice.server.service.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.boot.devtools.filewatch.ChangedFile;
+import org.springframework.boot.devtools.filewatch.ChangedFile.Type;
+import org.springframework.boot.devtools.filewatch.ChangedFiles;
+
+public class ChangeBatchTest {
+
+    private final File sourceFolder = new File("root");
+
+    private final ChangeBatch changeBatch = new ChangeBatch();
+
+    @Test
+    public void keepsTheNetChangeOfEachFile() {
+        add("added", Type.ADD);
+        add("added", Type.MODIFY);
+        add("created and deleted", Type.ADD);
+        add("created and deleted", Type.DELETE);
+        add("replaced", Type.DELETE);
+        add("replaced", Type.ADD);
+        add("deleted", Type.MODIFY);
+        add("deleted", Type.DELETE);
+
+        assertEquals(Arrays.asList("ADD added", "DELETE created and deleted", "MODIFY replaced", "DELETE deleted"),
+                changes());
+    }
+
+    @Test
+    public void keepsTheLastStateOfFilesChangedAgain() {
+        add("fileName", Type.ADD);
+        add("fileName", Type.DELETE);
+        add("fileName", Type.ADD);
+
+        assertEquals(1, changeBatch.size());
+        assertEquals(Arrays.asList("ADD fileName"), changes());
+    }
+
+    @Test
+    public void groupsTheChangesByRootFolder() {
+        File otherSourceFolder = new File("other root");
+        add("fileName", Type.ADD);
+        changeBatch.add(otherSourceFolder, new File(otherSourceFolder, "otherFileName"), Type.DELETE);
+
+        List<String> changes = new ArrayList<>();
+        for (ChangedFiles changedFiles : changeBatch.getChangedFilesByFolder()) {
+            for (ChangedFile changedFile : changedFiles) {
+                changes.add(changedFiles.getSourceFolder() + " " + changedFile.getType() + " " + changedFile.getRelativeName());
+            }
+        }
+        assertEquals(Arrays.asList("root ADD fileName", "other root DELETE otherFileName"), changes);
+    }
+
+    private void add(String name, Type type) {
+        changeBatch.add(sourceFolder, new File(sourceFolder, name), type);
+    }
+
+    private List<String> changes() {
+        List<String> changes = new ArrayList<>();
+        for (ChangedFile changedFile : changeBatch.getChangedFiles()) {
+            changes.add(changedFile.getType() + " " + changedFile.getRelativeName());
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,94 @@
+package oneandone.fileservice.server.service.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.devtools.filewatch.ChangedFile;
+import org.springframework.boot.devtools.filewatch.ChangedFiles;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import oneandone.fileservice.server.cache.FileContentCache;
+import oneandone.fileservice.server.cache.FileMetadataCache;
+import oneandone.fileservice.server.cache.FileNamesCache;
+import oneandone.fileservice.server.cache.FileNamesStorage;
+
+public class FileCounterChangeListenerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path rootFolder;
+
+    private FileNamesCache fileNamesCache;
+
+    private WriteJournal writeJournal;
+
+    private FileCounterChangeListener fileCounterChangeListener;
+
+    @Before
+    public void setup() throws IOException {
+        rootFolder = temporaryFolder.newFolder("root").toPath();
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), rootFolder.toString(), "backup", "temp", "", StorageLayout.FLAT, 2);
+        fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+        FileMetadataCache fileMetadataCache = new FileMetadataCache();
+        ReflectionTestUtils.setField(fileMetadataCache, "maxAgeMillis", -1L);
+
+        writeJournal = new WriteJournal();
+        ReflectionTestUtils.setField(writeJournal, "fileLayout", fileLayout);
+        ReflectionTestUtils.setField(writeJournal, "retentionMillis", 60000L);
+        ReflectionTestUtils.setField(writeJournal, "nioFilesWrapper", new NioFilesWrapper());
+        ReflectionTestUtils.setField(writeJournal, "fileNamesCache", fileNamesCache);
+        ReflectionTestUtils.setField(writeJournal, "fileMetadataCache", fileMetadataCache);
+
+        fileCounterChangeListener = new FileCounterChangeListener();
+        ReflectionTestUtils.setField(fileCounterChangeListener, "fileNamesCache", fileNamesCache);
+        ReflectionTestUtils.setField(fileCounterChangeListener, "fileContentCache", new FileContentCache(1024, 64));
+        ReflectionTestUtils.setField(fileCounterChangeListener, "mappedFilePool", new MappedFilePool(100, 4));
+        ReflectionTestUtils.setField(fileCounterChangeListener, "fileMetadataCache", fileMetadataCache);
+        ReflectionTestUtils.setField(fileCounterChangeListener, "writeJournal", writeJournal);
+        ReflectionTestUtils.setField(fileCounterChangeListener, "fileLayout", fileLayout);
+    }
+
+    @Test
+    public void keepsAFileRecreatedByTheServiceWhenItsDeleteComesInAnotherBatch() throws IOException {
+        Path filePath = Files.write(rootFolder.resolve("fileName"), new byte[]{1});
+        writeJournal.record("fileName");
+        Files.delete(filePath);
+        writeJournal.record("fileName");
+        Files.write(filePath, new byte[]{1, 2});
+        writeJournal.record("fileName");
+
+        fileCounterChangeListener.onChange(changes(filePath, ChangedFile.Type.DELETE));
+        fileCounterChangeListener.onChange(changes(filePath, ChangedFile.Type.ADD));
+
+        assertEquals(Collections.singletonList("fileName"), fileNamesCache.getFileNames());
+        assertEquals(1, fileNamesCache.getFileCount());
+    }
+
+    @Test
+    public void appliesAJournaledStateTheNamesDisagreeWith() throws IOException {
+        Path filePath = Files.write(rootFolder.resolve("fileName"), new byte[]{1});
+        writeJournal.record("fileName");
+        fileNamesCache.removeFileName("fileName");
+
+        fileCounterChangeListener.onChange(changes(filePath, ChangedFile.Type.MODIFY));
+
+        assertEquals(Collections.singletonList("fileName"), fileNamesCache.getFileNames());
+    }
+
+    private Set<ChangedFiles> changes(Path filePath, ChangedFile.Type type) {
+        File sourceFolder = rootFolder.toFile();
+        return Collections.singleton(new ChangedFiles(sourceFolder,
+                Collections.singleton(new ChangedFile(sourceFolder, filePath.toFile(), type))));
+    }
+}
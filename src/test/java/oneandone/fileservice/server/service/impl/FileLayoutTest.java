@@ -0,0 +1,170 @@
+package oneandone.fileservice.server.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileLayoutTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path rootFolder;
+
+    @Before
+    public void setup() throws IOException {
+        rootFolder = temporaryFolder.newFolder("root").toPath().toAbsolutePath().normalize();
+    }
+
+    @Test
+    public void resolvesNamesInTheRootFolderWhenFlat() {
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), rootFolder.toString(), "backup", "temp", "", StorageLayout.FLAT, 2);
+
+        assertEquals(rootFolder.resolve("fileName"), fileLayout.resolve("fileName"));
+    }
+
+    @Test
+    public void resolvesNamesInTheirShards() throws IOException {
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), rootFolder.toString(), "backup", "temp", "", StorageLayout.SHARDED, 2);
+
+        Path path = fileLayout.resolveForWrite("fileName");
+
+        assertEquals(path, fileLayout.resolve("fileName"));
+        assertEquals(rootFolder, path.getParent().getParent().getParent());
+        assertTrue(fileLayout.isShardFolder(path.getParent()));
+        assertTrue(fileLayout.isShardFolder(path.getParent().getParent()));
+        assertFalse(fileLayout.hasFlatFiles());
+    }
+
+    @Test
+    public void movesFlatFilesIntoTheirShardsOnWrite() throws IOException {
+        Path flatPath = Files.write(rootFolder.resolve("fileName"), new byte[]{1});
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), rootFolder.toString(), "backup", "temp", "", StorageLayout.SHARDED, 2);
+
+        assertTrue(fileLayout.hasFlatFiles());
+        assertEquals(flatPath, fileLayout.resolve("fileName"));
+
+        Path shardPath = fileLayout.resolveForWrite("fileName");
+
+        assertFalse(Files.exists(flatPath));
+        assertTrue(Files.exists(shardPath));
+        assertEquals(shardPath, fileLayout.resolve("fileName"));
+        fileLayout.recheckFlatFiles();
+        assertFalse(fileLayout.hasFlatFiles());
+    }
+
+    @Test
+    public void stopsLookingUpFlatFilesOnceMigrated() throws IOException {
+        Files.write(rootFolder.resolve("fileName"), new byte[]{1});
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), rootFolder.toString(), "backup", "temp", "", StorageLayout.SHARDED, 2);
+
+        fileLayout.migrated();
+
+        assertFalse(fileLayout.hasFlatFiles());
+        assertEquals(fileLayout.shardPath("fileName"), fileLayout.resolve("fileName"));
+    }
+
+    @Test
+    public void listsTheFilesOfTheShardsAndTheRootFolder() throws IOException {
+        Files.write(rootFolder.resolve("flat"), new byte[]{1});
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), rootFolder.toString(), "backup", "temp", "", StorageLayout.SHARDED, 2);
+        Files.write(fileLayout.resolveForWrite("first"), new byte[]{1});
+        Files.write(fileLayout.resolveForWrite("second"), new byte[]{1});
+
+        Set<String> names = new HashSet<>();
+        fileLayout.forEachFile(path -> names.add(path.getFileName().toString()));
+
+        assertEquals(new HashSet<>(Arrays.asList("flat", "first", "second")), names);
+    }
+
+    @Test
+    public void spreadsNamesOverTheRootFoldersByWeight() throws IOException {
+        Path otherRootFolder = temporaryFolder.newFolder("other").toPath().toAbsolutePath().normalize();
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), rootFolder + "," + otherRootFolder, "backup,otherBackup", "temp,otherTemp",
+                "1,3", StorageLayout.FLAT, 2);
+
+        int otherCount = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (fileLayout.getRootFolder("fileName" + i).equals(otherRootFolder)) {
+                otherCount++;
+            }
+        }
+
+        assertTrue(otherCount > 6500 && otherCount < 8500);
+    }
+
+    @Test
+    public void addingARootFolderOnlyTakesOverItsShare() throws IOException {
+        Path secondRootFolder = temporaryFolder.newFolder("second").toPath().toAbsolutePath().normalize();
+        Path addedRootFolder = temporaryFolder.newFolder("added").toPath().toAbsolutePath().normalize();
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), rootFolder + "," + secondRootFolder, "backup,secondBackup",
+                "temp,secondTemp", "", StorageLayout.FLAT, 2);
+        FileLayout extendedFileLayout = new FileLayout(new NioFilesWrapper(), rootFolder + "," + secondRootFolder + "," + addedRootFolder,
+                "backup,secondBackup,addedBackup", "temp,secondTemp,addedTemp", "", StorageLayout.FLAT, 2);
+
+        int movedCount = 0;
+        for (int i = 0; i < 10000; i++) {
+            Path extendedRootFolder = extendedFileLayout.getRootFolder("fileName" + i);
+            if (!extendedRootFolder.equals(fileLayout.getRootFolder("fileName" + i))) {
+                assertEquals(addedRootFolder, extendedRootFolder);
+                movedCount++;
+            }
+        }
+
+        assertTrue(movedCount > 2500 && movedCount < 4200);
+    }
+
+    @Test
+    public void looksUpMisplacedFilesOnlyWhileTheRootFoldersChangedSinceTheyWereBalanced() throws IOException {
+        Path otherRootFolder = temporaryFolder.newFolder("other").toPath().toAbsolutePath().normalize();
+        String backupFolderNames = temporaryFolder.newFolder("backup") + "," + temporaryFolder.newFolder("otherBackup");
+        String tempFolderNames = temporaryFolder.newFolder("temp") + "," + temporaryFolder.newFolder("otherTemp");
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), rootFolder + "," + otherRootFolder,
+                backupFolderNames, tempFolderNames, "", StorageLayout.FLAT, 2);
+        assertTrue(fileLayout.hasMisplacedFiles());
+
+        fileLayout.rebalanced();
+
+        assertFalse(new FileLayout(new NioFilesWrapper(), otherRootFolder + "," + rootFolder,
+                backupFolderNames, tempFolderNames, "", StorageLayout.FLAT, 2).hasMisplacedFiles());
+        assertTrue(new FileLayout(new NioFilesWrapper(), rootFolder + "," + otherRootFolder,
+                backupFolderNames, tempFolderNames, "1,2", StorageLayout.FLAT, 2).hasMisplacedFiles());
+    }
+
+    @Test
+    public void movesMisplacedFilesToTheirRootFolderOnWrite() throws IOException {
+        Path otherRootFolder = temporaryFolder.newFolder("other").toPath().toAbsolutePath().normalize();
+        String rootFolderPaths = rootFolder + "," + otherRootFolder;
+        String backupFolderNames = temporaryFolder.newFolder("backup") + "," + temporaryFolder.newFolder("otherBackup");
+        String tempFolderNames = temporaryFolder.newFolder("temp") + "," + temporaryFolder.newFolder("otherTemp");
+        String name = "fileName";
+        Path misplacedFolder = new FileLayout(new NioFilesWrapper(), rootFolderPaths, backupFolderNames, tempFolderNames, "", StorageLayout.SHARDED, 2)
+                .getRootFolder(name).equals(rootFolder) ? otherRootFolder : rootFolder;
+        Path misplacedPath = Files.write(misplacedFolder.resolve(name), new byte[]{1});
+        Files.setLastModifiedTime(misplacedPath, FileTime.fromMillis(1000000));
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), rootFolderPaths, backupFolderNames, tempFolderNames, "", StorageLayout.SHARDED, 2);
+
+        assertTrue(fileLayout.hasMisplacedFiles());
+        assertEquals(misplacedPath, fileLayout.resolve(name));
+
+        Path path = fileLayout.resolveForWrite(name);
+
+        assertTrue(path.startsWith(fileLayout.getRootFolder(name)));
+        assertFalse(Files.exists(misplacedPath));
+        assertEquals(1000000, Files.getLastModifiedTime(path).toMillis());
+        assertEquals(path, fileLayout.resolve(name));
+    }
+}
@@ -1,48 +1,88 @@
 package oneandone.fileservice.server.service.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Optional;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import oneandone.fileservice.server.cache.FileContentCache;
+import oneandone.fileservice.server.cache.FileMetadata;
+import oneandone.fileservice.server.cache.FileMetadataCache;
+import oneandone.fileservice.server.cache.StartupIndexer;
 import oneandone.fileservice.server.exception.ClientException;
 import oneandone.fileservice.server.exception.ClientExceptionMessage;
 import oneandone.fileservice.server.exception.ServerException;
+import oneandone.fileservice.server.lock.FileLockManager;
 import oneandone.fileservice.server.model.File;
+import oneandone.fileservice.server.service.FileContent;
 
 @RunWith(SpringJUnit4ClassRunner.class)
 public class FileServiceImplTest {
 
     public static final String FILE_CONTENT = "content";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @InjectMocks
     private FileServiceImpl fileService;
 
     @Mock
     private NioFilesWrapper nioFilesWrapper;
 
+    @Mock
+    private FileContentCache fileContentCache;
+
+    @Mock
+    private MappedFilePool mappedFilePool;
+
+    @Mock
+    private FileMetadataCache fileMetadataCache;
+
+    @Mock
+    private WriteJournal writeJournal;
+
+    @Mock
+    private StartupIndexer startupIndexer;
+
     private Path basePath = Paths.get("rootFolderPathValue").toAbsolutePath().normalize();
+    private Path tempPath = Paths.get("tempFolderNameValue").toAbsolutePath().normalize();
     private Path countAddFile = basePath.resolve("countAddFileNameValue");
     private Path countDeleteFile = basePath.resolve("countDeleteFileNameValue");
 
@@ -52,10 +92,159 @@ public class FileServiceImplTest {
 
     @Before
     public void setup() {
-        ReflectionTestUtils.setField(fileService, "rootFolderPath", "rootFolderPathValue");
-        ReflectionTestUtils.setField(fileService, "backupFolderName", "backupFolderNameValue");
-        fileService.init();
+        ReflectionTestUtils.setField(fileService, "fileLayout", new FileLayout(new NioFilesWrapper(), "rootFolderPathValue", "backupFolderNameValue",
+                "tempFolderNameValue", "", StorageLayout.FLAT, 2));
+        ReflectionTestUtils.setField(fileService, "fileLockManager", new FileLockManager(16));
+
+    }
+
+    @Test
+    public void getFileReadsContentByDefault() throws IOException {
+        Path filePath = basePath.resolve("fileName");
+
+        when(nioFilesWrapper.notExists(filePath)).thenReturn(false);
+        when(nioFilesWrapper.getLastModifiedTime(filePath)).thenReturn(FileTime.fromMillis(12345));
+        when(nioFilesWrapper.size(filePath)).thenReturn((long) FILE_CONTENT.length());
+        when(nioFilesWrapper.readAllBytes(filePath)).thenReturn(FILE_CONTENT.getBytes());
+
+        Optional<File> file = fileService.get("fileName");
+
+        assertTrue(file.isPresent());
+        assertEquals(12345, file.get().getLastModified());
+        assertEquals(FILE_CONTENT.length(), file.get().getSize());
+        assertEquals("\"3039-7\"", file.get().getETag());
+        assertEquals(FILE_CONTENT, new String(file.get().getContent()));
+        verify(fileContentCache).put("fileName", 12345, file.get().getContent());
+    }
+
+    @Test
+    public void getFileFromContentCache() throws IOException {
+        Path filePath = basePath.resolve("fileName");
+
+        when(nioFilesWrapper.notExists(filePath)).thenReturn(false);
+        when(nioFilesWrapper.getLastModifiedTime(filePath)).thenReturn(FileTime.fromMillis(12345));
+        when(nioFilesWrapper.size(filePath)).thenReturn((long) FILE_CONTENT.length());
+        when(fileContentCache.get("fileName", 12345, FILE_CONTENT.length())).thenReturn(FILE_CONTENT.getBytes());
+
+        Optional<File> file = fileService.get("fileName");
+
+        assertEquals(FILE_CONTENT, new String(file.get().getContent()));
+        verify(nioFilesWrapper, never()).readAllBytes(filePath);
+    }
+
+    @Test
+    public void getFileMetadataOnly() throws IOException {
+        Path filePath = basePath.resolve("fileName");
+
+        when(nioFilesWrapper.notExists(filePath)).thenReturn(false);
+        when(nioFilesWrapper.getLastModifiedTime(filePath)).thenReturn(FileTime.fromMillis(12345));
+
+        Optional<File> file = fileService.get("fileName", FileReadOption.METADATA);
+
+        assertTrue(file.isPresent());
+        verify(nioFilesWrapper, never()).readAllBytes(filePath);
+    }
 
+    @Test
+    public void openContentOfMissingFile() throws IOException {
+        Path filePath = basePath.resolve("fileName");
+
+        when(nioFilesWrapper.readAttributes(filePath)).thenThrow(new NoSuchFileException(filePath.toString()));
+
+        assertFalse(fileService.openContent("fileName").isPresent());
+        verify(nioFilesWrapper, never()).open(filePath);
+        verify(mappedFilePool, never()).acquire(eq(filePath), any(), any());
+    }
+
+    @Test
+    public void openContentDropsStaleMetadata() throws IOException {
+        Path filePath = basePath.resolve("fileName");
+        Path changedFile = Files.write(temporaryFolder.newFile("fileName").toPath(), new byte[9]);
+
+        when(nioFilesWrapper.open(filePath)).thenReturn(FileChannel.open(changedFile));
+        when(nioFilesWrapper.readAttributes(filePath)).thenReturn(Files.readAttributes(changedFile, BasicFileAttributes.class));
+        when(fileMetadataCache.get("fileName")).thenReturn(FileMetadata.of(12345, 7));
+
+        try (FileContent content = fileService.openContent("fileName").get()) {
+            long lastModified = Files.getLastModifiedTime(changedFile).toMillis();
+            assertEquals(9, content.size());
+            assertEquals(lastModified, content.lastModified());
+            assertEquals("\"" + Long.toHexString(lastModified) + "-9\"", content.eTag());
+        }
+
+        verify(fileMetadataCache).invalidate("fileName");
+    }
+
+    @Test
+    public void openContentOpensAFileReplacedWhileOpeningAgain() throws IOException {
+        Path filePath = basePath.resolve("fileName");
+        Path replacedFile = Files.write(temporaryFolder.newFile("replaced").toPath(), new byte[9]);
+        Path replacingFile = Files.write(temporaryFolder.newFile("replacing").toPath(), new byte[9]);
+        BasicFileAttributes replacingAttributes = Files.readAttributes(replacingFile, BasicFileAttributes.class);
+
+        when(nioFilesWrapper.readAttributes(filePath)).thenReturn(Files.readAttributes(replacedFile, BasicFileAttributes.class),
+                replacingAttributes, replacingAttributes, replacingAttributes);
+        when(nioFilesWrapper.open(filePath)).thenReturn(FileChannel.open(replacedFile), FileChannel.open(replacingFile));
+
+        try (FileContent content = fileService.openContent("fileName").get()) {
+            assertEquals(replacingAttributes.lastModifiedTime().toMillis(), content.lastModified());
+        }
+
+        verify(nioFilesWrapper, times(2)).open(filePath);
+        verify(mappedFilePool).acquire(eq(filePath), any(), eq(replacingAttributes));
+    }
+
+    @Test
+    public void openContentDoesNotHoldTheReadLock() throws Exception {
+        Path filePath = basePath.resolve("fileName");
+        Path openedFile = Files.write(temporaryFolder.newFile("fileName").toPath(), new byte[9]);
+
+        when(nioFilesWrapper.open(filePath)).thenReturn(FileChannel.open(openedFile));
+        when(nioFilesWrapper.readAttributes(filePath)).thenReturn(Files.readAttributes(openedFile, BasicFileAttributes.class));
+
+        try (FileContent content = fileService.openContent("fileName").get()) {
+            FileLockManager fileLockManager = (FileLockManager) ReflectionTestUtils.getField(fileService, "fileLockManager");
+            Thread writer = new Thread(() -> fileLockManager.writeLock("fileName").close());
+            writer.start();
+            writer.join(5000);
+
+            assertFalse(writer.isAlive());
+            assertEquals(9, content.size());
+        }
+    }
+
+    @Test
+    public void getFileMetadataFromMetadataCache() throws IOException {
+        Path filePath = basePath.resolve("fileName");
+
+        when(fileMetadataCache.get("fileName")).thenReturn(FileMetadata.of(12345, 7));
+
+        Optional<File> file = fileService.get("fileName", FileReadOption.METADATA);
+
+        assertEquals(12345, file.get().getLastModified());
+        assertEquals("\"3039-7\"", file.get().getETag());
+        verify(nioFilesWrapper, never()).notExists(filePath);
+        verify(nioFilesWrapper, never()).getLastModifiedTime(filePath);
+    }
+
+    @Test
+    public void getMissingFileFromMetadataCache() {
+        when(fileMetadataCache.get("fileName")).thenReturn(FileMetadata.missing());
+
+        assertFalse(fileService.get("fileName", FileReadOption.METADATA).isPresent());
+    }
+
+    @Test
+    public void getFileCachesStatResult() throws IOException {
+        Path filePath = basePath.resolve("fileName");
+
+        when(nioFilesWrapper.notExists(filePath)).thenReturn(false);
+        when(nioFilesWrapper.getLastModifiedTime(filePath)).thenReturn(FileTime.fromMillis(12345));
+        when(nioFilesWrapper.size(filePath)).thenReturn(7L);
+
+        fileService.get("fileName", FileReadOption.METADATA);
+
+        verify(fileMetadataCache).put(eq("fileName"), argThat(metadata -> metadata.getLastModified() == 12345 && metadata.getSize() == 7));
     }
 
     @Test
@@ -66,6 +255,8 @@ public class FileServiceImplTest {
         fileService.delete(toDeleteFileName);
 
         verify(nioFilesWrapper).delete(deletePath);
+        verify(fileContentCache).invalidate(toDeleteFileName);
+        verify(writeJournal).record(toDeleteFileName);
 
     }
 
@@ -261,6 +452,85 @@ public class FileServiceImplTest {
         verifyBackupFileNotDeleted();
     }
 
+    @Test
+    public void createFileFromStream() throws IOException {
+        when(nioFilesWrapper.copy(any(InputStream.class), any(Path.class))).thenReturn((long) FILE_CONTENT.length());
+
+        fileService.create("file.jpg", new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+
+        verify(nioFilesWrapper).copy(any(InputStream.class), argThat(path -> path.startsWith(tempPath)));
+        verify(nioFilesWrapper).move(argThat(path -> path.startsWith(tempPath)), eq(basePath.resolve("file.jpg")), eq(StandardCopyOption.ATOMIC_MOVE));
+        verifyBackupFileNotCreated(basePath.resolve("file.jpg"));
+        verify(writeJournal).record("file.jpg");
+    }
+
+    @Test
+    public void everyWriteStampsANewVersion() throws IOException {
+        List<Long> versions = new ArrayList<>();
+        doAnswer(invocation -> versions.add(((FileTime) invocation.getArgument(1)).toMillis()))
+                .when(nioFilesWrapper).setLastModifiedTime(any(Path.class), any(FileTime.class));
+        when(nioFilesWrapper.copy(any(InputStream.class), any(Path.class))).thenReturn((long) FILE_CONTENT.length());
+
+        fileService.create("file.jpg", new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+        fileService.create("file.jpg", new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+
+        assertEquals(2, versions.size());
+        assertTrue(versions.get(1) > versions.get(0));
+    }
+
+    @Test
+    public void warmUpIsAwaitedOnlyOnce() throws InterruptedException {
+        ReflectionTestUtils.setField(fileService, "warmUpWaitMillis", 50L);
+
+        fileService.awaitIndexed();
+        Thread.sleep(100);
+        fileService.awaitIndexed();
+
+        verify(startupIndexer).awaitIndexed(0);
+    }
+
+    @Test
+    public void createFileFromEmptyStream() throws IOException {
+        when(nioFilesWrapper.copy(any(InputStream.class), any(Path.class))).thenReturn(0L);
+
+        try {
+            fileService.create("file.jpg", new ByteArrayInputStream(new byte[0]));
+            fail();
+        } catch (ClientException e) {
+            assertEquals(ClientExceptionMessage.MISSING_CONTENT, e.getClientExceptionMessage());
+        }
+
+        verify(nioFilesWrapper).deleteIfExists(argThat(path -> path.startsWith(tempPath)));
+        verify(nioFilesWrapper, never()).move(any(Path.class), any(Path.class), eq(StandardCopyOption.ATOMIC_MOVE));
+    }
+
+    @Test
+    public void createFileFromStreamInvalidName() throws IOException {
+        try {
+            fileService.create("!!", new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+            fail();
+        } catch (ClientException e) {
+            assertEquals(ClientExceptionMessage.INVALID_FILENAME, e.getClientExceptionMessage());
+        }
+
+        verify(nioFilesWrapper, never()).copy(any(InputStream.class), any(Path.class));
+    }
+
+    @Test
+    public void createFileFromStreamPublishFailure() throws IOException {
+        when(nioFilesWrapper.copy(any(InputStream.class), any(Path.class))).thenReturn((long) FILE_CONTENT.length());
+        doThrow(new IOException()).when(nioFilesWrapper).move(any(Path.class), eq(basePath.resolve("file.jpg")), eq(StandardCopyOption.ATOMIC_MOVE));
+
+        try {
+            fileService.create("file.jpg", new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+            fail();
+        } catch (ServerException e) {
+            assertEquals(ClientExceptionMessage.GENERAL_ERROR, e.getClientExceptionMessage());
+        }
+
+        verify(nioFilesWrapper).deleteIfExists(argThat(path -> path.startsWith(tempPath)));
+    }
+
     @Test
     public void updateFileName() throws IOException {
         File file = new File();
@@ -281,6 +551,30 @@ public class FileServiceImplTest {
         verifyBackupFileDeleted();
     }
 
+    @Test
+    public void updateFileNameToAnotherRootFolderPublishesACopyBeforeDeletingTheFile() throws IOException {
+        Path otherBasePath = Paths.get("otherRootFolderPathValue").toAbsolutePath().normalize();
+        Path otherTempPath = Paths.get("otherTempFolderNameValue").toAbsolutePath().normalize();
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), "rootFolderPathValue,otherRootFolderPathValue",
+                "backupFolderNameValue,otherBackupFolderNameValue", "tempFolderNameValue,otherTempFolderNameValue", "",
+                StorageLayout.FLAT, 2);
+        ReflectionTestUtils.setField(fileService, "fileLayout", fileLayout);
+        String fileName = nameIn(fileLayout, basePath);
+        File file = new File();
+        file.setName(nameIn(fileLayout, otherBasePath));
+        file.setLastModified(new Date().getTime());
+
+        when(nioFilesWrapper.getLastModifiedTime(basePath.resolve(fileName))).thenReturn(FileTime.fromMillis(file.getLastModified()));
+
+        fileService.update(fileName, file);
+
+        verify(nioFilesWrapper, never()).move(basePath.resolve(fileName), otherBasePath.resolve(file.getName()));
+        verify(nioFilesWrapper).copy(eq(basePath.resolve(fileName)), argThat(path -> path.startsWith(otherTempPath)), eq(StandardCopyOption.COPY_ATTRIBUTES));
+        verify(nioFilesWrapper).move(argThat(path -> path.startsWith(otherTempPath)), eq(otherBasePath.resolve(file.getName())), eq(StandardCopyOption.ATOMIC_MOVE));
+        verify(nioFilesWrapper).delete(basePath.resolve(fileName));
+        verify(nioFilesWrapper).delete(argThat(path -> path.startsWith(Paths.get("backupFolderNameValue").toAbsolutePath())));
+    }
+
     @Test
     public void updateFileContent() throws IOException {
         File file = new File();
@@ -453,6 +747,112 @@ public class FileServiceImplTest {
         verifyRenamedFileDeleted(file.getName());
     }
 
+    @Test
+    public void updateFileContentFromStream() throws IOException {
+        File file = new File();
+        file.setLastModified(new Date().getTime());
+
+        when(nioFilesWrapper.getLastModifiedTime(basePath.resolve("fileName"))).thenReturn(FileTime.fromMillis(file.getLastModified()));
+        when(nioFilesWrapper.copy(any(InputStream.class), any(Path.class))).thenReturn((long) FILE_CONTENT.length());
+
+        fileService.update("fileName", file, new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+
+        verify(nioFilesWrapper).move(argThat(path -> path.startsWith(tempPath)), eq(basePath.resolve("fileName")), eq(StandardCopyOption.ATOMIC_MOVE));
+        verifyBackupFileNotCreated(basePath.resolve("fileName"));
+        verify(nioFilesWrapper, never()).delete(basePath.resolve("fileName"));
+    }
+
+    @Test
+    public void updateFileNameAndContentFromStream() throws IOException {
+        File file = new File();
+        file.setName("newFileName");
+        file.setLastModified(new Date().getTime());
+
+        when(nioFilesWrapper.getLastModifiedTime(basePath.resolve("fileName"))).thenReturn(FileTime.fromMillis(file.getLastModified()));
+        when(nioFilesWrapper.exists(basePath.resolve("newFileName"))).thenReturn(false);
+        when(nioFilesWrapper.copy(any(InputStream.class), any(Path.class))).thenReturn((long) FILE_CONTENT.length());
+
+        fileService.update("fileName", file, new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+
+        verify(nioFilesWrapper).move(argThat(path -> path.startsWith(tempPath)), eq(basePath.resolve("newFileName")), eq(StandardCopyOption.ATOMIC_MOVE));
+        verify(nioFilesWrapper).delete(basePath.resolve("fileName"));
+    }
+
+    @Test
+    public void updateFileNameConflictFromStream() throws IOException {
+        File file = new File();
+        file.setName("newFileName");
+        file.setLastModified(new Date().getTime());
+
+        when(nioFilesWrapper.getLastModifiedTime(basePath.resolve("fileName"))).thenReturn(FileTime.fromMillis(file.getLastModified()));
+        when(nioFilesWrapper.exists(basePath.resolve("newFileName"))).thenReturn(true);
+        when(nioFilesWrapper.copy(any(InputStream.class), any(Path.class))).thenReturn((long) FILE_CONTENT.length());
+
+        try {
+            fileService.update("fileName", file, new ByteArrayInputStream(FILE_CONTENT.getBytes()));
+            fail();
+        } catch (ClientException e) {
+            assertEquals(ClientExceptionMessage.FILENAME_CONFLICT, e.getClientExceptionMessage());
+        }
+
+        verify(nioFilesWrapper).deleteIfExists(argThat(path -> path.startsWith(tempPath)));
+        verify(nioFilesWrapper, never()).delete(basePath.resolve("fileName"));
+    }
+
+    @Test
+    public void createExistingFileAtomically() throws IOException {
+        ReflectionTestUtils.setField(fileService, "commitMode", CommitMode.ATOMIC_MOVE);
+        File file = new File();
+        file.setContent(FILE_CONTENT.getBytes());
+        file.setName("file");
+
+        when(nioFilesWrapper.exists(basePath.resolve(file.getName()))).thenReturn(true);
+        when(nioFilesWrapper.copy(any(InputStream.class), any(Path.class))).thenReturn((long) FILE_CONTENT.length());
+
+        fileService.create(file);
+
+        verifyBackupFileNotCreated(basePath.resolve(file.getName()));
+        verify(nioFilesWrapper).move(argThat(path -> path.startsWith(tempPath)), eq(basePath.resolve("file")), eq(StandardCopyOption.ATOMIC_MOVE));
+        verifyBackupFileNotDeleted();
+    }
+
+    @Test
+    public void updateFileNameAtomically() throws IOException {
+        ReflectionTestUtils.setField(fileService, "commitMode", CommitMode.ATOMIC_MOVE);
+        File file = new File();
+        file.setName("newFileName");
+        file.setLastModified(new Date().getTime());
+
+        when(nioFilesWrapper.exists(basePath.resolve(file.getName()))).thenReturn(false);
+        when(nioFilesWrapper.getLastModifiedTime(basePath.resolve("fileName"))).thenReturn(FileTime.fromMillis(file.getLastModified()));
+
+        fileService.update("fileName", file);
+
+        verifyBackupFileNotCreated(basePath.resolve("fileName"));
+        verifyFileRenamed("fileName", file);
+        verifyBackupFileNotDeleted();
+        verify(writeJournal).record("fileName", "newFileName");
+    }
+
+    @Test
+    public void updateFileNameAndContentAtomically() throws IOException {
+        ReflectionTestUtils.setField(fileService, "commitMode", CommitMode.ATOMIC_MOVE);
+        File file = new File();
+        file.setName("newFileName");
+        file.setContent(FILE_CONTENT.getBytes());
+        file.setLastModified(new Date().getTime());
+
+        when(nioFilesWrapper.exists(basePath.resolve(file.getName()))).thenReturn(false);
+        when(nioFilesWrapper.getLastModifiedTime(basePath.resolve("fileName"))).thenReturn(FileTime.fromMillis(file.getLastModified()));
+        when(nioFilesWrapper.copy(any(InputStream.class), any(Path.class))).thenReturn((long) FILE_CONTENT.length());
+
+        fileService.update("fileName", file);
+
+        verifyBackupFileNotCreated(basePath.resolve("fileName"));
+        verify(nioFilesWrapper).move(argThat(path -> path.startsWith(tempPath)), eq(basePath.resolve("newFileName")), eq(StandardCopyOption.ATOMIC_MOVE));
+        verify(nioFilesWrapper).delete(basePath.resolve("fileName"));
+    }
+
     @Test
     public void updateFileConcurrencyIssue() throws IOException {
         File file = new File();
@@ -473,6 +873,60 @@ public class FileServiceImplTest {
         verifyContentNotOverwritten("fileName", file);
     }
 
+    @Test
+    public void updateFileWithMatchingETag() throws IOException {
+        File file = new File();
+        file.setContent(FILE_CONTENT.getBytes());
+        file.setETag("\"3039-7\"");
+
+        when(nioFilesWrapper.getLastModifiedTime(basePath.resolve("fileName"))).thenReturn(FileTime.fromMillis(12345));
+        when(nioFilesWrapper.size(basePath.resolve("fileName"))).thenReturn(7L);
+
+        fileService.update("fileName", file);
+
+        verifyContentOverwritten("fileName", file);
+    }
+
+    @Test
+    public void updateFileWithOutdatedETag() throws IOException {
+        File file = new File();
+        file.setContent(FILE_CONTENT.getBytes());
+        file.setETag("\"3039-7\"");
+
+        when(nioFilesWrapper.getLastModifiedTime(basePath.resolve("fileName"))).thenReturn(FileTime.fromMillis(54321));
+        when(nioFilesWrapper.size(basePath.resolve("fileName"))).thenReturn(7L);
+
+        try {
+            fileService.update("fileName", file);
+            fail();
+        } catch (ClientException e) {
+            assertEquals(ClientExceptionMessage.CONCURRENCY_CONFLICT, e.getClientExceptionMessage());
+        }
+
+        verifyContentNotOverwritten("fileName", file);
+    }
+
+    @Test
+    public void updateFileChecksETagAgainstDiskUnderLock() throws IOException {
+        File file = new File();
+        file.setContent(FILE_CONTENT.getBytes());
+        file.setETag("\"3039-7\"");
+
+        when(fileMetadataCache.get("fileName")).thenReturn(FileMetadata.of(12345, 7));
+        when(nioFilesWrapper.getLastModifiedTime(basePath.resolve("fileName"))).thenReturn(FileTime.fromMillis(54321));
+        when(nioFilesWrapper.size(basePath.resolve("fileName"))).thenReturn(7L);
+
+        try {
+            fileService.update("fileName", file);
+            fail();
+        } catch (ClientException e) {
+            assertEquals(ClientExceptionMessage.CONCURRENCY_CONFLICT, e.getClientExceptionMessage());
+        }
+
+        verify(fileMetadataCache).invalidate("fileName");
+        verifyContentNotOverwritten("fileName", file);
+    }
+
     @Test
     public void updateFileInvalidName() throws IOException {
         File file = new File();
@@ -571,6 +1025,14 @@ public class FileServiceImplTest {
         }
     }
 
+    private static String nameIn(FileLayout fileLayout, Path rootFolder) {
+        for (int i = 0; ; i++) {
+            if (fileLayout.getRootFolder("fileName" + i).equals(rootFolder)) {
+                return "fileName" + i;
+            }
+        }
+    }
+
     private void verifyFileRenamed(String fileName, File file) throws IOException {
         verify(nioFilesWrapper).move(basePath.resolve(fileName), basePath.resolve(file.getName()));
     }
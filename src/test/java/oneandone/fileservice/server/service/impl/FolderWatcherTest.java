@@ -0,0 +1,161 @@
+package oneandone.fileservice.server.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.devtools.filewatch.ChangedFile;
+import org.springframework.boot.devtools.filewatch.ChangedFiles;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import oneandone.fileservice.server.cache.FileNamesCache;
+import oneandone.fileservice.server.cache.FileNamesStorage;
+
+public class FolderWatcherTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final BlockingQueue<ChangedFile> changedFiles = new LinkedBlockingQueue<>();
+
+    private final BlockingQueue<Set<ChangedFile>> batches = new LinkedBlockingQueue<>();
+
+    private final FileNamesCache fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+
+    private FolderWatcher folderWatcher;
+
+    @Before
+    public void setup() throws IOException {
+        folderWatcher = new FolderWatcher(new NioFilesWrapper(), new FileLayout(new NioFilesWrapper(), temporaryFolder.getRoot().toString(), "backup", "temp", "", StorageLayout.FLAT, 2), changeSet -> {
+            for (ChangedFiles changedFilesOfFolder : changeSet) {
+                changedFiles.addAll(changedFilesOfFolder.getFiles());
+                batches.add(changedFilesOfFolder.getFiles());
+            }
+        }, fileNamesCache, 200, 1000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        folderWatcher.close();
+    }
+
+    @Test
+    public void reportsChangesInOrder() throws Exception {
+        folderWatcher.start();
+
+        Path file = createFile("fileName");
+        assertChange(ChangedFile.Type.ADD, "fileName");
+
+        Files.delete(file);
+        ChangedFile changedFile = nextChange();
+        while (changedFile.getType() == ChangedFile.Type.MODIFY) {
+            changedFile = nextChange();
+        }
+        assertEquals(ChangedFile.Type.DELETE, changedFile.getType());
+        assertEquals("fileName", changedFile.getRelativeName());
+    }
+
+    @Test
+    public void collapsesTheChangesOfABatchPerFile() throws Exception {
+        folderWatcher.start();
+
+        Path file = createFile("fileName");
+        Files.write(file, new byte[]{2});
+        createFile("otherFileName");
+
+        Set<ChangedFile> batch = batches.poll(10, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        Set<String> changes = new HashSet<>();
+        for (ChangedFile changedFile : batch) {
+            changes.add(changedFile.getType() + " " + changedFile.getRelativeName());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("ADD fileName", "ADD otherFileName")), changes);
+    }
+
+    @Test
+    public void rescanReportsTheDifferencesWithTheCachedNames() throws Exception {
+        fileNamesCache.addFileName("deleted");
+        fileNamesCache.addFileName("modified");
+        createFile("modified");
+        createFile("added");
+
+        folderWatcher.rescan();
+
+        Set<String> changes = new HashSet<>();
+        for (ChangedFile changedFile : changedFiles) {
+            changes.add(changedFile.getType() + " " + changedFile.getRelativeName());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("ADD added", "MODIFY modified", "DELETE deleted")), changes);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void rescanOfTheUnwatchedFoldersReportsTheDifferencesWithTheirLastListing() throws Exception {
+        Map<Path, Map<String, Long>> unwatchedFolders =
+                (Map<Path, Map<String, Long>>) ReflectionTestUtils.getField(folderWatcher, "unwatchedFolders");
+        unwatchedFolders.put(temporaryFolder.getRoot().toPath(), new HashMap<>(Collections.singletonMap("deleted", 0L)));
+        fileNamesCache.addFileName("cachedButNotListed");
+        createFile("added");
+
+        folderWatcher.rescanUnwatchedFolders();
+
+        Set<String> changes = new HashSet<>();
+        for (ChangedFile changedFile : changedFiles) {
+            changes.add(changedFile.getType() + " " + changedFile.getRelativeName());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("ADD added", "DELETE deleted")), changes);
+        assertTrue("registered again", unwatchedFolders.isEmpty());
+    }
+
+    @Test
+    public void watchesTheShardFoldersCreatedLater() throws Exception {
+        folderWatcher.close();
+        FileLayout fileLayout = new FileLayout(new NioFilesWrapper(), temporaryFolder.getRoot().toString(), "backup", "temp", "", StorageLayout.SHARDED, 2);
+        folderWatcher = new FolderWatcher(new NioFilesWrapper(), fileLayout, changeSet -> {
+            for (ChangedFiles changedFilesOfFolder : changeSet) {
+                changedFiles.addAll(changedFilesOfFolder.getFiles());
+            }
+        }, fileNamesCache, 200, 1000);
+        folderWatcher.start();
+
+        Files.write(fileLayout.resolveForWrite("fileName"), new byte[]{1});
+
+        ChangedFile changedFile = nextChange();
+        assertEquals(ChangedFile.Type.ADD, changedFile.getType());
+        assertEquals(fileLayout.resolve("fileName").toFile(), changedFile.getFile());
+    }
+
+    private void assertChange(ChangedFile.Type type, String relativeName) throws InterruptedException {
+        ChangedFile changedFile = nextChange();
+        assertEquals(type, changedFile.getType());
+        assertEquals(relativeName, changedFile.getRelativeName());
+    }
+
+    private ChangedFile nextChange() throws InterruptedException {
+        ChangedFile changedFile = changedFiles.poll(10, TimeUnit.SECONDS);
+        assertNotNull(changedFile);
+        return changedFile;
+    }
+
+    private Path createFile(String name) throws IOException {
+        return Files.write(temporaryFolder.getRoot().toPath().resolve(name), new byte[]{1});
+    }
+}
@@ -0,0 +1,154 @@
+package oneandone.fileservice.server.service.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedFilePoolTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void transfersTheRequestedRegion() throws IOException {
+        MappedFilePool mappedFilePool = new MappedFilePool(100, 4);
+        Path path = createFile("fileName", new byte[]{1, 2, 3, 4, 5, 6});
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        try (MappedFilePool.MappedFile mappedFile = acquire(mappedFilePool, path)) {
+            assertEquals(3, mappedFile.transferTo(2, 3, Channels.newChannel(outputStream)));
+            assertEquals(1, mappedFile.transferTo(5, 10, Channels.newChannel(outputStream)));
+            assertEquals(0, mappedFile.transferTo(6, 10, Channels.newChannel(outputStream)));
+        }
+
+        assertArrayEquals(new byte[]{3, 4, 5, 6}, outputStream.toByteArray());
+    }
+
+    @Test
+    public void skipsFilesBelowTheSizeThreshold() throws IOException {
+        MappedFilePool mappedFilePool = new MappedFilePool(100, 4);
+
+        assertNull(acquire(mappedFilePool, createFile("fileName", new byte[3])));
+        assertEquals(0, mappedFilePool.getSize());
+    }
+
+    @Test
+    public void reusesTheMappingOfTheSameVersion() throws IOException {
+        MappedFilePool mappedFilePool = new MappedFilePool(100, 4);
+        Path path = createFile("fileName", new byte[5]);
+
+        acquire(mappedFilePool, path).close();
+        acquire(mappedFilePool, path).close();
+
+        assertEquals(1, mappedFilePool.getHitCount());
+        assertEquals(1, mappedFilePool.getMissCount());
+    }
+
+    @Test
+    public void remapsReplacedFiles() throws IOException {
+        MappedFilePool mappedFilePool = new MappedFilePool(100, 4);
+        Path path = createFile("fileName", new byte[5]);
+        acquire(mappedFilePool, path).close();
+
+        Files.delete(path);
+        createFile("fileName", new byte[]{1, 2, 3, 4, 5, 6});
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        try (MappedFilePool.MappedFile mappedFile = acquire(mappedFilePool, path)) {
+            mappedFile.transferTo(0, 6, Channels.newChannel(outputStream));
+        }
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, outputStream.toByteArray());
+        assertEquals(2, mappedFilePool.getMissCount());
+        assertEquals(1, mappedFilePool.getUnmapCount());
+        assertEquals(6, mappedFilePool.getMappedBytes());
+    }
+
+    @Test
+    public void unmapsEvictedFilesOnceReleased() throws IOException {
+        MappedFilePool mappedFilePool = new MappedFilePool(100, 4);
+        Path path = createFile("fileName", new byte[5]);
+
+        MappedFilePool.MappedFile mappedFile = acquire(mappedFilePool, path);
+        assertNotNull(mappedFile);
+        mappedFilePool.evict(path);
+
+        assertEquals(0, mappedFilePool.getSize());
+        assertEquals(0, mappedFilePool.getUnmapCount());
+
+        mappedFile.close();
+
+        assertEquals(1, mappedFilePool.getUnmapCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedMappingsToStayWithinTheByteBound() throws IOException {
+        MappedFilePool mappedFilePool = new MappedFilePool(10, 4);
+        Path first = createFile("first", new byte[5]);
+        Path second = createFile("second", new byte[5]);
+        Path third = createFile("third", new byte[5]);
+
+        acquire(mappedFilePool, first).close();
+        acquire(mappedFilePool, second).close();
+        acquire(mappedFilePool, first).close();
+        acquire(mappedFilePool, third).close();
+
+        assertEquals(2, mappedFilePool.getSize());
+        assertEquals(10, mappedFilePool.getMappedBytes());
+        acquire(mappedFilePool, first).close();
+        assertEquals(2, mappedFilePool.getHitCount());
+    }
+
+    @Test
+    public void skipsAttributesOfAnotherVersionThanTheOpenedOne() throws IOException {
+        MappedFilePool mappedFilePool = new MappedFilePool(100, 4);
+        Path path = createFile("fileName", new byte[5]);
+
+        try (FileChannel fileChannel = FileChannel.open(path)) {
+            Files.delete(path);
+            createFile("fileName", new byte[6]);
+
+            assertNull(mappedFilePool.acquire(path, fileChannel, Files.readAttributes(path, BasicFileAttributes.class)));
+        }
+    }
+
+    @Test
+    public void mapsAFileReplacedWithOneOfTheSameSizeAgain() throws IOException {
+        MappedFilePool mappedFilePool = new MappedFilePool(100, 4);
+        Path path = createFile("fileName", new byte[5]);
+        acquire(mappedFilePool, path).close();
+
+        Path replacement = createFile("replacement", new byte[]{1, 2, 3, 4, 5});
+        Files.setLastModifiedTime(replacement, Files.getLastModifiedTime(path));
+        Files.move(replacement, path, StandardCopyOption.REPLACE_EXISTING);
+
+        try (MappedFilePool.MappedFile mappedFile = acquire(mappedFilePool, path)) {
+            assertEquals(1, mappedFile.region(0, 5).get());
+        }
+        assertEquals(2, mappedFilePool.getMissCount());
+    }
+
+    private MappedFilePool.MappedFile acquire(MappedFilePool mappedFilePool, Path path) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path)) {
+            return mappedFilePool.acquire(path, fileChannel, Files.readAttributes(path, BasicFileAttributes.class));
+        }
+    }
+
+    private Path createFile(String name, byte[] content) throws IOException {
+        return Files.write(temporaryFolder.getRoot().toPath().resolve(name), content);
+    }
+}
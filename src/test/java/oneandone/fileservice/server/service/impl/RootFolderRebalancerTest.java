@@ -0,0 +1,81 @@
+package oneandone.fileservice.server.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import oneandone.fileservice.server.cache.FileMetadataCache;
+import oneandone.fileservice.server.cache.FileNamesCache;
+import oneandone.fileservice.server.cache.FileNamesStorage;
+import oneandone.fileservice.server.lock.FileLockManager;
+
+public class RootFolderRebalancerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path rootFolder;
+
+    private Path addedRootFolder;
+
+    private FileLayout fileLayout;
+
+    private RootFolderRebalancer rootFolderRebalancer;
+
+    @Before
+    public void setup() throws IOException {
+        rootFolder = temporaryFolder.newFolder("root").toPath().toAbsolutePath().normalize();
+        addedRootFolder = temporaryFolder.newFolder("added").toPath().toAbsolutePath().normalize();
+        fileLayout = new FileLayout(new NioFilesWrapper(), rootFolder + "," + addedRootFolder,
+                temporaryFolder.newFolder("backup") + "," + temporaryFolder.newFolder("addedBackup"),
+                temporaryFolder.newFolder("temp") + "," + temporaryFolder.newFolder("addedTemp"), "", StorageLayout.FLAT, 2);
+
+        FileMetadataCache fileMetadataCache = new FileMetadataCache();
+        ReflectionTestUtils.setField(fileMetadataCache, "maxAgeMillis", -1L);
+        WriteJournal writeJournal = new WriteJournal();
+        ReflectionTestUtils.setField(writeJournal, "fileLayout", fileLayout);
+        ReflectionTestUtils.setField(writeJournal, "retentionMillis", 60000L);
+        ReflectionTestUtils.setField(writeJournal, "nioFilesWrapper", new NioFilesWrapper());
+        ReflectionTestUtils.setField(writeJournal, "fileNamesCache", new FileNamesCache(FileNamesStorage.OBJECTS));
+        ReflectionTestUtils.setField(writeJournal, "fileMetadataCache", fileMetadataCache);
+
+        rootFolderRebalancer = new RootFolderRebalancer();
+        ReflectionTestUtils.setField(rootFolderRebalancer, "nioFilesWrapper", new NioFilesWrapper());
+        ReflectionTestUtils.setField(rootFolderRebalancer, "fileLayout", fileLayout);
+        ReflectionTestUtils.setField(rootFolderRebalancer, "fileLockManager", new FileLockManager(16));
+        ReflectionTestUtils.setField(rootFolderRebalancer, "writeJournal", writeJournal);
+        ReflectionTestUtils.setField(rootFolderRebalancer, "mappedFilePool", new MappedFilePool(100, 4));
+    }
+
+    @Test
+    public void movesTheShareOfTheAddedRootFolder() throws Exception {
+        int addedShare = 0;
+        for (int i = 0; i < 100; i++) {
+            Files.write(rootFolder.resolve("fileName" + i), new byte[]{1});
+            if (fileLayout.getRootFolder("fileName" + i).equals(addedRootFolder)) {
+                addedShare++;
+            }
+        }
+
+        rootFolderRebalancer.rebalanceFiles(2);
+
+        for (int i = 0; i < 100; i++) {
+            Path rootFolderOfName = fileLayout.getRootFolder("fileName" + i);
+            assertTrue(Files.exists(rootFolderOfName.resolve("fileName" + i)));
+            assertEquals(rootFolderOfName.equals(rootFolder), Files.exists(rootFolder.resolve("fileName" + i)));
+        }
+        assertEquals(addedShare, rootFolderRebalancer.getMovedFileCount());
+        assertEquals(0, rootFolderRebalancer.getFailedFileCount());
+        assertFalse(fileLayout.hasMisplacedFiles());
+    }
+}
@@ -0,0 +1,102 @@
+package oneandone.fileservice.server.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import oneandone.fileservice.server.cache.FileMetadata;
+import oneandone.fileservice.server.cache.FileMetadataCache;
+import oneandone.fileservice.server.cache.FileNamesCache;
+import oneandone.fileservice.server.cache.FileNamesStorage;
+
+public class WriteJournalTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path rootFolder;
+
+    private FileNamesCache fileNamesCache;
+
+    private FileMetadataCache fileMetadataCache;
+
+    private WriteJournal writeJournal;
+
+    @Before
+    public void setup() throws IOException {
+        rootFolder = temporaryFolder.newFolder("root").toPath();
+        fileNamesCache = new FileNamesCache(FileNamesStorage.OBJECTS);
+        ReflectionTestUtils.setField(fileNamesCache, "trackTotalBytes", true);
+        fileMetadataCache = new FileMetadataCache();
+        ReflectionTestUtils.setField(fileMetadataCache, "maxAgeMillis", -1L);
+
+        writeJournal = new WriteJournal();
+        ReflectionTestUtils.setField(writeJournal, "fileLayout", new FileLayout(new NioFilesWrapper(), rootFolder.toString(), "backup", "temp", "", StorageLayout.FLAT, 2));
+        ReflectionTestUtils.setField(writeJournal, "retentionMillis", 60000L);
+        ReflectionTestUtils.setField(writeJournal, "nioFilesWrapper", new NioFilesWrapper());
+        ReflectionTestUtils.setField(writeJournal, "fileNamesCache", fileNamesCache);
+        ReflectionTestUtils.setField(writeJournal, "fileMetadataCache", fileMetadataCache);
+    }
+
+    @Test
+    public void appliesWritesToTheCachesRightAway() throws IOException {
+        Files.write(rootFolder.resolve("created"), new byte[3]);
+
+        writeJournal.record("created");
+
+        assertEquals(Collections.singletonList("created"), fileNamesCache.getFileNames());
+        assertEquals(1, fileNamesCache.getFileCount());
+        assertEquals(3, fileNamesCache.getStatistics().getTotalBytes());
+        assertEquals(3, fileMetadataCache.get("created").getSize());
+    }
+
+    @Test
+    public void appliesRenamesAsOneChange() throws IOException {
+        Files.write(rootFolder.resolve("old"), new byte[3]);
+        writeJournal.record("old");
+        long generation = fileNamesCache.getGeneration();
+
+        Files.move(rootFolder.resolve("old"), rootFolder.resolve("new"));
+        writeJournal.record("old", "new");
+
+        assertEquals(generation + 1, fileNamesCache.getGeneration());
+        assertEquals(Collections.singletonList("new"), fileNamesCache.getFileNames());
+        assertFalse(fileMetadataCache.get("old").exists());
+    }
+
+    @Test
+    public void recognizesTheChangesOfItsWrites() throws IOException {
+        Path file = Files.write(rootFolder.resolve("written"), new byte[3]);
+        writeJournal.record("written");
+
+        assertTrue(writeJournal.isApplied("written", writeJournal.stat(file)));
+        assertFalse(writeJournal.isApplied("written", FileMetadata.missing()));
+        assertFalse(writeJournal.isApplied("other", writeJournal.stat(file)));
+
+        Files.write(file, new byte[5]);
+
+        assertFalse(writeJournal.isApplied("written", writeJournal.stat(file)));
+        assertEquals(1, writeJournal.getSkippedChangeCount());
+    }
+
+    @Test
+    public void forgetsWritesAfterTheRetention() throws IOException {
+        ReflectionTestUtils.setField(writeJournal, "retentionMillis", 0L);
+        Path file = Files.write(rootFolder.resolve("written"), new byte[3]);
+        writeJournal.record("written");
+
+        assertFalse(writeJournal.isApplied("written", writeJournal.stat(file)));
+        assertFalse(writeJournal.contains("written"));
+    }
+}